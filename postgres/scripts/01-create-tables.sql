@@ -6,7 +6,11 @@ CREATE TABLE public.chat
 (
     id         BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
     created_at TIMESTAMP(6),
-    title      VARCHAR(255)
+    title      VARCHAR(255),
+    -- rolling summary of the entries up to summarized_until (their created_at), maintained by PostgresChatMemory,
+    -- next to the chat so that the memory window is read with a single query
+    summary          TEXT,
+    summarized_until TIMESTAMPTZ(6)
 );
 
 ALTER TABLE public.chat OWNER TO postgres;
@@ -16,7 +20,8 @@ CREATE TABLE public.chat_entry
 (
     id         BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
     content    TEXT,
-    created_at TIMESTAMP(6),
+    -- an instant, so that the order of entries doesn't depend on the time zone (e.g. at a DST change)
+    created_at TIMESTAMPTZ(6),
     chat_id    BIGINT
                CONSTRAINT chat_entry_chat_fk
                REFERENCES public.chat(id),
@@ -27,6 +32,10 @@ CREATE TABLE public.chat_entry
 
 ALTER TABLE public.chat_entry OWNER TO postgres;
 
+-- Index for reading the chat memory window (the last N entries of a chat) without scanning its whole history
+CREATE INDEX IF NOT EXISTS idx_chat_entry_chat_id_created_at
+    ON public.chat_entry (chat_id, created_at);
+
 -- ============================================
 -- RAG (Retrieval-Augmented Generation) Tables
 -- ============================================
@@ -39,6 +48,8 @@ CREATE TABLE IF NOT EXISTS loaded_document
     content_hash VARCHAR(64) NOT NULL,
     document_type VARCHAR(10) NOT NULL,
     chunk_count INTEGER,
+    -- chunks stored for the document (id, BM25 length and terms), to diff them when the document changes
+    chunk_manifest JSONB,
     loaded_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
     CONSTRAINT unique_document UNIQUE(filename,content_hash)
 );
@@ -48,21 +59,59 @@ CREATE INDEX IF NOT EXISTS idx_loaded_documents_filename
     ON loaded_document(filename);
 
 -- Vector Store Table
+-- metadata of every chunk holds its source_filename and chunk_hash (and BM25 statistics)
 CREATE TABLE IF NOT EXISTS vector_store
 (
     id VARCHAR(255) PRIMARY KEY,
     content TEXT,
     metadata JSON,
-    embedding VECTOR(1024)
+    embedding VECTOR(1024),
+    -- quantized copies of the embedding for the first pass of quantized search (see SearchQuantization),
+    -- maintained by PostgreSQL, so the application only writes the embedding (needs pgvector 0.7+)
+    embedding_halfvec HALFVEC(1024) GENERATED ALWAYS AS (embedding::halfvec(1024)) STORED,
+    embedding_bit BIT(1024) GENERATED ALWAYS AS (binary_quantize(embedding)::bit(1024)) STORED,
+    -- full-text vector of the content for the lexical half of hybrid search (see HybridSearchRepository),
+    -- the 'simple' configuration keeps every word as is, so names and codes match exactly in any language
+    content_tsv TSVECTOR GENERATED ALWAYS AS (to_tsvector('simple', coalesce(content, ''))) STORED
 );
 
 -- HNSW Index for fast vector search
 CREATE INDEX IF NOT EXISTS vector_store_hnsw_index
     ON vector_store USING hnsw (embedding vector_cosine_ops);
 
+-- HNSW indexes of the quantized embeddings, half and 1/32 of the size of the full one;
+-- with spring.ai.retrieval.quantization.mode set, the full index above is only needed for the NONE mode
+CREATE INDEX IF NOT EXISTS vector_store_halfvec_hnsw_index
+    ON vector_store USING hnsw (embedding_halfvec halfvec_cosine_ops);
+
+CREATE INDEX IF NOT EXISTS vector_store_bit_hnsw_index
+    ON vector_store USING hnsw (embedding_bit bit_hamming_ops);
+
+-- GIN index of the full-text vectors, used by hybrid search only (spring.ai.retrieval.hybrid.enabled)
+CREATE INDEX IF NOT EXISTS vector_store_content_tsv_gin_index
+    ON vector_store USING gin (content_tsv);
+
+-- BM25 document frequency of every analyzed term over all chunks in vector_store,
+-- maintained by the application while loading RAG documents
+CREATE TABLE IF NOT EXISTS bm25_term_stats
+(
+    term     VARCHAR(255) PRIMARY KEY,
+    doc_freq INTEGER NOT NULL
+);
+
+-- BM25 corpus totals (single row): number of chunks and their total token length
+CREATE TABLE IF NOT EXISTS bm25_corpus_stats
+(
+    id           INTEGER PRIMARY KEY DEFAULT 1,
+    doc_count    BIGINT NOT NULL,
+    total_length BIGINT NOT NULL,
+    CONSTRAINT bm25_corpus_stats_single_row CHECK (id = 1)
+);
+
 -- ============================================
 -- Notes on index types:
 -- HNSW - High-performance similarity search on high-dimensional vectors
 -- IVFFlat - Inverted File with flat clusters, good for large datasets
 -- No index - Sequential scan over all vectors (slow but exact)
+-- GIN - Inverted index of the words of tsvectors, for full-text search
 -- ============================================
@@ -0,0 +1,56 @@
+package com.glvov.springairag.benchmark;
+
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.benchmark.SyntheticCorpus.CorpusLanguage;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.document.Document;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reranking of {@code corpusSize} vector search candidates ({@code topK * 2} in {@link com.glvov.springairag.advisor.RagAdvisor}),
+ * both for chunks with BM25 statistics stored in metadata and for chunks that have to be tokenized on the fly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BM25RerankBenchmark {
+
+    @Param({"EN", "RU", "DE", "MIXED"})
+    private CorpusLanguage language;
+
+    @Param({"8", "64"})
+    private int corpusSize;
+
+    @Param({"60"})
+    private int wordsPerChunk;
+
+    private final BM25RerankEngine engine = BM25RerankEngine.builder().build();
+
+    private List<Document> rawChunks;
+
+    private List<Document> analyzedChunks;
+
+
+    @Setup
+    public void setUp() {
+        rawChunks = SyntheticCorpus.documents(language, corpusSize, wordsPerChunk);
+        analyzedChunks = rawChunks.stream()
+                .map(chunk -> new Document(chunk.getId(), chunk.getText(), engine.analyze(chunk.getText()).toMetadata()))
+                .toList();
+    }
+
+    @Benchmark
+    public List<Document> rerankPrecomputedStatistics() {
+        return engine.rerank(analyzedChunks, language.query(), 4);
+    }
+
+    @Benchmark
+    public List<Document> rerankTokenizingChunks() {
+        return engine.rerank(rawChunks, language.query(), 4);
+    }
+}
@@ -0,0 +1,58 @@
+package com.glvov.springairag.benchmark;
+
+import com.glvov.springairag.mapper.ChatEntryMapper;
+import com.glvov.springairag.model.ChatEntry;
+import com.glvov.springairag.model.Role;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Mapping of a chat memory window ({@code spring.ai.chat.memory.max-messages}) in both directions,
+ * done on every chat turn by {@link com.glvov.springairag.service.PostgresChatMemory}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatEntryMapperBenchmark {
+
+    @Param({"8"})
+    private int messages;
+
+    private final ChatEntryMapper mapper = new ChatEntryMapper();
+
+    private List<ChatEntry> entries;
+
+    private Message assistantMessage;
+
+
+    @Setup
+    public void setUp() {
+        List<String> texts = SyntheticCorpus.texts(SyntheticCorpus.CorpusLanguage.EN, messages, 120);
+
+        entries = IntStream.range(0, messages)
+                .mapToObj(i -> ChatEntry.builder()
+                        .content(texts.get(i))
+                        .role(i % 2 == 0 ? Role.USER : Role.ASSISTANT)
+                        .build())
+                .toList();
+        assistantMessage = new AssistantMessage(texts.get(0));
+    }
+
+    @Benchmark
+    public List<Message> toMessages() {
+        return entries.stream().map(mapper::toMessage).toList();
+    }
+
+    @Benchmark
+    public ChatEntry toChatEntry() {
+        return mapper.toChatEntry(assistantMessage);
+    }
+}
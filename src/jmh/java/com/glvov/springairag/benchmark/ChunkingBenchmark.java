@@ -0,0 +1,88 @@
+package com.glvov.springairag.benchmark;
+
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.benchmark.SyntheticCorpus.CorpusLanguage;
+import com.glvov.springairag.service.StreamingTokenTextSplitter;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.ai.vectorstore.SimpleVectorStore;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ingestion path of {@link com.glvov.springairag.service.VectorStoreService#save}: {@link TokenTextSplitter}
+ * chunking of a whole document, then chunk analysis and storing into an in-memory vector store.
+ * {@link #streamingSplit()} is the single-pass reading, hashing and chunking of {@link StreamingTokenTextSplitter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ChunkingBenchmark {
+
+    @Param({"EN", "RU", "DE"})
+    private CorpusLanguage language;
+
+    /**
+     * Size of the source document in words.
+     */
+    @Param({"20000"})
+    private int documentWords;
+
+    @Param({"100"})
+    private int chunkSize;
+
+    private final BM25RerankEngine rerankEngine = BM25RerankEngine.builder().build();
+
+    private final StubEmbeddingModel embeddingModel = new StubEmbeddingModel();
+
+    private Document document;
+
+    private TokenTextSplitter textSplitter;
+
+    private ByteArrayResource resource;
+
+    private StreamingTokenTextSplitter streamingSplitter;
+
+
+    @Setup
+    public void setUp() {
+        String text = String.join(" ", SyntheticCorpus.texts(language, documentWords / 100, 100));
+        document = new Document(text);
+        textSplitter = TokenTextSplitter.builder()
+                .withChunkSize(chunkSize)
+                .build();
+        resource = new ByteArrayResource(text.getBytes(StandardCharsets.UTF_8));
+        streamingSplitter = new StreamingTokenTextSplitter(chunkSize, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public List<Document> split() {
+        return textSplitter.apply(List.of(document));
+    }
+
+    @Benchmark
+    public List<String> streamingSplit() throws IOException {
+        List<String> chunks = new ArrayList<>();
+        streamingSplitter.split(resource, chunks::add);
+        return chunks;
+    }
+
+    @Benchmark
+    public SimpleVectorStore splitAnalyzeAndStore() {
+        List<Document> chunks = textSplitter.apply(List.of(document));
+        chunks.forEach(chunk -> chunk.getMetadata().putAll(rerankEngine.analyze(chunk.getText()).toMetadata()));
+
+        SimpleVectorStore vectorStore = SimpleVectorStore.builder(embeddingModel).build();
+        vectorStore.accept(chunks);
+        return vectorStore;
+    }
+}
@@ -0,0 +1,249 @@
+package com.glvov.springairag.benchmark;
+
+import com.glvov.springairag.advisor.misc.SearchQuantization;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * The two-stage search of {@link com.glvov.springairag.repository.QuantizedVectorSearchRepository} against
+ * the float baseline, as exact scans in memory, so that the latency shows the memory read per vector
+ * (4 bytes, 2 bytes or 1 bit per dimension) and no database is needed: a first pass over the quantized embeddings
+ * keeps {@code topK * oversampling} candidates, which are re-scored on the full embeddings.
+ * <br><br>
+ * Recall@topK against the float baseline is reported by JMH as the {@code recall} secondary result
+ * (see {@link Recall}). Embeddings are clustered like
+ * the ones of real chunks, with mean-centred dimensions, which binary quantization relies on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class QuantizedSearchBenchmark {
+
+    @Param({"NONE", "HALFVEC", "BIT"})
+    private SearchQuantization quantization;
+
+    @Param({"20000"})
+    private int corpusSize;
+
+    @Param({"1024"})
+    private int dimensions;
+
+    @Param({"8"})
+    private int topK;
+
+    @Param({"4", "10"})
+    private int oversampling;
+
+    private static final int QUERIES = 64;
+
+    private float[][] vectors;
+
+    private short[][] halfVectors;
+
+    private long[][] bitVectors;
+
+    private float[][] queries;
+
+    // results of the float baseline per query
+    private int[][] expected;
+
+    private int nextQuery;
+
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        float[][] centroids = new float[corpusSize / 50][];
+        for (int i = 0; i < centroids.length; i++) {
+            centroids[i] = gaussian(random, 1.0f);
+        }
+
+        vectors = new float[corpusSize][];
+        halfVectors = new short[corpusSize][];
+        bitVectors = new long[corpusSize][];
+        for (int i = 0; i < corpusSize; i++) {
+            vectors[i] = normalize(add(centroids[random.nextInt(centroids.length)], gaussian(random, 0.6f)));
+            halfVectors[i] = toHalf(vectors[i]);
+            bitVectors[i] = toBits(vectors[i]);
+        }
+
+        queries = new float[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = normalize(add(centroids[random.nextInt(centroids.length)], gaussian(random, 0.6f)));
+        }
+
+        expected = new int[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            expected[i] = search(queries[i], SearchQuantization.NONE);
+        }
+    }
+
+    @Benchmark
+    public int[] search(Recall recall) {
+        int query = nextQuery++ % QUERIES;
+        int[] found = search(queries[query], quantization);
+        recall.record(expected[query], found);
+        return found;
+    }
+
+    /**
+     * Recall@topK of the measured searches, a secondary result of the iteration in the JMH output.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Recall {
+
+        private long relevant;
+
+        private long retrieved;
+
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            relevant = 0;
+            retrieved = 0;
+        }
+
+        public double recall() {
+            return relevant == 0 ? 0 : (double) retrieved / relevant;
+        }
+
+        void record(int[] expected, int[] found) {
+            relevant += expected.length;
+            retrieved += overlap(expected, found);
+        }
+    }
+
+    private int[] search(float[] query, SearchQuantization mode) {
+        if (mode == SearchQuantization.NONE) {
+            return nearest(topK, node -> dot(query, vectors[node]), IntStream.range(0, corpusSize).toArray());
+        }
+
+        int[] candidates;
+        if (mode == SearchQuantization.HALFVEC) {
+            candidates = nearest(topK * oversampling, node -> dotHalf(query, halfVectors[node]),
+                    IntStream.range(0, corpusSize).toArray());
+        } else {
+            long[] queryBits = toBits(query);
+            candidates = nearest(topK * oversampling, node -> -hamming(queryBits, bitVectors[node]),
+                    IntStream.range(0, corpusSize).toArray());
+        }
+        return nearest(topK, node -> dot(query, vectors[node]), candidates);
+    }
+
+    private static int[] nearest(int k, NodeScore score, int[] nodes) {
+        // the k best so far, the worst first
+        int[] best = new int[Math.min(k, nodes.length)];
+        double[] bestScores = new double[best.length];
+        Arrays.fill(bestScores, Double.NEGATIVE_INFINITY);
+
+        for (int node : nodes) {
+            double nodeScore = score.of(node);
+            if (nodeScore <= bestScores[0]) {
+                continue;
+            }
+            int i = 0;
+            while (i + 1 < best.length && bestScores[i + 1] < nodeScore) {
+                best[i] = best[i + 1];
+                bestScores[i] = bestScores[i + 1];
+                i++;
+            }
+            best[i] = node;
+            bestScores[i] = nodeScore;
+        }
+        return best;
+    }
+
+    // plain loops, as it runs within the measured search
+    private static int overlap(int[] expected, int[] actual) {
+        int overlap = 0;
+        for (int node : actual) {
+            for (int expectedNode : expected) {
+                if (node == expectedNode) {
+                    overlap++;
+                    break;
+                }
+            }
+        }
+        return overlap;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static float dotHalf(float[] a, short[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * Float.float16ToFloat(b[i]);
+        }
+        return sum;
+    }
+
+    private static int hamming(long[] a, long[] b) {
+        int distance = 0;
+        for (int i = 0; i < a.length; i++) {
+            distance += Long.bitCount(a[i] ^ b[i]);
+        }
+        return distance;
+    }
+
+    private static short[] toHalf(float[] vector) {
+        short[] half = new short[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            half[i] = Float.floatToFloat16(vector[i]);
+        }
+        return half;
+    }
+
+    // binary_quantize of pgvector: a bit per dimension, set for positive values
+    private static long[] toBits(float[] vector) {
+        long[] bits = new long[(vector.length + 63) / 64];
+        for (int i = 0; i < vector.length; i++) {
+            if (vector[i] > 0) {
+                bits[i / 64] |= 1L << (i % 64);
+            }
+        }
+        return bits;
+    }
+
+    private float[] gaussian(Random random, float scale) {
+        float[] vector = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = (float) random.nextGaussian() * scale;
+        }
+        return vector;
+    }
+
+    private static float[] add(float[] a, float[] b) {
+        float[] sum = new float[a.length];
+        for (int i = 0; i < a.length; i++) {
+            sum[i] = a[i] + b[i];
+        }
+        return sum;
+    }
+
+    private static float[] normalize(float[] vector) {
+        float norm = (float) Math.sqrt(dot(vector, vector));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+        return vector;
+    }
+
+    @FunctionalInterface
+    private interface NodeScore {
+        double of(int node);
+    }
+}
@@ -0,0 +1,72 @@
+package com.glvov.springairag.benchmark;
+
+import com.glvov.springairag.advisor.RagAdvisor;
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.benchmark.SyntheticCorpus.CorpusLanguage;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.SimpleVectorStore;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RagAdvisor#before} end to end against an in-memory {@link SimpleVectorStore} and {@link StubEmbeddingModel}:
+ * query embedding, similarity search over {@code corpusSize} chunks, optional rerank and prompt rendering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RagAdvisorBenchmark {
+
+    @Param({"EN", "RU", "DE", "MIXED"})
+    private CorpusLanguage language;
+
+    @Param({"1000"})
+    private int corpusSize;
+
+    @Param({"true", "false"})
+    private boolean rerankEnabled;
+
+    private RagAdvisor ragAdvisor;
+
+    private ChatClientRequest request;
+
+    private final AdvisorChain advisorChain = new AdvisorChain() {
+    };
+
+
+    @Setup
+    public void setUp() {
+        BM25RerankEngine rerankEngine = BM25RerankEngine.builder().build();
+        SimpleVectorStore vectorStore = SimpleVectorStore.builder(new StubEmbeddingModel()).build();
+
+        List<Document> chunks = SyntheticCorpus.documents(language, corpusSize, 60).stream()
+                .map(chunk -> new Document(chunk.getId(), chunk.getText(), rerankEngine.analyze(chunk.getText()).toMetadata()))
+                .toList();
+        vectorStore.accept(chunks);
+
+        ragAdvisor = RagAdvisor.build(vectorStore)
+                .rerankEnabled(rerankEnabled)
+                .rerankEngine(rerankEngine)
+                .searchRequest(SearchRequest.builder().topK(4).similarityThreshold(0.0).build())
+                .build();
+
+        request = ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(language.query())))
+                .build();
+    }
+
+    @Benchmark
+    public ChatClientRequest before() {
+        return ragAdvisor.before(request, advisorChain);
+    }
+}
@@ -0,0 +1,67 @@
+package com.glvov.springairag.benchmark;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Offline replacement of the Ollama/Mistral embedding model: hashes words of the text into a normalized
+ * bag-of-words vector, so texts sharing words are similar and search results stay meaningful.
+ */
+public class StubEmbeddingModel implements EmbeddingModel {
+
+    public static final int DIMENSIONS = 1024;
+
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        List<Embedding> embeddings = new ArrayList<>(request.getInstructions().size());
+
+        for (int i = 0; i < request.getInstructions().size(); i++) {
+            embeddings.add(new Embedding(embed(request.getInstructions().get(i)), i));
+        }
+
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(String text) {
+        float[] vector = new float[DIMENSIONS];
+
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                vector[Math.floorMod(word.hashCode(), DIMENSIONS)] += 1f;
+            }
+        }
+
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+
+        return vector;
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return DIMENSIONS;
+    }
+}
@@ -0,0 +1,95 @@
+package com.glvov.springairag.benchmark;
+
+import org.springframework.ai.document.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic EN/RU/DE texts resembling the PlatformX knowledge base, so benchmarks run offline
+ * and produce comparable numbers between runs.
+ */
+public final class SyntheticCorpus {
+
+    private static final long SEED = 42;
+
+    private SyntheticCorpus() {
+    }
+
+    public enum CorpusLanguage {
+
+        EN(List.of("PlatformX", "component", "processes", "payment", "events", "in", "real", "time", "worker", "pool",
+                "queue", "restart", "error", "code", "PX-404", "means", "that", "the", "event", "was", "not", "found",
+                "support", "team", "answers", "questions", "about", "configuration", "timeout", "retry", "database",
+                "connection", "temperature", "controls", "randomness", "of", "model", "answers", "sampling", "tokens"),
+                "What does error code PX-404 mean for the payment queue?"),
+
+        RU(List.of("PlatformX", "компонент", "обрабатывает", "платежные", "события", "в", "реальном", "времени",
+                "пул", "воркеров", "очередь", "перезапуск", "ошибка", "код", "PX-404", "означает", "что", "событие",
+                "не", "найдено", "команда", "поддержки", "отвечает", "на", "вопросы", "о", "конфигурации", "таймаут",
+                "повтор", "база", "данных", "соединение", "температура", "управляет", "случайностью", "ответов",
+                "модели", "выборка", "токенов"),
+                "Что означает код ошибки PX-404 для очереди платежей?"),
+
+        DE(List.of("PlatformX", "Komponente", "verarbeitet", "Zahlungsereignisse", "in", "Echtzeit", "Arbeiter",
+                "Warteschlange", "Neustart", "Fehler", "Code", "PX-404", "bedeutet", "dass", "das", "Ereignis",
+                "nicht", "gefunden", "wurde", "Support", "Team", "beantwortet", "Fragen", "zur", "Konfiguration",
+                "Zeitüberschreitung", "Wiederholung", "Datenbank", "Verbindung", "Temperatur", "steuert",
+                "Zufälligkeit", "der", "Modellantworten", "Stichprobe", "Token"),
+                "Was bedeutet der Fehlercode PX-404 für die Zahlungswarteschlange?"),
+
+        MIXED(List.of(), "What does error code PX-404 mean?");
+
+        private final List<String> vocabulary;
+        private final String query;
+
+        CorpusLanguage(List<String> vocabulary, String query) {
+            this.vocabulary = vocabulary;
+            this.query = query;
+        }
+
+        public String query() {
+            return query;
+        }
+
+        private List<String> vocabulary(int textIndex) {
+            return this == MIXED ? values()[textIndex % 3].vocabulary : vocabulary;
+        }
+    }
+
+    /**
+     * @param count          number of texts
+     * @param wordsPerText   approximate chunk size, {@code TokenTextSplitter} chunks of 100 tokens hold ~60 words
+     */
+    public static List<String> texts(CorpusLanguage language, int count, int wordsPerText) {
+        Random random = new Random(SEED);
+        List<String> texts = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            List<String> vocabulary = language.vocabulary(i);
+            StringBuilder text = new StringBuilder();
+
+            for (int w = 0; w < wordsPerText; w++) {
+                text.append(vocabulary.get(random.nextInt(vocabulary.size())));
+                text.append(w % 12 == 11 ? ". " : " ");
+            }
+
+            texts.add(text.toString().trim());
+        }
+
+        return texts;
+    }
+
+    public static List<Document> documents(CorpusLanguage language, int count, int wordsPerText) {
+        List<String> texts = texts(language, count, wordsPerText);
+        List<Document> documents = new ArrayList<>(count);
+
+        for (int i = 0; i < texts.size(); i++) {
+            documents.add(new Document("chunk-" + i, texts.get(i), Map.of()));
+        }
+
+        return documents;
+    }
+}
@@ -0,0 +1,72 @@
+package com.glvov.springairag.benchmark;
+
+import com.github.pemistahl.lingua.api.Language;
+import com.glvov.springairag.advisor.misc.BM25DocumentStatistics;
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.advisor.misc.LanguageAnalyzerRegistry;
+import com.glvov.springairag.advisor.misc.LanguageAnalyzerRegistry.DetectionMode;
+import com.glvov.springairag.benchmark.SyntheticCorpus.CorpusLanguage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Language detection alone and full chunk analysis (detection + Lucene analysis + term counting),
+ * the work done once per chunk at ingestion and once per query at rerank time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizationBenchmark {
+
+    private static final int TEXTS = 64;
+
+    @Param({"EN", "RU", "DE"})
+    private CorpusLanguage language;
+
+    @Param({"HIGH_ACCURACY", "LOW_ACCURACY"})
+    private DetectionMode detectionMode;
+
+    @Param({"60"})
+    private int wordsPerChunk;
+
+    private LanguageAnalyzerRegistry analyzerRegistry;
+
+    private BM25RerankEngine engine;
+
+    private List<String> texts;
+
+    private int next;
+
+
+    @Setup
+    public void setUp() {
+        analyzerRegistry = new LanguageAnalyzerRegistry(detectionMode);
+        engine = BM25RerankEngine.builder().analyzerRegistry(analyzerRegistry).build();
+        texts = SyntheticCorpus.texts(language, TEXTS, wordsPerChunk);
+    }
+
+    @Benchmark
+    public Language detectLanguage() {
+        return analyzerRegistry.detectLanguage(nextText());
+    }
+
+    @Benchmark
+    public BM25DocumentStatistics analyzeChunk() {
+        return engine.analyze(nextText());
+    }
+
+    @Benchmark
+    public BM25DocumentStatistics analyzeQuery() {
+        return engine.analyze(language.query());
+    }
+
+    private String nextText() {
+        next = (next + 1) % TEXTS;
+        return texts.get(next);
+    }
+}
@@ -0,0 +1,277 @@
+package com.glvov.springairag.advisor;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClientMessageAggregator;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisor;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.lang.Nullable;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static com.glvov.springairag.advisor.RagAdvisor.RAG_QUESTION;
+import static com.glvov.springairag.advisor.RagAdvisor.RETRIEVED_CHUNK_IDS;
+
+/**
+ * Answers a question with a previous answer to a near-identical question over the same chunks,
+ * skipping the LLM generation.
+ * <br><br>
+ * Placed right after {@link RagAdvisor}, which leaves the original question and the ids of the chunks
+ * put into the prompt in the request context:
+ * <ul>
+ *     <li>answers are grouped by the fingerprint of the retrieved chunk ids and of the messages before
+ *     the question (the chat history and the summary added by the chat memory, the system prompt),
+ *     so an answer is only reused with the same context, and a changed chunk (a new content-derived id)
+ *     never matches;</li>
+ *     <li>within the group, the answer to the most similar question is reused if the cosine similarity of
+ *     the embeddings of the original questions is at least {@code similarityThreshold}. The embedding comes
+ *     from the embedding model: {@link RagAdvisor} usually embedded the original question too, so it's a hit of
+ *     {@link com.glvov.springairag.embedding.CachingEmbeddingModel} (when enabled). Not when the question was
+ *     expanded into a single query: only the expansion was searched, and the lookup costs an extra embedding
+ *     call on the request path;</li>
+ *     <li>a cached answer is returned as a single response to calls and replayed word by word to streams,
+ *     so the SSE path behaves the same way as with a generated answer, including the chat memory.</li>
+ * </ul>
+ * The history is part of the key because the answer depends on it: a follow-up like "and the second one?"
+ * means something else in every conversation and must never get the answer written for another one,
+ * possibly of another user. First questions of conversations share their answers.
+ * <br><br>
+ * {@code answerCache} bounds the number of answers, entries older than {@code ttl} are not reused.
+ * {@link #invalidateAll()} drops all answers, it's called when RAG documents change, so that no answer
+ * outlives the documents it was generated from. Lookups are counted in the {@code rag.answer-cache.requests} meter.
+ */
+@Slf4j
+@Builder
+public class AnswerCacheAdvisor implements CallAdvisor, StreamAdvisor {
+
+    /**
+     * Set in the response context when the answer comes from the cache.
+     */
+    public static final String CACHED_ANSWER = "CACHED_ANSWER";
+
+    private static final String CACHE_METER = "rag.answer-cache.requests";
+
+    @Getter
+    private final int order;
+
+    private final EmbeddingModel embeddingModel;
+
+    /**
+     * Answers by chunk and history fingerprint, expected to be weighed by the number of answers.
+     */
+    private final Cache<String, List<CachedAnswer>> answerCache;
+
+    @Builder.Default
+    private final double similarityThreshold = 0.95;
+
+    @Builder.Default
+    private final Duration ttl = Duration.ofHours(1);
+
+    @Builder.Default
+    private final MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+
+    public static AnswerCacheAdvisorBuilder builder(EmbeddingModel embeddingModel,
+                                                    Cache<String, List<CachedAnswer>> answerCache) {
+        return new AnswerCacheAdvisorBuilder().embeddingModel(embeddingModel).answerCache(answerCache);
+    }
+
+    @Override
+    public String getName() {
+        return getClass().getSimpleName();
+    }
+
+    @Override
+    public ChatClientResponse adviseCall(ChatClientRequest chatClientRequest, CallAdvisorChain callAdvisorChain) {
+        Lookup lookup = lookup(chatClientRequest);
+        if (lookup == null) {
+            return callAdvisorChain.nextCall(chatClientRequest);
+        }
+        if (lookup.answer() != null) {
+            return cachedResponse(chatClientRequest, lookup.answer());
+        }
+
+        ChatClientResponse response = callAdvisorChain.nextCall(chatClientRequest);
+        store(lookup, response);
+        return response;
+    }
+
+    @Override
+    public Flux<ChatClientResponse> adviseStream(ChatClientRequest chatClientRequest,
+                                                 StreamAdvisorChain streamAdvisorChain) {
+        // the embedding call blocks, so it's made on subscription, on the thread of the previous advisor
+        return Mono.fromCallable(() -> Optional.ofNullable(lookup(chatClientRequest)))
+                .flatMapMany(lookup -> {
+                    if (lookup.isEmpty()) {
+                        return streamAdvisorChain.nextStream(chatClientRequest);
+                    }
+                    if (lookup.get().answer() != null) {
+                        return replay(chatClientRequest, lookup.get().answer());
+                    }
+                    return new ChatClientMessageAggregator().aggregateChatClientResponse(
+                            streamAdvisorChain.nextStream(chatClientRequest),
+                            response -> store(lookup.get(), response)
+                    );
+                });
+    }
+
+    /**
+     * @return {@code null} when the request isn't cacheable, a lookup without an answer on a miss
+     */
+    @Nullable
+    private Lookup lookup(ChatClientRequest request) {
+        if (!(request.context().get(RAG_QUESTION) instanceof String question)
+                || !(request.context().get(RETRIEVED_CHUNK_IDS) instanceof Collection<?> chunkIds)) {
+            countOutcome("bypass");
+            return null;
+        }
+
+        float[] embedding = normalize(embeddingModel.embed(question));
+        String fingerprint = fingerprint(chunkIds, history(request.prompt().getInstructions()));
+        long minCreatedAtNanos = System.nanoTime() - ttl.toNanos();
+
+        List<CachedAnswer> answers = answerCache.getIfPresent(fingerprint);
+        CachedAnswer best = null;
+        double bestSimilarity = similarityThreshold;
+        for (CachedAnswer answer : answers != null ? answers : List.<CachedAnswer>of()) {
+            double similarity = dot(embedding, answer.embedding());
+            if (answer.createdAtNanos() - minCreatedAtNanos >= 0 && similarity >= bestSimilarity) {
+                best = answer;
+                bestSimilarity = similarity;
+            }
+        }
+
+        countOutcome(best != null ? "hit" : "miss");
+        return new Lookup(fingerprint, embedding, best != null ? best.answer() : null);
+    }
+
+    private void store(Lookup lookup, ChatClientResponse response) {
+        String answer = Optional.ofNullable(response.chatResponse())
+                .map(ChatResponse::getResult)
+                .map(generation -> generation.getOutput().getText())
+                .orElse(null);
+        if (!StringUtils.hasText(answer)) {
+            return;
+        }
+
+        CachedAnswer cachedAnswer = new CachedAnswer(lookup.embedding(), answer, System.nanoTime());
+        long minCreatedAtNanos = cachedAnswer.createdAtNanos() - ttl.toNanos();
+        answerCache.asMap().compute(lookup.fingerprint(), (fingerprint, answers) -> {
+            List<CachedAnswer> updated = new ArrayList<>();
+            if (answers != null) {
+                answers.stream()
+                        .filter(cached -> cached.createdAtNanos() - minCreatedAtNanos >= 0)
+                        .forEach(updated::add);
+            }
+            updated.add(cachedAnswer);
+            return List.copyOf(updated);
+        });
+    }
+
+    /**
+     * Drops all cached answers.
+     */
+    public void invalidateAll() {
+        answerCache.invalidateAll();
+        log.info("Answer cache invalidated");
+    }
+
+    private static ChatClientResponse cachedResponse(ChatClientRequest request, String text) {
+        return ChatClientResponse.builder()
+                .chatResponse(new ChatResponse(List.of(new Generation(new AssistantMessage(text)))))
+                .context(request.context())
+                .context(CACHED_ANSWER, true)
+                .build();
+    }
+
+    /**
+     * Streams the answer a word (with the whitespace after it) per response, like an LLM streams tokens.
+     */
+    private static Flux<ChatClientResponse> replay(ChatClientRequest request, String answer) {
+        return Flux.fromArray(answer.split("(?<=\\s)(?=\\S)"))
+                .map(word -> cachedResponse(request, word));
+    }
+
+    /**
+     * Messages before the last user message, which is the question augmented by {@link RagAdvisor}.
+     */
+    private static List<Message> history(List<Message> instructions) {
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            if (instructions.get(i).getMessageType() == MessageType.USER) {
+                return instructions.subList(0, i);
+            }
+        }
+        return instructions;
+    }
+
+    private static String fingerprint(Collection<?> chunkIds, List<Message> history) {
+        String sortedIds = chunkIds.stream()
+                .map(String::valueOf)
+                .sorted()
+                .collect(Collectors.joining("\n"));
+        String messages = history.stream()
+                .map(message -> message.getMessageType() + ":" + message.getText())
+                .collect(Collectors.joining("\n\u0000"));
+        return DigestUtils.md5DigestAsHex((sortedIds + "\n\u0000\u0000" + messages).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = Math.sqrt(dot(vector, vector));
+        float[] normalized = Arrays.copyOf(vector, vector.length);
+        if (norm > 0) {
+            for (int i = 0; i < normalized.length; i++) {
+                normalized[i] /= (float) norm;
+            }
+        }
+        return normalized;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private void countOutcome(String outcome) {
+        meterRegistry.counter(CACHE_METER, "outcome", outcome).increment();
+    }
+
+    /**
+     * @param embedding normalized question embedding
+     */
+    public record CachedAnswer(float[] embedding, String answer, long createdAtNanos) {
+    }
+
+    private record Lookup(String fingerprint, float[] embedding, @Nullable String answer) {
+    }
+}
@@ -1,5 +1,11 @@
 package com.glvov.springairag.advisor;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.glvov.springairag.advisor.misc.BM25CorpusStatistics;
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.advisor.misc.LanguageAnalyzerRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import lombok.Builder;
 import lombok.Getter;
 import org.springframework.ai.chat.client.ChatClient;
@@ -7,13 +13,27 @@ import org.springframework.ai.chat.client.ChatClientRequest;
 import org.springframework.ai.chat.client.ChatClientResponse;
 import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
 import org.springframework.ai.chat.client.advisor.api.BaseAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
 import org.springframework.ai.chat.prompt.PromptTemplate;
 import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.lang.Nullable;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static com.glvov.springairag.utils.FileLoader.loadFile;
+import static com.glvov.springairag.utils.QueryNormalizer.normalize;
 
 /**
  * This advisor enriches the user's original query with additional
@@ -61,47 +81,321 @@ import static com.glvov.springairag.utils.FileLoader.loadFile;
  * This expansion is used ONLY for similarity search score improvement for relevant docs in RAG.
  * The LLM still receives the original user question as-is.
  * The advisor uses its own chat client to get the final version of enriched question
+ * <br>
+ * <br>
+ * SKIPPING THE LLM CALL:
+ * <br>
+ * The expansion is a full blocking LLM round trip before retrieval even starts, so it is paid only when worth it:
+ * <ul>
+ *     <li>The expansion runs at temperature 0 and is deterministic, so results are cached by the normalized
+ *     question and the expansion prompt hash (see {@code expansionCache}).</li>
+ *     <li>Questions longer than {@code maxQuestionWords} words already carry enough terms for the similarity search.</li>
+ *     <li>Questions made mostly of rare corpus terms (found in at most {@code rareTermMaxDocumentRatio}
+ *     of all chunks, e.g. an error code) already pinpoint the relevant chunks. A single rare term, like a name,
+ *     among generic words is not enough, such questions are still expanded.</li>
+ * </ul>
+ * Every decision is counted in the {@code rag.expansion.requests} meter tagged with its {@code outcome}.
+ * <br><br>
+ * SPECULATIVE RETRIEVAL:
+ * <br>
+ * When {@code speculativeExecutor} is set, the LLM call doesn't block the advisor chain. It runs on that executor
+ * and the request context gets a {@link PendingExpansion} instead of {@link #ENRICHED_QUESTION}, so that
+ * {@link RagAdvisor} searches with the original question while the expansion is in flight, and merges in
+ * the enriched search results if the expansion arrives within {@code latencyBudget}.
+ * Cached expansions are still put into the context directly.
+ * <br><br>
+ * MULTI-QUERY EXPANSION:
+ * <br>
+ * With {@code subQueries} above 1, the question is rewritten into that many search queries instead,
+ * e.g. one per language of a bilingual knowledge base, passed on one per line (see {@link #queries(String)})
+ * wherever the enriched question would be. {@link RagAdvisor} searches them concurrently and fuses the results.
+ * <br><br>
+ * STREAMING:
+ * <br>
+ * On the stream path the expansion LLM call is streamed and collected instead of waited for, so no thread
+ * is blocked while the expansion is generated, the rest of the chain is subscribed to once it's complete.
  */
 @Builder
 public class ExpansionQueryAdvisor implements BaseAdvisor {
 
     public static final String ENRICHED_QUESTION = "ENRICHED_QUESTION";
 
+    public static final String PENDING_EXPANSION = "PENDING_EXPANSION";
+
     private static final String ORIGINAL_QUESTION = "ORIGINAL_QUESTION";
 
     private static final String EXPANSION_QUERY_PROMPT = loadFile("/ai/prompts/expansion_query.txt");
 
+    private static final String EXPANSION_QUERY_PROMPT_HASH =
+            DigestUtils.md5DigestAsHex(EXPANSION_QUERY_PROMPT.getBytes(StandardCharsets.UTF_8));
+
+    private static final String MULTI_QUERY_PROMPT = loadFile("/ai/prompts/multi_query.txt");
+
+    private static final String MULTI_QUERY_PROMPT_HASH =
+            DigestUtils.md5DigestAsHex(MULTI_QUERY_PROMPT.getBytes(StandardCharsets.UTF_8));
+
+    private static final Pattern LINE_BREAKS = Pattern.compile("\\s*\\R\\s*");
+
+    // numbering and bullets models add to lists despite the instructions
+    private static final Pattern LIST_MARKER = Pattern.compile("^(\\d+[.)]|[-*•])\\s+");
+
+    private static final Pattern QUESTION_WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final String EXPANSION_METER = "rag.expansion.requests";
+
     @Getter
     private final int order;
 
     private final ChatClient chatClient;
 
+    /**
+     * Enriched questions by expansion prompt hash and normalized question, no caching when absent.
+     */
+    @Nullable
+    private final Cache<String, String> expansionCache;
+
+    @Builder.Default
+    private final int maxQuestionWords = Integer.MAX_VALUE;
+
+    /**
+     * Share of chunks a term may occur in to be considered rare, {@code 0} disables the rule.
+     * Expansion is skipped when more than half of the question terms, stopwords aside, are rare.
+     */
+    @Builder.Default
+    private final double rareTermMaxDocumentRatio = 0.0;
+
+    /**
+     * Used to analyze question terms the same way chunks were analyzed, required by the rare term rule.
+     */
+    @Nullable
+    private final BM25RerankEngine rerankEngine;
+
+    @Nullable
+    private final BM25CorpusStatistics corpusStatistics;
+
+    @Builder.Default
+    private final MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+    /**
+     * Runs expansion LLM calls off the advisor chain, speculative retrieval is disabled when absent.
+     */
+    @Nullable
+    private final Executor speculativeExecutor;
+
+    /**
+     * Time since the start of the expansion call after which speculative search results are used alone.
+     */
+    @Builder.Default
+    private final Duration latencyBudget = Duration.ofSeconds(2);
+
+    /**
+     * Search queries the question is rewritten into, a single enriched question when 1.
+     */
+    @Builder.Default
+    private final int subQueries = 1;
+
 
     public static ExpansionQueryAdvisorBuilder builder(ChatClient chatClient) {
         return new ExpansionQueryAdvisorBuilder().chatClient(chatClient);
     }
 
+    /**
+     * Search queries of an expansion: its non-blank lines without list markers, without duplicates.
+     * An enriched question is a single line, so it's a single query.
+     */
+    public static List<String> queries(String expansion) {
+        return expansion.lines()
+                .map(line -> LIST_MARKER.matcher(line.strip()).replaceFirst("").strip())
+                .filter(StringUtils::hasText)
+                .distinct()
+                .toList();
+    }
+
     @Override
     public ChatClientRequest before(ChatClientRequest chatClientRequest, AdvisorChain advisorChain) {
         String userQuestion = chatClientRequest.prompt().getUserMessage().getText();
-        String enrichedQuestion = chatClient
-                .prompt()
-                .user(new PromptTemplate(EXPANSION_QUERY_PROMPT).render(Map.of("question", userQuestion)))
-                .call()
-                .content();
+        String cacheKey = cacheKey(userQuestion);
+
+        String enrichedQuestion = findCachedExpansion(cacheKey);
+        if (enrichedQuestion == null && shouldExpand(userQuestion)) {
+            if (speculativeExecutor != null) {
+                return withPendingExpansion(chatClientRequest, userQuestion, cacheKey);
+            }
+            enrichedQuestion = expand(userQuestion, cacheKey);
+        }
 
+        return withEnrichedQuestion(chatClientRequest, userQuestion, enrichedQuestion);
+    }
+
+    /**
+     * Same decisions as {@link #before(ChatClientRequest, AdvisorChain)}, but the expansion is streamed.
+     */
+    @Override
+    public Flux<ChatClientResponse> adviseStream(ChatClientRequest chatClientRequest,
+                                                 StreamAdvisorChain streamAdvisorChain) {
+        return Mono.defer(() -> {
+                    String userQuestion = chatClientRequest.prompt().getUserMessage().getText();
+                    String cacheKey = cacheKey(userQuestion);
+
+                    String enrichedQuestion = findCachedExpansion(cacheKey);
+                    if (enrichedQuestion == null && shouldExpand(userQuestion)) {
+                        if (speculativeExecutor != null) {
+                            return Mono.just(withPendingExpansion(chatClientRequest, userQuestion, cacheKey));
+                        }
+                        return expandStreaming(userQuestion, cacheKey)
+                                .map(expanded -> withEnrichedQuestion(chatClientRequest, userQuestion, expanded));
+                    }
+                    return Mono.just(withEnrichedQuestion(chatClientRequest, userQuestion, enrichedQuestion));
+                })
+                .flatMapMany(streamAdvisorChain::nextStream);
+    }
+
+    private String cacheKey(String userQuestion) {
+        String promptKey = subQueries > 1 ? MULTI_QUERY_PROMPT_HASH + ":" + subQueries : EXPANSION_QUERY_PROMPT_HASH;
+        return promptKey + ":" + normalize(userQuestion);
+    }
+
+    private ChatClientRequest withPendingExpansion(ChatClientRequest request, String userQuestion, String cacheKey) {
+        long deadlineNanos = System.nanoTime() + latencyBudget.toNanos();
+        CompletableFuture<String> expansion =
+                CompletableFuture.supplyAsync(() -> expand(userQuestion, cacheKey), speculativeExecutor);
+
+        return request.mutate()
+                .context(PENDING_EXPANSION, new PendingExpansion(expansion, deadlineNanos))
+                .context(ORIGINAL_QUESTION, userQuestion) // for logging purposes
+                .build();
+    }
+
+    private static ChatClientRequest withEnrichedQuestion(ChatClientRequest request, String userQuestion,
+                                                          @Nullable String enrichedQuestion) {
         if (!StringUtils.hasText(enrichedQuestion)) {
-            return chatClientRequest;
+            return request;
         }
 
-        return chatClientRequest.mutate()
+        return request.mutate()
                 .context(ENRICHED_QUESTION, enrichedQuestion)
                 .context(ORIGINAL_QUESTION, userQuestion) // for logging purposes
                 .build();
     }
 
+    @Nullable
+    private String findCachedExpansion(String cacheKey) {
+        String cachedQuestion = expansionCache != null ? expansionCache.getIfPresent(cacheKey) : null;
+        if (cachedQuestion != null) {
+            countOutcome("cached");
+        }
+        return cachedQuestion;
+    }
+
+    private boolean shouldExpand(String userQuestion) {
+        if (userQuestion.trim().split("\\s+").length > maxQuestionWords) {
+            countOutcome("skipped_long");
+            return false;
+        }
+
+        if (consistsOfRareCorpusTerms(userQuestion)) {
+            countOutcome("skipped_rare_term");
+            return false;
+        }
+
+        return true;
+    }
+
+    @Nullable
+    private String expand(String userQuestion, String cacheKey) {
+        String enrichedQuestion = toExpansion(chatClient
+                .prompt()
+                .user(expansionPrompt(userQuestion))
+                .call()
+                .content());
+
+        onExpanded(cacheKey, enrichedQuestion);
+        return enrichedQuestion;
+    }
+
+    /**
+     * @return the enriched question, empty when the LLM returned nothing
+     */
+    private Mono<String> expandStreaming(String userQuestion, String cacheKey) {
+        return chatClient
+                .prompt()
+                .user(expansionPrompt(userQuestion))
+                .stream()
+                .content()
+                .collect(Collectors.joining())
+                .map(this::toExpansion)
+                .doOnNext(enrichedQuestion -> onExpanded(cacheKey, enrichedQuestion));
+    }
+
+    private String expansionPrompt(String userQuestion) {
+        if (subQueries > 1) {
+            return new PromptTemplate(MULTI_QUERY_PROMPT)
+                    .render(Map.of("question", userQuestion, "count", subQueries));
+        }
+        return new PromptTemplate(EXPANSION_QUERY_PROMPT).render(Map.of("question", userQuestion));
+    }
+
+    /**
+     * Keeps at most {@code subQueries} queries, one per line, or makes the enriched question a single line,
+     * so that it's never taken for several queries.
+     */
+    @Nullable
+    private String toExpansion(@Nullable String generated) {
+        if (generated == null) {
+            return null;
+        }
+        if (subQueries > 1) {
+            return queries(generated).stream()
+                    .limit(subQueries)
+                    .collect(Collectors.joining("\n"));
+        }
+        return LINE_BREAKS.matcher(generated.strip()).replaceAll(" ");
+    }
+
+    private void onExpanded(String cacheKey, @Nullable String enrichedQuestion) {
+        if (expansionCache != null && StringUtils.hasText(enrichedQuestion)) {
+            expansionCache.put(cacheKey, enrichedQuestion);
+        }
+
+        countOutcome("expanded");
+    }
+
+    private boolean consistsOfRareCorpusTerms(String userQuestion) {
+        if (rareTermMaxDocumentRatio <= 0 || rerankEngine == null || corpusStatistics == null
+                || corpusStatistics.documentCount() == 0) {
+            return false;
+        }
+
+        double maxDocumentFrequency = rareTermMaxDocumentRatio * corpusStatistics.documentCount();
+
+        String contentWords = QUESTION_WORD_SEPARATOR.splitAsStream(userQuestion)
+                .filter(word -> !word.isEmpty() && !LanguageAnalyzerRegistry.QUERY_STOPWORDS.contains(word))
+                .collect(Collectors.joining(" "));
+        Set<String> terms = rerankEngine.analyze(contentWords).termFrequencies().keySet();
+        long rareTerms = terms.stream()
+                .mapToInt(corpusStatistics::documentFrequency)
+                .filter(documentFrequency -> documentFrequency > 0 && documentFrequency <= maxDocumentFrequency)
+                .count();
+
+        return rareTerms * 2 > terms.size();
+    }
+
+    private void countOutcome(String outcome) {
+        meterRegistry.counter(EXPANSION_METER, "outcome", outcome).increment();
+    }
+
     @Override
     public ChatClientResponse after(ChatClientResponse chatClientResponse, AdvisorChain advisorChain) {
         return chatClientResponse;
     }
+
+    /**
+     * Expansion LLM call in flight.
+     *
+     * @param enrichedQuestion completes with the enriched question (or the sub-queries, one per line),
+     *                         or {@code null} when the LLM returned nothing
+     * @param deadlineNanos    {@link System#nanoTime()} after which the expansion is not waited for
+     */
+    public record PendingExpansion(CompletableFuture<String> enrichedQuestion, long deadlineNanos) {
+    }
 }
@@ -0,0 +1,139 @@
+package com.glvov.springairag.advisor;
+
+import com.glvov.springairag.advisor.misc.PipelineMetrics;
+import com.glvov.springairag.advisor.misc.PipelineMetrics.Mode;
+import lombok.Builder;
+import lombok.Getter;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisor;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Times the LLM generation, the last stage of the pipeline, placed right before the model is called,
+ * so the prompt it sees is the final one. Records the {@code generation} stage, time to first token,
+ * tokens per second and prompt tokens, see {@link PipelineMetrics}.
+ * <br><br>
+ * Token counts come from the usage reported by the model, the prompt and the answer are counted with
+ * {@code tokenCountEstimator} when the model doesn't report them. Answers served by
+ * {@link AnswerCacheAdvisor} never reach this advisor, so only actual generations are measured.
+ */
+@Builder
+public class GenerationMetricsAdvisor implements CallAdvisor, StreamAdvisor {
+
+    private static final String STAGE = "generation";
+
+    @Getter
+    private final int order;
+
+    private final PipelineMetrics metrics;
+
+    @Builder.Default
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator();
+
+
+    @Override
+    public String getName() {
+        return getClass().getSimpleName();
+    }
+
+    @Override
+    public ChatClientResponse adviseCall(ChatClientRequest chatClientRequest, CallAdvisorChain callAdvisorChain) {
+        long start = System.nanoTime();
+        ChatClientResponse response;
+        try {
+            response = callAdvisorChain.nextCall(chatClientRequest);
+        } catch (RuntimeException e) {
+            metrics.recordStage(chatClientRequest, STAGE, Mode.CALL, System.nanoTime() - start, true);
+            throw e;
+        }
+
+        long nanos = System.nanoTime() - start;
+        metrics.recordStage(chatClientRequest, STAGE, Mode.CALL, nanos, false);
+        metrics.recordTimeToFirstToken(chatClientRequest, Mode.CALL, nanos);
+
+        Usage usage = usage(response.chatResponse());
+        recordTokens(chatClientRequest, Mode.CALL, usage, text(response.chatResponse()), nanos);
+        return response;
+    }
+
+    @Override
+    public Flux<ChatClientResponse> adviseStream(ChatClientRequest chatClientRequest,
+                                                 StreamAdvisorChain streamAdvisorChain) {
+        return Flux.defer(() -> {
+            long start = System.nanoTime();
+            AtomicLong firstTokenAt = new AtomicLong();
+            StringBuilder answer = new StringBuilder();
+            AtomicReference<Usage> lastUsage = new AtomicReference<>();
+
+            return streamAdvisorChain.nextStream(chatClientRequest)
+                    .doOnNext(response -> {
+                        String text = text(response.chatResponse());
+                        if (StringUtils.hasLength(text)) {
+                            if (answer.isEmpty()) {
+                                firstTokenAt.set(System.nanoTime());
+                                metrics.recordTimeToFirstToken(chatClientRequest, Mode.STREAM,
+                                        firstTokenAt.get() - start);
+                            }
+                            answer.append(text);
+                        }
+                        // streamed models report the usage of the whole generation in the last response
+                        Usage usage = usage(response.chatResponse());
+                        if (usage != null) {
+                            lastUsage.set(usage);
+                        }
+                    })
+                    .doOnComplete(() -> {
+                        long end = System.nanoTime();
+                        metrics.recordStage(chatClientRequest, STAGE, Mode.STREAM, end - start, false);
+                        long generationNanos = answer.isEmpty() ? 0 : end - firstTokenAt.get();
+                        recordTokens(chatClientRequest, Mode.STREAM, lastUsage.get(), answer.toString(),
+                                generationNanos);
+                    })
+                    .doOnError(error ->
+                            metrics.recordStage(chatClientRequest, STAGE, Mode.STREAM, System.nanoTime() - start, true));
+        });
+    }
+
+    private void recordTokens(ChatClientRequest request, Mode mode, @Nullable Usage usage, String answer,
+                              long generationNanos) {
+        long promptTokens = usage != null && usage.getPromptTokens() != null && usage.getPromptTokens() > 0
+                ? usage.getPromptTokens()
+                : tokenCountEstimator.estimate(request.prompt().getContents());
+        long completionTokens = usage != null && usage.getCompletionTokens() != null && usage.getCompletionTokens() > 0
+                ? usage.getCompletionTokens()
+                : tokenCountEstimator.estimate(answer);
+
+        metrics.recordPromptTokens(request, promptTokens);
+        metrics.recordTokensPerSecond(request, mode, completionTokens, generationNanos);
+    }
+
+    @Nullable
+    private static Usage usage(@Nullable ChatResponse chatResponse) {
+        if (chatResponse == null || chatResponse.getMetadata() == null) {
+            return null;
+        }
+        Usage usage = chatResponse.getMetadata().getUsage();
+        return usage != null && usage.getTotalTokens() != null && usage.getTotalTokens() > 0 ? usage : null;
+    }
+
+    private static String text(@Nullable ChatResponse chatResponse) {
+        if (chatResponse == null || chatResponse.getResult() == null) {
+            return "";
+        }
+        String text = chatResponse.getResult().getOutput().getText();
+        return text != null ? text : "";
+    }
+}
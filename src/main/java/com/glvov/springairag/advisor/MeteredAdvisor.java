@@ -0,0 +1,157 @@
+package com.glvov.springairag.advisor;
+
+import com.glvov.springairag.advisor.misc.PipelineMetrics;
+import com.glvov.springairag.advisor.misc.PipelineMetrics.Mode;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisor;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Times a stage of the advisor pipeline: the time spent in the wrapped advisor itself,
+ * without the advisors after it and the LLM call, in the {@link PipelineMetrics#STAGE_METER} meter.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>For calls, it's the whole advice minus the time of the rest of the chain.</li>
+ *     <li>For streams, it's the time from subscription to the stream of the advisor to subscription
+ *     to the rest of the chain, i.e. the work done before the request is passed on,
+ *     or to completion if the advisor answers by itself. Per-response work of the advisor is not timed.</li>
+ * </ul>
+ * Order and name are the ones of the wrapped advisor, so the wrapper takes its place in the chain.
+ */
+public class MeteredAdvisor implements CallAdvisor, StreamAdvisor {
+
+    private final CallAdvisor callAdvisor;
+
+    private final StreamAdvisor streamAdvisor;
+
+    private final String stage;
+
+    private final PipelineMetrics metrics;
+
+
+    private <A extends CallAdvisor & StreamAdvisor> MeteredAdvisor(A advisor, String stage, PipelineMetrics metrics) {
+        this.callAdvisor = advisor;
+        this.streamAdvisor = advisor;
+        this.stage = stage;
+        this.metrics = metrics;
+    }
+
+    public static <A extends CallAdvisor & StreamAdvisor> MeteredAdvisor of(A advisor, String stage,
+                                                                           PipelineMetrics metrics) {
+        return new MeteredAdvisor(advisor, stage, metrics);
+    }
+
+    @Override
+    public String getName() {
+        return callAdvisor.getName();
+    }
+
+    @Override
+    public int getOrder() {
+        return callAdvisor.getOrder();
+    }
+
+    @Override
+    public ChatClientResponse adviseCall(ChatClientRequest chatClientRequest, CallAdvisorChain callAdvisorChain) {
+        TimedCallAdvisorChain timedChain = new TimedCallAdvisorChain(callAdvisorChain);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ChatClientResponse response = callAdvisor.adviseCall(chatClientRequest, timedChain);
+            failed = false;
+            return response;
+        } finally {
+            long nanos = System.nanoTime() - start - timedChain.nanos;
+            metrics.recordStage(chatClientRequest, stage, Mode.CALL, nanos, failed && !timedChain.failed);
+        }
+    }
+
+    @Override
+    public Flux<ChatClientResponse> adviseStream(ChatClientRequest chatClientRequest,
+                                                 StreamAdvisorChain streamAdvisorChain) {
+        return Flux.defer(() -> {
+            long start = System.nanoTime();
+            AtomicBoolean recorded = new AtomicBoolean();
+
+            StreamAdvisorChain timedChain = new StreamAdvisorChain() {
+                @Override
+                public Flux<ChatClientResponse> nextStream(ChatClientRequest request) {
+                    return Flux.defer(() -> {
+                        recordStreamStage(chatClientRequest, start, recorded, false);
+                        return streamAdvisorChain.nextStream(request);
+                    });
+                }
+
+                @Override
+                public List<StreamAdvisor> getStreamAdvisors() {
+                    return streamAdvisorChain.getStreamAdvisors();
+                }
+
+                @Override
+                public ObservationRegistry getObservationRegistry() {
+                    return streamAdvisorChain.getObservationRegistry();
+                }
+            };
+
+            // no-ops once the rest of the chain is subscribed to, otherwise the advisor answered by itself or failed
+            return streamAdvisor.adviseStream(chatClientRequest, timedChain)
+                    .doOnComplete(() -> recordStreamStage(chatClientRequest, start, recorded, false))
+                    .doOnError(error -> recordStreamStage(chatClientRequest, start, recorded, true));
+        });
+    }
+
+    private void recordStreamStage(ChatClientRequest request, long start, AtomicBoolean recorded, boolean failed) {
+        if (recorded.compareAndSet(false, true)) {
+            metrics.recordStage(request, stage, Mode.STREAM, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Accumulates the time of the rest of the chain, which may be called more than once, e.g. on retries.
+     */
+    private static class TimedCallAdvisorChain implements CallAdvisorChain {
+
+        private final CallAdvisorChain delegate;
+
+        private long nanos;
+
+        private boolean failed;
+
+
+        TimedCallAdvisorChain(CallAdvisorChain delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ChatClientResponse nextCall(ChatClientRequest chatClientRequest) {
+            long start = System.nanoTime();
+            try {
+                return delegate.nextCall(chatClientRequest);
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public List<CallAdvisor> getCallAdvisors() {
+            return delegate.getCallAdvisors();
+        }
+
+        @Override
+        public ObservationRegistry getObservationRegistry() {
+            return delegate.getObservationRegistry();
+        }
+    }
+}
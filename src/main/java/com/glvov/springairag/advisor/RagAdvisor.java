@@ -1,12 +1,30 @@
 package com.glvov.springairag.advisor;
 
+import com.glvov.springairag.advisor.ExpansionQueryAdvisor.PendingExpansion;
 import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.advisor.misc.ContextPacker;
+import com.glvov.springairag.advisor.misc.ContextPacker.PackedContext;
+import com.glvov.springairag.advisor.misc.PipelineMetrics;
+import com.glvov.springairag.advisor.misc.RankFusion;
+import com.glvov.springairag.advisor.misc.SearchQuantization;
+import com.glvov.springairag.embedding.CachingEmbeddingModel;
+import com.glvov.springairag.repository.HybridSearchRepository;
+import com.glvov.springairag.repository.HybridSearchRepository.Weights;
+import com.glvov.springairag.repository.QuantizedVectorSearchRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import lombok.Builder;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClientRequest;
 import org.springframework.ai.chat.client.ChatClientResponse;
 import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
 import org.springframework.ai.chat.client.advisor.api.BaseAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.metadata.ChatResponseMetadata;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
 import org.springframework.ai.chat.prompt.PromptTemplate;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.embedding.EmbeddingModel;
@@ -14,12 +32,30 @@ import org.springframework.ai.vectorstore.SearchRequest;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static com.glvov.springairag.advisor.ExpansionQueryAdvisor.ENRICHED_QUESTION;
+import static com.glvov.springairag.advisor.ExpansionQueryAdvisor.PENDING_EXPANSION;
+import static com.glvov.springairag.advisor.ExpansionQueryAdvisor.queries;
 import static com.glvov.springairag.utils.FileLoader.loadFile;
 
 /**
@@ -37,18 +73,107 @@ import static com.glvov.springairag.utils.FileLoader.loadFile;
  *       </ol>
  *   </li>
  *   <li>Optionally reranks results using BM25 algorithm for improved relevance</li>
- *   <li>Formats retrieved documents into context for the LLM prompt</li>
+ *   <li>Packs retrieved documents into context for the LLM prompt without near-duplicates and within a token budget,
+ *   see {@link ContextPacker}, tokens of the context are reported in the {@code rag.context.tokens} meter and
+ *   in the {@link #RAG_CONTEXT_TOKENS} request context entry</li>
  *   <li>Augments the user's original question with this context</li>
  * </ul>
  * <br>
  * When reranking is enabled, the advisor initially retrieves twice the requested number of documents (topK * 2),
  * then applies BM25 reranking to select the most relevant subset, improving result quality.
+ * The rerank engine reads chunk statistics precomputed at ingestion time from the chunk metadata.
+ * <br><br>
+ * When {@link ExpansionQueryAdvisor} left a {@link PendingExpansion} in the context (speculative retrieval):
+ * <ul>
+ *     <li>the original question is searched right away, while the expansion LLM call is still in flight;</li>
+ *     <li>the enriched question is searched on {@code searchExecutor} as soon as the expansion arrives;</li>
+ *     <li>if the enriched search completes before the expansion deadline, both candidate sets are merged
+ *     by document id and best score, otherwise the speculative results are used alone.</li>
+ * </ul>
+ * Outcomes are counted in the {@code rag.retrieval.speculative} meter.
+ * <br><br>
+ * When the expansion holds several sub-queries (multi-query expansion, see {@link ExpansionQueryAdvisor}), they are
+ * searched together with the original question (fan-out):
+ * <ul>
+ *     <li>all queries are embedded with one request to the embedding model, the vector store then gets
+ *     each embedding from {@link CachingEmbeddingModel}, quantized and hybrid searches take them directly;</li>
+ *     <li>the searches run concurrently on {@code searchExecutor}, so the retrieval takes about as long
+ *     as the slowest of them;</li>
+ *     <li>results are deduplicated by chunk id and fused with {@code rankFusion}, their number is
+ *     recorded in the {@code rag.retrieval.queries} meter.</li>
+ * </ul>
+ * With speculative retrieval, the fused results replace the speculative ones when they arrive in time.
+ * <br><br>
+ * With a {@link SearchQuantization} other than {@code NONE}, searches bypass the vector store:
+ * {@code oversampling} times more candidates are found on the quantized embeddings and re-scored
+ * on the full ones by {@link QuantizedVectorSearchRepository}, with the same {@code searchRequest} settings.
+ * <br><br>
+ * With {@code hybrid} enabled, searches go to {@link HybridSearchRepository} instead, which fuses the vector search
+ * with a full-text one, so that exact terms (names, codes, identifiers) embeddings miss are still found.
+ * It takes precedence over quantization. The {@link #RETRIEVAL_TOP_K}, {@link #HYBRID_VECTOR_WEIGHT} and
+ * {@link #HYBRID_LEXICAL_WEIGHT} request context entries override {@code topK} and the fusion weights per request.
+ * <br><br>
+ * Search, rerank and packing times and the number of found documents are recorded in {@code pipelineMetrics}.
+ * <br><br>
+ * On the stream path, the retrieval (an embedding call and a JDBC search, both blocking) runs on
+ * {@code retrievalScheduler}, and the stream starts with a {@link #RETRIEVAL_DONE} response,
+ * so that the client sees progress before the first token.
  */
+@Slf4j
 @Builder
 public class RagAdvisor implements BaseAdvisor {
 
+    /**
+     * Original user question, left in the request context for the advisors after this one.
+     */
+    public static final String RAG_QUESTION = "RAG_QUESTION";
+
+    /**
+     * Ids of the chunks put into the prompt, in their order, left in the request context.
+     */
+    public static final String RETRIEVED_CHUNK_IDS = "RETRIEVED_CHUNK_IDS";
+
+    /**
+     * Tokens of the chunks put into the prompt, left in the request context.
+     */
+    public static final String RAG_CONTEXT_TOKENS = "RAG_CONTEXT_TOKENS";
+
+    /**
+     * Key of the {@link ChatResponseMetadata} of the first, empty, streamed response, sent once the chunks are
+     * retrieved and the prompt is sent to the LLM, the value is the number of chunks in the prompt.
+     */
+    public static final String RETRIEVAL_DONE = "RETRIEVAL_DONE";
+
+    /**
+     * Request context entry overriding the {@code topK} of {@code searchRequest}, a number or a numeric string,
+     * clamped to {@code maxTopK}.
+     */
+    public static final String RETRIEVAL_TOP_K = "RETRIEVAL_TOP_K";
+
+    /**
+     * Request context entry overriding the vector search weight of hybrid search, a number or a numeric string.
+     */
+    public static final String HYBRID_VECTOR_WEIGHT = "HYBRID_VECTOR_WEIGHT";
+
+    /**
+     * Request context entry overriding the full-text search weight of hybrid search, a number or a numeric string.
+     */
+    public static final String HYBRID_LEXICAL_WEIGHT = "HYBRID_LEXICAL_WEIGHT";
+
     private static final String RAG_PROMPT = loadFile("/ai/prompts/rag.txt");
 
+    private static final String SPECULATIVE_METER = "rag.retrieval.speculative";
+
+    private static final String CONTEXT_TOKENS_METER = "rag.context.tokens";
+
+    private static final String CONTEXT_CHUNKS_METER = "rag.context.chunks";
+
+    private static final String QUERIES_METER = "rag.retrieval.queries";
+
+    private static final Comparator<Document> BY_SCORE_DESC =
+            Comparator.comparingDouble((Document document) -> document.getScore() != null ? document.getScore() : 0.0)
+                    .reversed();
+
     /**
      * <p>
      * <b>Filtering by quantity (topK):</b>
@@ -76,14 +201,86 @@ public class RagAdvisor implements BaseAdvisor {
             .similarityThreshold(0.62)
             .build();
 
+    /**
+     * Upper limit of a {@link #RETRIEVAL_TOP_K} override, which may come from a client.
+     */
+    @Builder.Default
+    private final int maxTopK = 20;
+
+    /**
+     * Precision of the first search pass, see {@link SearchQuantization}.
+     */
+    @Builder.Default
+    private final SearchQuantization quantization = SearchQuantization.NONE;
+
+    /**
+     * Candidates of a quantized first pass per requested chunk.
+     */
+    @Builder.Default
+    private final int oversampling = 4;
+
+    /**
+     * Required with quantization, as well as {@code embeddingModel} for the query embedding.
+     */
+    private final QuantizedVectorSearchRepository quantizedSearchRepository;
+
+    private final EmbeddingModel embeddingModel;
+
+    /**
+     * Fuses vector and full-text search, required with {@code hybrid}, as well as {@code embeddingModel}.
+     */
+    private final HybridSearchRepository hybridSearchRepository;
+
+    @Builder.Default
+    private final boolean hybrid = false;
+
+    @Builder.Default
+    private final Weights hybridWeights = new Weights(1.0, 1.0, 60);
+
+    /**
+     * Chunks taken from each of the hybrid searches before fusion.
+     */
+    @Builder.Default
+    private final int hybridCandidates = 20;
+
     @Builder.Default
     private final boolean rerankEnabled = true;
 
+    @Builder.Default
+    private final BM25RerankEngine rerankEngine = BM25RerankEngine.builder().build();
+
+    @Builder.Default
+    private final ContextPacker contextPacker = ContextPacker.builder().build();
+
+    /**
+     * Fuses the results of the sub-queries of a multi-query expansion.
+     */
+    @Builder.Default
+    private final RankFusion rankFusion = RankFusion.builder().build();
+
     @Getter
     private final int order;
 
     private final VectorStore vectorStore;
 
+    /**
+     * Runs the enriched search of speculative retrieval and the searches of multi-query fan-out.
+     */
+    @Builder.Default
+    private final Executor searchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Builder.Default
+    private final MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+    @Builder.Default
+    private final PipelineMetrics pipelineMetrics = PipelineMetrics.builder().build();
+
+    /**
+     * Runs the blocking retrieval of streamed requests.
+     */
+    @Builder.Default
+    private final Scheduler retrievalScheduler = Schedulers.boundedElastic();
+
 
     public static RagAdvisorBuilder build(VectorStore vectorStore) {
         return new RagAdvisorBuilder().vectorStore(vectorStore);
@@ -93,46 +290,271 @@ public class RagAdvisor implements BaseAdvisor {
     public ChatClientRequest before(ChatClientRequest chatClientRequest, AdvisorChain advisorChain) {
         String originalUserQuestion = chatClientRequest.prompt().getUserMessage().getText();
 
-        String queryToRag = chatClientRequest.context()
-                .getOrDefault(ENRICHED_QUESTION, originalUserQuestion)
-                .toString();
+        SearchSettings settings = settings(chatClientRequest.context());
+        int candidates = rerankEnabled ? settings.topK() * 2 : settings.topK();
 
-        List<Document> documents = vectorStore.similaritySearch(
-                SearchRequest
-                        .from(searchRequest)
-                        .query(queryToRag)
-                        .topK(rerankEnabled ? searchRequest.getTopK() * 2 : searchRequest.getTopK())
-                        .build()
-        );
+        long searchStart = System.nanoTime();
+        Retrieval retrieval;
+        if (chatClientRequest.context().get(PENDING_EXPANSION) instanceof PendingExpansion pendingExpansion) {
+            retrieval = retrieveSpeculatively(originalUserQuestion, pendingExpansion, candidates, settings);
+        } else {
+            String queryToRag = chatClientRequest.context()
+                    .getOrDefault(ENRICHED_QUESTION, originalUserQuestion)
+                    .toString();
+            retrieval = retrieve(originalUserQuestion, queryToRag, candidates, settings);
+        }
+
+        List<Document> documents = retrieval.documents();
+        pipelineMetrics.recordRetrievalStep(chatClientRequest, "search", System.nanoTime() - searchStart);
+        pipelineMetrics.recordRetrievedDocuments(chatClientRequest, documents.size());
 
         if (documents.isEmpty()) {
             return chatClientRequest
                     .mutate()
                     .context("CONTEXT", "No documents found in Vector Store")
+                    .context(RAG_QUESTION, originalUserQuestion)
+                    .context(RETRIEVED_CHUNK_IDS, List.of())
                     .build();
         }
 
         if (rerankEnabled) {
-            BM25RerankEngine rerankEngine = BM25RerankEngine.builder().build();
-            documents = rerankEngine.rerank(documents, queryToRag, searchRequest.getTopK());
+            long rerankStart = System.nanoTime();
+            documents = rerankEngine.rerank(documents, retrieval.query(), settings.topK());
+            pipelineMetrics.recordRetrievalStep(chatClientRequest, "rerank", System.nanoTime() - rerankStart);
         }
 
         // this is not the context like in ExpansionAdvisor, it is the context for the LLM inside the prompt
-        String promptContext = documents.stream()
-                .map(Document::getText)
-                .collect(Collectors.joining(System.lineSeparator()));
+        long packingStart = System.nanoTime();
+        PackedContext promptContext = contextPacker.pack(documents);
+        pipelineMetrics.recordRetrievalStep(chatClientRequest, "packing", System.nanoTime() - packingStart);
+        recordPacking(promptContext);
 
         String finalUserPrompt = new PromptTemplate(RAG_PROMPT)
-                .render(Map.of("context", promptContext, "question", originalUserQuestion));
+                .render(Map.of("context", promptContext.text(), "question", originalUserQuestion));
 
         return chatClientRequest
                 .mutate()
                 .prompt(chatClientRequest.prompt().augmentUserMessage(finalUserPrompt))
+                .context(RAG_QUESTION, originalUserQuestion)
+                .context(RETRIEVED_CHUNK_IDS, promptContext.documents().stream().map(Document::getId).toList())
+                .context(RAG_CONTEXT_TOKENS, promptContext.tokens())
                 .build();
     }
 
+    @Override
+    public Flux<ChatClientResponse> adviseStream(ChatClientRequest chatClientRequest,
+                                                 StreamAdvisorChain streamAdvisorChain) {
+        return Mono.fromCallable(() -> before(chatClientRequest, streamAdvisorChain))
+                .subscribeOn(retrievalScheduler)
+                .flatMapMany(advisedRequest -> Flux.concat(
+                        Mono.just(retrievalDone(advisedRequest)),
+                        streamAdvisorChain.nextStream(advisedRequest)
+                ));
+    }
+
+    private static ChatClientResponse retrievalDone(ChatClientRequest request) {
+        int chunks = request.context().get(RETRIEVED_CHUNK_IDS) instanceof List<?> chunkIds ? chunkIds.size() : 0;
+        ChatResponseMetadata metadata = ChatResponseMetadata.builder()
+                .keyValue(RETRIEVAL_DONE, chunks)
+                .build();
+        return ChatClientResponse.builder()
+                .chatResponse(new ChatResponse(List.of(new Generation(new AssistantMessage(""))), metadata))
+                .context(request.context())
+                .build();
+    }
+
+    private Retrieval retrieveSpeculatively(String originalQuestion, PendingExpansion pending, int candidates,
+                                            SearchSettings settings) {
+        CompletableFuture<Retrieval> enrichedRetrieval = pending.enrichedQuestion().thenApplyAsync(
+                enrichedQuestion -> StringUtils.hasText(enrichedQuestion)
+                        ? retrieve(originalQuestion, enrichedQuestion, candidates, settings)
+                        : null,
+                searchExecutor
+        );
+
+        List<Document> speculativeDocuments = search(originalQuestion, null, candidates, settings);
+
+        try {
+            long remainingNanos = Math.max(pending.deadlineNanos() - System.nanoTime(), 0);
+            Retrieval enriched = enrichedRetrieval.get(remainingNanos, TimeUnit.NANOSECONDS);
+            if (enriched == null) {
+                countSpeculativeOutcome("not_expanded");
+                return new Retrieval(originalQuestion, speculativeDocuments);
+            }
+
+            if (enriched.fused()) {
+                // the fan-out searched the original question too
+                countSpeculativeOutcome("fused");
+                return enriched;
+            }
+
+            countSpeculativeOutcome("merged");
+            return new Retrieval(enriched.query(), merge(speculativeDocuments, enriched.documents(), candidates));
+        } catch (TimeoutException e) {
+            // the expansion keeps running and still populates the expansion cache, only its search is dropped
+            enrichedRetrieval.cancel(false);
+            countSpeculativeOutcome("budget_exceeded");
+        } catch (ExecutionException e) {
+            log.warn("Enriched search failed, using speculative search results", e.getCause());
+            countSpeculativeOutcome("failed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            countSpeculativeOutcome("failed");
+        }
+
+        return new Retrieval(originalQuestion, speculativeDocuments);
+    }
+
+    /**
+     * Searches the expansion, or fans out when it holds several sub-queries.
+     */
+    private Retrieval retrieve(String originalQuestion, String expansion, int candidates, SearchSettings settings) {
+        List<String> subQueries = queries(expansion);
+        if (subQueries.size() <= 1) {
+            return new Retrieval(expansion, search(expansion, null, candidates, settings));
+        }
+
+        List<String> allQueries = Stream.concat(Stream.of(originalQuestion), subQueries.stream())
+                .distinct()
+                .toList();
+        meterRegistry.summary(QUERIES_METER).record(allQueries.size());
+
+        List<float[]> embeddings = embedAll(allQueries);
+        List<CompletableFuture<List<Document>>> searches = IntStream.range(0, allQueries.size())
+                .mapToObj(i -> {
+                    float[] embedding = embeddings != null ? embeddings.get(i) : null;
+                    return CompletableFuture.supplyAsync(
+                            () -> search(allQueries.get(i), embedding, candidates, settings), searchExecutor
+                    );
+                })
+                .toList();
+
+        List<List<Document>> rankings;
+        try {
+            rankings = searches.stream().map(CompletableFuture::join).toList();
+        } catch (CompletionException e) {
+            searches.forEach(search -> search.cancel(false));
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+
+        return new Retrieval(String.join(" ", allQueries), rankFusion.fuse(rankings, candidates), true);
+    }
+
+    /**
+     * Embeddings of all queries with one request, {@code null} when the searches would not use them.
+     */
+    @Nullable
+    private List<float[]> embedAll(List<String> queries) {
+        boolean searchTakesEmbeddings = hybrid || quantization != SearchQuantization.NONE;
+        if (embeddingModel == null || !(searchTakesEmbeddings || embeddingModel instanceof CachingEmbeddingModel)) {
+            return null;
+        }
+        return embeddingModel.embed(queries);
+    }
+
+    /**
+     * @param embedding of the query when already computed
+     */
+    private List<Document> search(String query, @Nullable float[] embedding, int topK, SearchSettings settings) {
+        SearchRequest request = SearchRequest
+                .from(searchRequest)
+                .query(query)
+                .topK(topK)
+                .build();
+
+        if (hybrid) {
+            return hybridSearchRepository.search(embedding != null ? embedding : embeddingModel.embed(query), request,
+                    Math.max(hybridCandidates, topK), settings.weights());
+        }
+        if (quantization == SearchQuantization.NONE) {
+            return vectorStore.similaritySearch(request);
+        }
+        return quantizedSearchRepository.search(embedding != null ? embedding : embeddingModel.embed(query),
+                quantization, topK * oversampling, request);
+    }
+
+    /**
+     * Settings of the request context entries, the ones of this advisor for missing or invalid entries.
+     */
+    private SearchSettings settings(Map<String, Object> context) {
+        double topK = number(context, RETRIEVAL_TOP_K, searchRequest.getTopK());
+        double vectorWeight = number(context, HYBRID_VECTOR_WEIGHT, hybridWeights.vector());
+        double lexicalWeight = number(context, HYBRID_LEXICAL_WEIGHT, hybridWeights.lexical());
+        return new SearchSettings(
+                topK >= 1 ? (int) Math.min(topK, maxTopK) : searchRequest.getTopK(),
+                new Weights(
+                        vectorWeight >= 0 ? vectorWeight : hybridWeights.vector(),
+                        lexicalWeight >= 0 ? lexicalWeight : hybridWeights.lexical(),
+                        hybridWeights.rrfK()
+                )
+        );
+    }
+
+    private static double number(Map<String, Object> context, String key, double defaultValue) {
+        Object value = context.get(key);
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        if (value instanceof String text && StringUtils.hasText(text)) {
+            try {
+                return Double.parseDouble(text.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring {} request context entry, not a number: {}", key, text);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Union of both candidate sets by document id, keeping the best similarity score of each chunk.
+     */
+    private static List<Document> merge(List<Document> speculative, List<Document> enriched, int limit) {
+        Map<String, Document> documentsById = new LinkedHashMap<>();
+        for (Document document : enriched) {
+            documentsById.merge(document.getId(), document, RagAdvisor::bestScored);
+        }
+        for (Document document : speculative) {
+            documentsById.merge(document.getId(), document, RagAdvisor::bestScored);
+        }
+
+        return documentsById.values().stream()
+                .sorted(BY_SCORE_DESC)
+                .limit(limit)
+                .toList();
+    }
+
+    private static Document bestScored(Document first, Document second) {
+        return BY_SCORE_DESC.compare(second, first) < 0 ? second : first;
+    }
+
+    private void recordPacking(PackedContext packed) {
+        meterRegistry.summary(CONTEXT_TOKENS_METER).record(packed.tokens());
+        meterRegistry.counter(CONTEXT_CHUNKS_METER, "outcome", "packed").increment(packed.documents().size());
+        meterRegistry.counter(CONTEXT_CHUNKS_METER, "outcome", "duplicate").increment(packed.duplicates());
+        meterRegistry.counter(CONTEXT_CHUNKS_METER, "outcome", "over_budget").increment(packed.overBudget());
+        log.debug("RAG context packed, chunks: {}, tokens: {}, near-duplicates: {}, over budget: {}",
+                packed.documents().size(), packed.tokens(), packed.duplicates(), packed.overBudget());
+    }
+
+    private void countSpeculativeOutcome(String outcome) {
+        meterRegistry.counter(SPECULATIVE_METER, "outcome", outcome).increment();
+    }
+
     @Override
     public ChatClientResponse after(ChatClientResponse chatClientResponse, AdvisorChain advisorChain) {
         return chatClientResponse;
     }
+
+    /**
+     * @param fused whether the documents are the fused results of a fan-out
+     */
+    private record Retrieval(String query, List<Document> documents, boolean fused) {
+
+        Retrieval(String query, List<Document> documents) {
+            this(query, documents, false);
+        }
+    }
+
+    private record SearchSettings(int topK, Weights weights) {
+    }
 }
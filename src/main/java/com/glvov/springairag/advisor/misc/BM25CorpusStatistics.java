@@ -0,0 +1,25 @@
+package com.glvov.springairag.advisor.misc;
+
+/**
+ * Corpus-wide BM25 statistics over all chunks loaded into the vector store.
+ * <br><br>
+ * When provided to {@link BM25RerankEngine}, IDF and average document length are taken from the whole corpus
+ * instead of only the candidates returned by the similarity search.
+ */
+public interface BM25CorpusStatistics {
+
+    /**
+     * @return number of chunks in the corpus, {@code 0} if no statistics have been collected yet
+     */
+    long documentCount();
+
+    /**
+     * @return average number of analyzed tokens per chunk
+     */
+    double averageDocumentLength();
+
+    /**
+     * @return number of chunks containing the analyzed term
+     */
+    int documentFrequency(String term);
+}
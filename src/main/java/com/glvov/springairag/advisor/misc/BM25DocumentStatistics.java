@@ -0,0 +1,54 @@
+package com.glvov.springairag.advisor.misc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * BM25 statistics of a single chunk, computed once at ingestion time by {@link BM25RerankEngine#analyze(String)}
+ * and stored in the chunk metadata (the {@code metadata} JSON column of {@code vector_store}).
+ * <br><br>
+ * Since the vector store returns metadata together with every found chunk, the reranker can score chunks
+ * without running Lucene analysis and language detection on their text on every request.
+ *
+ * @param termFrequencies analyzed (stemmed, without stopwords) term -> number of occurrences in the chunk
+ * @param length          number of analyzed tokens in the chunk
+ * @param language        language detected for the chunk, the one whose analyzer produced the terms
+ */
+public record BM25DocumentStatistics(Map<String, Integer> termFrequencies, int length, String language) {
+
+    public static final String TERM_FREQUENCIES_KEY = "bm25_term_frequencies";
+
+    public static final String LENGTH_KEY = "bm25_length";
+
+    public static final String LANGUAGE_KEY = "language";
+
+
+    public Map<String, Object> toMetadata() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(TERM_FREQUENCIES_KEY, termFrequencies);
+        metadata.put(LENGTH_KEY, length);
+        metadata.put(LANGUAGE_KEY, language);
+        return metadata;
+    }
+
+    /**
+     * @return statistics stored in the chunk metadata, or empty for chunks loaded before statistics were stored
+     */
+    public static Optional<BM25DocumentStatistics> fromMetadata(Map<String, Object> metadata) {
+        if (!(metadata.get(TERM_FREQUENCIES_KEY) instanceof Map<?, ?> storedFrequencies)
+                || !(metadata.get(LENGTH_KEY) instanceof Number length)) {
+            return Optional.empty();
+        }
+
+        // values are read back from JSON, so numbers may come as any Number subtype
+        Map<String, Integer> termFrequencies = new HashMap<>(storedFrequencies.size());
+        storedFrequencies.forEach((term, tf) -> termFrequencies.put(term.toString(), ((Number) tf).intValue()));
+
+        return Optional.of(new BM25DocumentStatistics(
+                termFrequencies,
+                length.intValue(),
+                String.valueOf(metadata.get(LANGUAGE_KEY))
+        ));
+    }
+}
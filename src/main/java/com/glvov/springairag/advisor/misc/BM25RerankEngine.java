@@ -1,17 +1,12 @@
 package com.glvov.springairag.advisor.misc;
 
 import com.github.pemistahl.lingua.api.Language;
-import com.github.pemistahl.lingua.api.LanguageDetector;
-import com.github.pemistahl.lingua.api.LanguageDetectorBuilder;
 import lombok.Builder;
 import lombok.SneakyThrows;
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.de.GermanAnalyzer;
-import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.analysis.ru.RussianAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.springframework.ai.document.Document;
+import org.springframework.lang.Nullable;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -24,7 +19,8 @@ import java.util.stream.Collectors;
  *
  * <p>Details:</p>
  * <ul>
- *     <li>Supports multiple languages (English, Russian, German) for text tokenization.</li>
+ *     <li>Supports multiple languages (English, Russian, German) for text tokenization,
+ *     analyzers and language detection are shared through {@link LanguageAnalyzerRegistry}.</li>
  *     <li>Uses standard BM25 parameters:
  *         <ul>
  *             <li>{@code K} — term frequency saturation coefficient. Higher K increases the weight of repeated terms in a document.</li>
@@ -33,15 +29,19 @@ import java.util.stream.Collectors;
  *     </li>
  *     <li>Calculates term frequencies in documents and term rarity in the corpus (IDF).</li>
  *     <li>Sums the BM25 scores for all query terms to get the overall document ranking.</li>
+ *     <li>Each document is tokenized and scored exactly once: terms are mapped to int ids of a per-call dictionary,
+ *     term frequencies are kept in primitive arrays and the top {@code limit} documents are selected with a bounded heap.
+ *     Documents with equal scores keep their original order.</li>
+ *     <li>Uses {@link BM25DocumentStatistics} stored in the chunk metadata at ingestion time when present,
+ *     so chunk texts aren't analyzed on every request, and corpus-wide IDF from {@link BM25CorpusStatistics}
+ *     when configured.</li>
  * </ul>
  */
 @Builder
 public class BM25RerankEngine {
 
     @Builder.Default
-    private static final LanguageDetector languageDetector = LanguageDetectorBuilder
-            .fromLanguages(Language.ENGLISH, Language.GERMAN, Language.RUSSIAN)
-            .build();
+    private final LanguageAnalyzerRegistry analyzerRegistry = LanguageAnalyzerRegistry.DEFAULT;
 
     // BM25 parameters
     @Builder.Default
@@ -51,92 +51,183 @@ public class BM25RerankEngine {
     private final double B = 0.75;
 
 
+    /**
+     * Corpus-wide statistics, when absent or empty IDF and average length are computed over the candidates only.
+     */
+    @Nullable
+    private final BM25CorpusStatistics corpusStatistics;
+
+
     public List<Document> rerank(List<Document> corpus, String query, int limit) {
-        if (corpus == null || corpus.isEmpty()) {
+        if (corpus == null || corpus.isEmpty() || limit <= 0) {
             return new ArrayList<>();
         }
 
-        // Compute corpus statistics
-        CorpusStats stats = computeCorpusStats(corpus);
+        // Take precomputed statistics of every document or tokenize it exactly once
+        TermDictionary dictionary = new TermDictionary();
+        DocTerms[] docTerms = collectDocTerms(corpus, dictionary);
+
+        // Tokenize query, terms unknown to the corpus can't contribute to the score
+        int[] queryTermIds = tokenize(query).stream()
+                .mapToInt(dictionary::idOf)
+                .filter(termId -> termId != TermDictionary.UNKNOWN)
+                .toArray();
+
+        CorpusStats stats = computeCorpusStats(docTerms, queryTermIds, dictionary);
+
+        // Score every document once and keep only the best 'limit' of them
+        PriorityQueue<ScoredDocument> topDocuments = new PriorityQueue<>(limit + 1, ScoredDocument.WORST_FIRST);
+        int[] termFrequencies = new int[dictionary.size()];
 
-        // Tokenize query
-        List<String> queryTerms = tokenize(query);
+        for (int docIndex = 0; docIndex < corpus.size(); docIndex++) {
+            double score = score(queryTermIds, docTerms[docIndex], stats, termFrequencies);
+            topDocuments.offer(new ScoredDocument(docIndex, score));
 
-        // Score and sort documents
-        return corpus.stream()
-                .sorted((d1, d2) -> Double.compare(
-                        score(queryTerms, d2, stats),
-                        score(queryTerms, d1, stats)
-                ))
-                .limit(limit)
+            if (topDocuments.size() > limit) {
+                topDocuments.poll();
+            }
+        }
+
+        return topDocuments.stream()
+                .sorted(ScoredDocument.WORST_FIRST.reversed())
+                .map(scoredDocument -> corpus.get(scoredDocument.docIndex()))
                 .collect(Collectors.toList());
     }
 
-    private CorpusStats computeCorpusStats(List<Document> corpus) {
-        Map<String, Integer> docFreq = new HashMap<>();
-        Map<Document, List<String>> tokenizedDocs = new HashMap<>();
-        int totalLength = 0;
-        int totalDocs = corpus.size();
+    /**
+     * Analyzes the chunk text once so that the result can be stored with the chunk, see {@link BM25DocumentStatistics}.
+     */
+    public BM25DocumentStatistics analyze(String text) {
+        Language language = analyzerRegistry.detectLanguage(text);
+        List<String> tokens = tokenize(text, language);
+
+        Map<String, Integer> termFrequencies = new HashMap<>();
+        for (String token : tokens) {
+            termFrequencies.merge(token, 1, Integer::sum);
+        }
+
+        return new BM25DocumentStatistics(termFrequencies, tokens.size(), language.name());
+    }
+
+    private DocTerms[] collectDocTerms(List<Document> corpus, TermDictionary dictionary) {
+        DocTerms[] docTerms = new DocTerms[corpus.size()];
+        int[][] tokenizedDocs = new int[corpus.size()][];
 
-        // Process each document
-        for (Document doc : corpus) {
+        // Process each document, mapping its terms to term ids
+        for (int docIndex = 0; docIndex < corpus.size(); docIndex++) {
+            Document doc = corpus.get(docIndex);
+            Optional<BM25DocumentStatistics> precomputed = BM25DocumentStatistics.fromMetadata(doc.getMetadata());
+
+            if (precomputed.isPresent()) {
+                docTerms[docIndex] = DocTerms.of(precomputed.get(), dictionary);
+                continue;
+            }
+
+            // chunks loaded before statistics were stored at ingestion time
             List<String> tokens = tokenize(doc.getText());
-            tokenizedDocs.put(doc, tokens);
-            totalLength += tokens.size();
+            int[] termIds = new int[tokens.size()];
 
-            // Update document frequencies
-            Set<String> uniqueTerms = new HashSet<>(tokens);
-            for (String term : uniqueTerms) {
-                docFreq.put(term, docFreq.getOrDefault(term, 0) + 1);
+            for (int i = 0; i < termIds.length; i++) {
+                termIds[i] = dictionary.idOrAdd(tokens.get(i));
             }
+
+            tokenizedDocs[docIndex] = termIds;
         }
 
-        double avgDocLength = (double) totalLength / totalDocs;
+        // Collapse token sequences into (term id, tf) pairs
+        int[] counts = new int[dictionary.size()];
+        for (int docIndex = 0; docIndex < corpus.size(); docIndex++) {
+            if (tokenizedDocs[docIndex] != null) {
+                docTerms[docIndex] = DocTerms.of(tokenizedDocs[docIndex], counts);
+            }
+        }
 
-        return new CorpusStats(docFreq, tokenizedDocs, avgDocLength, totalDocs);
+        return docTerms;
     }
 
-    private double score(List<String> queryTerms, Document doc, CorpusStats stats) {
-        List<String> tokens = stats.tokenizedDocs.get(doc);
-        if (tokens == null) {
-            return 0.0;
+    private CorpusStats computeCorpusStats(DocTerms[] docTerms, int[] queryTermIds, TermDictionary dictionary) {
+        // Document frequencies and lengths within the candidates
+        int[] docFreq = new int[dictionary.size()];
+        long totalLength = 0;
+
+        for (DocTerms doc : docTerms) {
+            totalLength += doc.length();
+
+            for (int termId : doc.termIds()) {
+                docFreq[termId]++;
+            }
         }
 
-        // Calculate term frequencies for this document
-        Map<String, Integer> tfMap = new HashMap<>();
-        for (String token : tokens) {
-            tfMap.put(token, tfMap.getOrDefault(token, 0) + 1);
+        long totalDocs = docTerms.length;
+        double avgDocLength = (double) totalLength / totalDocs;
+
+        boolean corpusWide = corpusStatistics != null && corpusStatistics.documentCount() > 0;
+        if (corpusWide) {
+            totalDocs = Math.max(totalDocs, corpusStatistics.documentCount());
+            avgDocLength = corpusStatistics.averageDocumentLength();
+        }
+
+        // BM25 IDF calculation: rare terms raise the score, only query terms are needed
+        double[] idf = new double[dictionary.size()];
+        for (int termId : queryTermIds) {
+            int df = docFreq[termId];
+
+            if (corpusWide) {
+                df = Math.max(df, corpusStatistics.documentFrequency(dictionary.termOf(termId)));
+            }
+
+            idf[termId] = Math.log(1 + (totalDocs - df + 0.5) / (df + 0.5));
+        }
+
+        return new CorpusStats(idf, avgDocLength);
+    }
+
+    /**
+     * @param termFrequencies scratch buffer indexed by term id, all zeros on entry and on exit
+     */
+    private double score(int[] queryTermIds, DocTerms doc, CorpusStats stats, int[] termFrequencies) {
+        int[] termIds = doc.termIds();
+        int[] tfs = doc.termFrequencies();
+
+        for (int i = 0; i < termIds.length; i++) {
+            termFrequencies[termIds[i]] = tfs[i];
         }
 
-        int docLength = tokens.size();
+        int docLength = doc.length();
         double score = 0.0;
 
         // Calculate BM25 score
-        for (String term : queryTerms) {
-            int tf = tfMap.getOrDefault(term, 0); // просто его count - то есть это влияет на его вес в документе
-            int df = stats.docFreq.getOrDefault(term, 1);
-
-            // BM25 IDF calculation редкость слова - оно поднимает
-            double idf = Math.log(1 + (stats.totalDocs - df + 0.5) / (df + 0.5));
+        for (int termId : queryTermIds) {
+            int tf = termFrequencies[termId];
 
             // BM25 term score calculation
             double numerator = tf * (K + 1);
             double denominator = tf + K * (1 - B + B * docLength / stats.avgDocLength);
-            score += idf * (numerator / denominator);
+            score += stats.idf[termId] * (numerator / denominator);
+        }
+
+        for (int termId : termIds) {
+            termFrequencies[termId] = 0;
         }
 
         return score;
     }
 
+    List<String> tokenize(String text) {
+        return tokenize(text, analyzerRegistry.detectLanguage(text));
+    }
+
     @SneakyThrows
-    private List<String> tokenize(String text) {
+    private List<String> tokenize(String text, Language language) {
         List<String> tokens = new ArrayList<>();
 
-        try (Analyzer analyzer = detectLanguageAnalyzer(text); TokenStream stream = analyzer.tokenStream(null, text)) {
+        // the analyzer is shared, closing the stream returns its components for reuse by this thread
+        try (TokenStream stream = analyzerRegistry.analyzer(language).tokenStream(null, text)) {
+            CharTermAttribute termAttribute = stream.addAttribute(CharTermAttribute.class);
             stream.reset();
 
             while (stream.incrementToken()) {
-                tokens.add(stream.getAttribute(CharTermAttribute.class).toString());
+                tokens.add(termAttribute.toString());
             }
 
             stream.end();
@@ -145,19 +236,91 @@ public class BM25RerankEngine {
         return tokens;
     }
 
-    private Analyzer detectLanguageAnalyzer(String text) {
-        Language lang = languageDetector.detectLanguageOf(text);
+    /**
+     * Per-call mapping of analyzed terms to dense int ids, so that term statistics fit into primitive arrays.
+     */
+    private static final class TermDictionary {
+
+        static final int UNKNOWN = -1;
+
+        private final Map<String, Integer> ids = new HashMap<>();
 
-        return switch (lang) {
-            case RUSSIAN -> new RussianAnalyzer();
-            case GERMAN -> new GermanAnalyzer();
-            default -> new EnglishAnalyzer();
-        };
+        private final List<String> terms = new ArrayList<>();
+
+        int idOrAdd(String term) {
+            return ids.computeIfAbsent(term, t -> {
+                terms.add(t);
+                return terms.size() - 1;
+            });
+        }
+
+        String termOf(int termId) {
+            return terms.get(termId);
+        }
+
+        int idOf(String term) {
+            return ids.getOrDefault(term, UNKNOWN);
+        }
+
+        int size() {
+            return ids.size();
+        }
     }
 
-    private record CorpusStats(Map<String, Integer> docFreq,
-                               Map<Document, List<String>> tokenizedDocs,
-                               double avgDocLength,
-                               int totalDocs) {
+    /**
+     * Distinct term ids of a document with their frequencies, {@code length} is the total token count.
+     */
+    private record DocTerms(int[] termIds, int[] termFrequencies, int length) {
+
+        /**
+         * @param counts scratch buffer indexed by term id, all zeros on entry and on exit
+         */
+        static DocTerms of(int[] tokens, int[] counts) {
+            int[] distinct = new int[tokens.length];
+            int distinctCount = 0;
+
+            for (int termId : tokens) {
+                if (counts[termId]++ == 0) {
+                    distinct[distinctCount++] = termId;
+                }
+            }
+
+            int[] termIds = Arrays.copyOf(distinct, distinctCount);
+            int[] termFrequencies = new int[distinctCount];
+
+            for (int i = 0; i < distinctCount; i++) {
+                termFrequencies[i] = counts[termIds[i]];
+                counts[termIds[i]] = 0;
+            }
+
+            return new DocTerms(termIds, termFrequencies, tokens.length);
+        }
+
+        static DocTerms of(BM25DocumentStatistics statistics, TermDictionary dictionary) {
+            int[] termIds = new int[statistics.termFrequencies().size()];
+            int[] termFrequencies = new int[termIds.length];
+            int i = 0;
+
+            for (Map.Entry<String, Integer> entry : statistics.termFrequencies().entrySet()) {
+                termIds[i] = dictionary.idOrAdd(entry.getKey());
+                termFrequencies[i++] = entry.getValue();
+            }
+
+            return new DocTerms(termIds, termFrequencies, statistics.length());
+        }
+    }
+
+    private record CorpusStats(double[] idf,
+                               double avgDocLength) {
+    }
+
+    /**
+     * Ties are broken by the position in the corpus, so the ranking matches a stable sort by descending score.
+     */
+    private record ScoredDocument(int docIndex, double score) {
+
+        static final Comparator<ScoredDocument> WORST_FIRST = Comparator
+                .comparingDouble(ScoredDocument::score)
+                .thenComparing(Comparator.comparingInt(ScoredDocument::docIndex).reversed());
     }
-}
\ No newline at end of file
+}
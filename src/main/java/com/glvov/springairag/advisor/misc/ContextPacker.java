@@ -0,0 +1,121 @@
+package com.glvov.springairag.advisor.misc;
+
+import lombok.Builder;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Packs retrieved chunks into the context of the RAG prompt.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>Chunks are taken in the given order, the most relevant first, and joined with line separators.</li>
+ *     <li>A chunk is skipped as a near-duplicate when at least {@code duplicateThreshold} of the word
+ *     {@value #SHINGLE_WORDS}-grams of the shorter of it and an already packed chunk occur in the other one,
+ *     which also catches a chunk contained in another one, e.g. the same paragraph in two documents.</li>
+ *     <li>Tokens are counted with the encoding of {@link org.springframework.ai.transformer.splitter.TokenTextSplitter}
+ *     (CL100K_BASE), a chunk which doesn't fit into the rest of {@code maxTokens} is skipped and
+ *     the next, shorter, ones are still tried.</li>
+ * </ul>
+ */
+@Builder
+public class ContextPacker {
+
+    private static final int SHINGLE_WORDS = 3;
+
+    private static final String SEPARATOR = System.lineSeparator();
+
+    @Builder.Default
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator();
+
+    @Builder.Default
+    private final int maxTokens = 1500;
+
+    @Builder.Default
+    private final double duplicateThreshold = 0.8;
+
+
+    public PackedContext pack(List<Document> documents) {
+        List<Document> packed = new ArrayList<>();
+        List<Set<Integer>> packedShingles = new ArrayList<>();
+        int separatorTokens = tokenCountEstimator.estimate(SEPARATOR);
+        int tokens = 0;
+        int duplicates = 0;
+        int overBudget = 0;
+
+        for (Document document : documents) {
+            String text = document.getText();
+            if (text == null || text.isBlank()) {
+                continue;
+            }
+
+            Set<Integer> shingles = shingles(text);
+            if (packedShingles.stream().anyMatch(packedChunk -> isNearDuplicate(shingles, packedChunk))) {
+                duplicates++;
+                continue;
+            }
+
+            int chunkTokens = tokenCountEstimator.estimate(text) + (packed.isEmpty() ? 0 : separatorTokens);
+            if (tokens + chunkTokens > maxTokens) {
+                overBudget++;
+                continue;
+            }
+
+            packed.add(document);
+            packedShingles.add(shingles);
+            tokens += chunkTokens;
+        }
+
+        String text = String.join(SEPARATOR, packed.stream().map(Document::getText).toList());
+        // counted once more as a whole, tokens may merge across the separators
+        return new PackedContext(packed, text, tokenCountEstimator.estimate(text), duplicates, overBudget);
+    }
+
+    private boolean isNearDuplicate(Set<Integer> shingles, Set<Integer> packedShingles) {
+        Set<Integer> smaller = shingles.size() <= packedShingles.size() ? shingles : packedShingles;
+        Set<Integer> larger = smaller == shingles ? packedShingles : shingles;
+
+        long shared = smaller.stream().filter(larger::contains).count();
+        return shared >= duplicateThreshold * smaller.size();
+    }
+
+    /**
+     * Hashes of the word n-grams of the text, case and punctuation ignored.
+     */
+    private static Set<Integer> shingles(String text) {
+        String[] words = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+        List<String> nonEmptyWords = new ArrayList<>(words.length);
+        for (String word : words) {
+            if (!word.isEmpty()) {
+                nonEmptyWords.add(word);
+            }
+        }
+
+        Set<Integer> shingles = new HashSet<>();
+        if (nonEmptyWords.size() < SHINGLE_WORDS) {
+            shingles.add(nonEmptyWords.hashCode());
+            return shingles;
+        }
+        for (int i = 0; i + SHINGLE_WORDS <= nonEmptyWords.size(); i++) {
+            shingles.add(nonEmptyWords.subList(i, i + SHINGLE_WORDS).hashCode());
+        }
+        return shingles;
+    }
+
+    /**
+     * @param documents   packed chunks, in the given order
+     * @param text        the chunks joined with line separators
+     * @param tokens      tokens of the text
+     * @param duplicates  chunks skipped as near-duplicates
+     * @param overBudget  chunks skipped as they didn't fit into the token budget
+     */
+    public record PackedContext(List<Document> documents, String text, int tokens, int duplicates, int overBudget) {
+    }
+}
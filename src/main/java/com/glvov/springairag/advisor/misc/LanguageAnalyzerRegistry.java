@@ -0,0 +1,144 @@
+package com.glvov.springairag.advisor.misc;
+
+import com.github.pemistahl.lingua.api.Language;
+import com.github.pemistahl.lingua.api.LanguageDetector;
+import com.github.pemistahl.lingua.api.LanguageDetectorBuilder;
+import lombok.SneakyThrows;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.WordlistLoader;
+import org.apache.lucene.analysis.de.GermanAnalyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.ru.RussianAnalyzer;
+import org.apache.lucene.analysis.snowball.SnowballFilter;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shared, thread-safe registry of Lucene analyzers and language detection for BM25 tokenization.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>One analyzer per language is created once and never closed. Lucene analyzers are thread-safe and reuse
+ *     their token stream components per thread, so stopword sets and stemmers aren't loaded again for every text.</li>
+ *     <li>Texts written mostly in Cyrillic are detected as Russian by a cheap script check, without calling lingua.</li>
+ *     <li>The lingua detector is needed only to tell English from German. It is built lazily on the first text
+ *     that needs it and, depending on {@link DetectionMode}, uses high or low accuracy models.</li>
+ * </ul>
+ */
+public class LanguageAnalyzerRegistry {
+
+    public static final LanguageAnalyzerRegistry DEFAULT = new LanguageAnalyzerRegistry(DetectionMode.HIGH_ACCURACY);
+
+    /**
+     * English, Russian and German stopwords, case-insensitive, to drop words which carry no meaning from queries.
+     * The Snowball English list, unlike the default one of {@link EnglishAnalyzer}, has question words as well.
+     */
+    public static final CharArraySet QUERY_STOPWORDS = queryStopwords();
+
+    private final DetectionMode detectionMode;
+
+    private final Analyzer englishAnalyzer = new EnglishAnalyzer();
+    private final Analyzer germanAnalyzer = new GermanAnalyzer();
+    private final Analyzer russianAnalyzer = new RussianAnalyzer();
+
+    private volatile LanguageDetector latinScriptDetector;
+    private volatile LanguageDetector mixedScriptDetector;
+
+
+    public LanguageAnalyzerRegistry(DetectionMode detectionMode) {
+        this.detectionMode = detectionMode;
+    }
+
+    public Language detectLanguage(String text) {
+        int cyrillic = 0;
+        int otherLetters = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (Character.UnicodeBlock.of(c) == Character.UnicodeBlock.CYRILLIC) {
+                cyrillic++;
+            } else if (Character.isLetter(c)) {
+                otherLetters++;
+            }
+        }
+
+        if (cyrillic > otherLetters) {
+            return Language.RUSSIAN;
+        }
+
+        return cyrillic == 0
+                ? latinScriptDetector().detectLanguageOf(text)
+                : mixedScriptDetector().detectLanguageOf(text);
+    }
+
+    /**
+     * @return shared analyzer for the language, English one for any language other than Russian and German
+     */
+    public Analyzer analyzer(Language language) {
+        return switch (language) {
+            case RUSSIAN -> russianAnalyzer;
+            case GERMAN -> germanAnalyzer;
+            default -> englishAnalyzer;
+        };
+    }
+
+    private LanguageDetector latinScriptDetector() {
+        if (latinScriptDetector == null) {
+            synchronized (this) {
+                if (latinScriptDetector == null) {
+                    latinScriptDetector = buildDetector(Language.ENGLISH, Language.GERMAN);
+                }
+            }
+        }
+        return latinScriptDetector;
+    }
+
+    /**
+     * Latin text with a few Cyrillic words is rare, so this detector is loaded on demand as well.
+     */
+    private LanguageDetector mixedScriptDetector() {
+        if (mixedScriptDetector == null) {
+            synchronized (this) {
+                if (mixedScriptDetector == null) {
+                    mixedScriptDetector = buildDetector(Language.ENGLISH, Language.GERMAN, Language.RUSSIAN);
+                }
+            }
+        }
+        return mixedScriptDetector;
+    }
+
+    @SneakyThrows
+    private static CharArraySet queryStopwords() {
+        CharArraySet stopwords = new CharArraySet(1024, true);
+        try (InputStream english = SnowballFilter.class.getResourceAsStream("english_stop.txt")) {
+            stopwords.addAll(WordlistLoader.getSnowballWordSet(english, StandardCharsets.UTF_8));
+        }
+        stopwords.addAll(RussianAnalyzer.getDefaultStopSet());
+        stopwords.addAll(GermanAnalyzer.getDefaultStopSet());
+        return CharArraySet.unmodifiableSet(stopwords);
+    }
+
+    private LanguageDetector buildDetector(Language... languages) {
+        LanguageDetectorBuilder builder = LanguageDetectorBuilder.fromLanguages(languages);
+
+        if (detectionMode == DetectionMode.LOW_ACCURACY) {
+            builder.withLowAccuracyMode();
+        }
+
+        return builder.build();
+    }
+
+    public enum DetectionMode {
+        /**
+         * Full lingua models: reliable even for short texts like user questions, but heavier in memory and CPU.
+         */
+        HIGH_ACCURACY,
+        /**
+         * Trigram-only lingua models: less memory and faster detection, reliable for texts longer than ~120 chars.
+         */
+        LOW_ACCURACY
+    }
+}
@@ -0,0 +1,135 @@
+package com.glvov.springairag.advisor.misc;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.Builder;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.util.StringUtils;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the advisor pipeline, all tagged with the {@code model} of the request (the default one of the chat model
+ * unless set in the request options) and the active Spring {@code profile} (ollama or mistral):
+ * <ul>
+ *     <li>{@value #STAGE_METER} - time spent in a stage, tagged with the {@code stage}, the {@code mode}
+ *     ({@code call} or {@code stream}) and the {@code outcome} ({@code success} or {@code error});</li>
+ *     <li>{@value #TIME_TO_FIRST_TOKEN_METER} - from sending the prompt to the model to the first token,
+ *     the whole generation for calls;</li>
+ *     <li>{@value #TOKENS_PER_SECOND_METER} - generated tokens per second after the first token,
+ *     per second of the whole generation for calls;</li>
+ *     <li>{@value #PROMPT_TOKENS_METER} - tokens of the prompt sent to the model;</li>
+ *     <li>{@value #RETRIEVAL_STEP_METER} - steps of the RAG stage, tagged with the {@code step}: {@code search}
+ *     (the query embedding included), {@code rerank} and {@code packing};</li>
+ *     <li>{@value #RETRIEVED_DOCUMENTS_METER} - documents found by the vector search, before reranking and packing.</li>
+ * </ul>
+ * Timers publish percentile histograms, so that latency quantiles can be aggregated across instances.
+ */
+@Builder
+public class PipelineMetrics {
+
+    public static final String STAGE_METER = "rag.stage.duration";
+
+    public static final String TIME_TO_FIRST_TOKEN_METER = "rag.generation.time-to-first-token";
+
+    public static final String TOKENS_PER_SECOND_METER = "rag.generation.tokens-per-second";
+
+    public static final String PROMPT_TOKENS_METER = "rag.prompt.tokens";
+
+    public static final String RETRIEVAL_STEP_METER = "rag.retrieval.duration";
+
+    public static final String RETRIEVED_DOCUMENTS_METER = "rag.retrieval.documents";
+
+    private static final String UNKNOWN = "unknown";
+
+    @Builder.Default
+    private final MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+    @Builder.Default
+    private final String defaultModel = UNKNOWN;
+
+    @Builder.Default
+    private final String profile = UNKNOWN;
+
+
+    public void recordStage(ChatClientRequest request, String stage, Mode mode, long nanos, boolean failed) {
+        Timer.builder(STAGE_METER)
+                .tags(tags(request))
+                .tag("stage", stage)
+                .tag("mode", mode.tag())
+                .tag("outcome", failed ? "error" : "success")
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordTimeToFirstToken(ChatClientRequest request, Mode mode, long nanos) {
+        Timer.builder(TIME_TO_FIRST_TOKEN_METER)
+                .tags(tags(request))
+                .tag("mode", mode.tag())
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordRetrievalStep(ChatClientRequest request, String step, long nanos) {
+        Timer.builder(RETRIEVAL_STEP_METER)
+                .tags(tags(request))
+                .tag("step", step)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Skipped for empty answers and zero durations, which have no meaningful rate.
+     */
+    public void recordTokensPerSecond(ChatClientRequest request, Mode mode, long tokens, long nanos) {
+        if (tokens <= 0 || nanos <= 0) {
+            return;
+        }
+        summary(TOKENS_PER_SECOND_METER, request)
+                .tag("mode", mode.tag())
+                .register(meterRegistry)
+                .record(tokens * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+
+    public void recordPromptTokens(ChatClientRequest request, long tokens) {
+        summary(PROMPT_TOKENS_METER, request)
+                .baseUnit("tokens")
+                .register(meterRegistry)
+                .record(tokens);
+    }
+
+    public void recordRetrievedDocuments(ChatClientRequest request, int documents) {
+        summary(RETRIEVED_DOCUMENTS_METER, request)
+                .register(meterRegistry)
+                .record(documents);
+    }
+
+    private DistributionSummary.Builder summary(String name, ChatClientRequest request) {
+        return DistributionSummary.builder(name)
+                .tags(tags(request))
+                .publishPercentileHistogram();
+    }
+
+    private Tags tags(ChatClientRequest request) {
+        ChatOptions options = request.prompt().getOptions();
+        String model = options != null && StringUtils.hasText(options.getModel()) ? options.getModel() : defaultModel;
+        return Tags.of("model", model, "profile", profile);
+    }
+
+    public enum Mode {
+        CALL,
+        STREAM;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
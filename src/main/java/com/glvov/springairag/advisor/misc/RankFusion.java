@@ -0,0 +1,51 @@
+package com.glvov.springairag.advisor.misc;
+
+import lombok.Builder;
+import org.springframework.ai.document.Document;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fuses rankings of the same chunks, e.g. the results of several searches for rewrites of one question,
+ * with reciprocal rank fusion (RRF).
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>A chunk scores {@code 1 / (rrfK + rank)} (ranks start at 1) in every ranking it's found in,
+ *     so chunks found by several queries come first, whatever the scales of the scores of the rankings.</li>
+ *     <li>Chunks are deduplicated by id, the first occurrence is kept with the fused score as its score.</li>
+ *     <li>Ties keep the order of the first occurrence, i.e. the earlier rankings win.</li>
+ * </ul>
+ */
+@Builder
+public class RankFusion {
+
+    /**
+     * The higher, the less the top ranks dominate, 60 is the value of the original RRF paper.
+     */
+    @Builder.Default
+    private final int rrfK = 60;
+
+
+    public List<Document> fuse(List<List<Document>> rankings, int limit) {
+        Map<String, Document> documentsById = new LinkedHashMap<>();
+        Map<String, Double> scoresById = new LinkedHashMap<>();
+
+        for (List<Document> ranking : rankings) {
+            for (int i = 0; i < ranking.size(); i++) {
+                Document document = ranking.get(i);
+                documentsById.putIfAbsent(document.getId(), document);
+                scoresById.merge(document.getId(), 1.0 / (rrfK + i + 1), Double::sum);
+            }
+        }
+
+        return scoresById.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue(Comparator.reverseOrder()))
+                .limit(limit)
+                .map(entry -> documentsById.get(entry.getKey()).mutate().score(entry.getValue()).build())
+                .toList();
+    }
+}
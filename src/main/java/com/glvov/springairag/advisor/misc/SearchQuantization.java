@@ -0,0 +1,20 @@
+package com.glvov.springairag.advisor.misc;
+
+/**
+ * Precision of the embeddings the first pass of a similarity search runs on.
+ * <br><br>
+ * A quantized first pass reads a smaller HNSW index, its oversampled candidates are then re-scored
+ * against the full {@code vector} embeddings, so only the candidate set depends on the quantization,
+ * not the scores:
+ * <ul>
+ *     <li>{@link #NONE} - full {@code vector} (4 bytes per dimension), a single pass;</li>
+ *     <li>{@link #HALFVEC} - {@code halfvec} (2 bytes per dimension), cosine distance, almost no recall loss;</li>
+ *     <li>{@link #BIT} - binary quantization (1 bit per dimension), Hamming distance, needs a larger
+ *     oversampling to keep the recall.</li>
+ * </ul>
+ */
+public enum SearchQuantization {
+    NONE,
+    HALFVEC,
+    BIT
+}
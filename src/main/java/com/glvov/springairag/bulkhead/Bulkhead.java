@@ -0,0 +1,120 @@
+package com.glvov.springairag.bulkhead;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Limits concurrent calls to a backend, so that overload queues up in front of it for a bounded time
+ * instead of piling up requests the backend serves ever slower.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>At most {@code maxConcurrentCalls} calls run at a time, waiting callers get slots in arrival order
+ *     (a fair {@link Semaphore}).</li>
+ *     <li>A caller which doesn't get a slot within {@code maxWait} is rejected with {@link BulkheadFullException}.</li>
+ *     <li>Meters tagged with the bulkhead {@code name}: {@code rag.bulkhead.queue} (callers waiting for a slot),
+ *     {@code rag.bulkhead.active} (calls running) and {@code rag.bulkhead.wait} (time waited for a slot,
+ *     tagged with the {@code outcome} - {@code acquired} or {@code rejected}).</li>
+ * </ul>
+ * Waiting blocks the calling thread, which is cheap for virtual threads.
+ */
+public class Bulkhead {
+
+    private static final String QUEUE_METER = "rag.bulkhead.queue";
+
+    private static final String ACTIVE_METER = "rag.bulkhead.active";
+
+    private static final String WAIT_METER = "rag.bulkhead.wait";
+
+    @Getter
+    private final String name;
+
+    @Getter
+    private final Duration maxWait;
+
+    private final int maxConcurrentCalls;
+
+    private final Semaphore slots;
+
+    private final Timer acquiredWait;
+
+    private final Timer rejectedWait;
+
+
+    public Bulkhead(String name, int maxConcurrentCalls, Duration maxWait, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.maxWait = maxWait;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.slots = new Semaphore(maxConcurrentCalls, true);
+
+        Gauge.builder(QUEUE_METER, slots, Semaphore::getQueueLength)
+                .tag("name", name)
+                .register(meterRegistry);
+        Gauge.builder(ACTIVE_METER, this, Bulkhead::activeCalls)
+                .tag("name", name)
+                .register(meterRegistry);
+        this.acquiredWait = meterRegistry.timer(WAIT_METER, "name", name, "outcome", "acquired");
+        this.rejectedWait = meterRegistry.timer(WAIT_METER, "name", name, "outcome", "rejected");
+    }
+
+    public <T> T call(Supplier<T> call) {
+        Permit permit = acquire();
+        try {
+            return call.get();
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Waits for a slot, the returned permit must be released once the call is over.
+     */
+    public Permit acquire() {
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = slots.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        long waited = System.nanoTime() - start;
+        if (!acquired) {
+            rejectedWait.record(waited, TimeUnit.NANOSECONDS);
+            throw new BulkheadFullException(name, maxWait);
+        }
+        acquiredWait.record(waited, TimeUnit.NANOSECONDS);
+        return new Permit();
+    }
+
+    int activeCalls() {
+        return maxConcurrentCalls - slots.availablePermits();
+    }
+
+    /**
+     * A slot of the bulkhead, released at most once.
+     */
+    public final class Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+
+        private Permit() {
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                slots.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.glvov.springairag.bulkhead;
+
+import com.glvov.springairag.bulkhead.Bulkhead.Permit;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Decorates a {@link ChatModel} with a {@link Bulkhead}: a call holds a slot until the response is received,
+ * a stream from subscription until it completes, fails or is cancelled.
+ */
+public class BulkheadChatModel implements ChatModel {
+
+    private final ChatModel delegate;
+
+    private final Bulkhead bulkhead;
+
+
+    public BulkheadChatModel(ChatModel delegate, Bulkhead bulkhead) {
+        this.delegate = delegate;
+        this.bulkhead = bulkhead;
+    }
+
+    @Override
+    public ChatResponse call(Prompt prompt) {
+        return bulkhead.call(() -> delegate.call(prompt));
+    }
+
+    @Override
+    public Flux<ChatResponse> stream(Prompt prompt) {
+        // waiting for a slot blocks, so the stream is subscribed to on a thread which may block
+        return Flux.using(bulkhead::acquire, permit -> delegate.stream(prompt), Permit::release)
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public ChatOptions getDefaultOptions() {
+        return delegate.getDefaultOptions();
+    }
+}
@@ -0,0 +1,38 @@
+package com.glvov.springairag.bulkhead;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+/**
+ * Decorates an {@link EmbeddingModel} with a {@link Bulkhead}, every request to the backend takes a slot:
+ * batched embedding of documents takes one per batch, as the default methods go through {@link #call}.
+ */
+public class BulkheadEmbeddingModel implements EmbeddingModel {
+
+    private final EmbeddingModel delegate;
+
+    private final Bulkhead bulkhead;
+
+
+    public BulkheadEmbeddingModel(EmbeddingModel delegate, Bulkhead bulkhead) {
+        this.delegate = delegate;
+        this.bulkhead = bulkhead;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        return bulkhead.call(() -> delegate.call(request));
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return bulkhead.call(() -> delegate.embed(document));
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+}
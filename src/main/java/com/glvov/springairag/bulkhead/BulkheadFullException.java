@@ -0,0 +1,32 @@
+package com.glvov.springairag.bulkhead;
+
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * A call waited for a free slot of the {@link Bulkhead} longer than its maximum wait.
+ */
+@Getter
+public class BulkheadFullException extends RuntimeException {
+
+    public static final String USER_MESSAGE = "The assistant is busy right now, please retry in a moment";
+
+    private final String bulkheadName;
+
+    private final Duration maxWait;
+
+
+    public BulkheadFullException(String bulkheadName, Duration maxWait) {
+        super("Bulkhead '%s' is full, no slot within %s".formatted(bulkheadName, maxWait));
+        this.bulkheadName = bulkheadName;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * The backend was busy for the whole wait, so a retry sooner than that would likely wait again.
+     */
+    public long retryAfterSeconds() {
+        return Math.max(1, maxWait.toSeconds());
+    }
+}
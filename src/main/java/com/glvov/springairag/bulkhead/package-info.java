@@ -0,0 +1,4 @@
+@NonNullApi
+package com.glvov.springairag.bulkhead;
+
+import org.springframework.lang.NonNullApi;
@@ -1,22 +1,49 @@
 package com.glvov.springairag.configuration;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.glvov.springairag.advisor.AnswerCacheAdvisor;
 import com.glvov.springairag.advisor.ExpansionQueryAdvisor;
+import com.glvov.springairag.advisor.GenerationMetricsAdvisor;
+import com.glvov.springairag.advisor.MeteredAdvisor;
 import com.glvov.springairag.advisor.RagAdvisor;
 import com.glvov.springairag.advisor.RequestLoggerAdvisor;
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.advisor.misc.ContextPacker;
+import com.glvov.springairag.advisor.misc.LanguageAnalyzerRegistry;
+import com.glvov.springairag.advisor.misc.LanguageAnalyzerRegistry.DetectionMode;
+import com.glvov.springairag.advisor.misc.PipelineMetrics;
+import com.glvov.springairag.advisor.misc.SearchQuantization;
+import com.glvov.springairag.repository.HybridSearchRepository;
+import com.glvov.springairag.repository.HybridSearchRepository.Weights;
+import com.glvov.springairag.repository.QuantizedVectorSearchRepository;
+import com.glvov.springairag.service.BM25StatisticsService;
 import com.glvov.springairag.service.PostgresChatMemory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
 import org.springframework.ai.chat.client.advisor.SimpleLoggerAdvisor;
 import org.springframework.ai.chat.client.advisor.api.Advisor;
+import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Configuration
 public class AdvisorsConfig {
@@ -28,55 +55,211 @@ public class AdvisorsConfig {
         CHAT_MEMORY(1),
         LOG_AFTER_CHAT_MEMORY(2),
         RAG(3),
-        LOG_AFTER_RAG(4);
+        ANSWER_CACHE(4),
+        LOG_AFTER_RAG(5),
+        GENERATION_METRICS(6);
 
         public final int value;
     }
 
+    /**
+     * The answer cache right after RAG, so that it's keyed on the retrieved chunks and a hit skips only the LLM call.
+     * <br><br>
+     * Each stage is timed by {@link MeteredAdvisor}, the generation by {@link GenerationMetricsAdvisor}
+     * right before the model is called.
+     */
     @Bean
     public List<Advisor> advisors(ExpansionQueryAdvisor expansionQueryAdvisor,
                                   MessageChatMemoryAdvisor messageChatMemoryAdvisor,
-                                  RagAdvisor ragAdvisor) {
-        return List.of(
-                expansionQueryAdvisor,
-                messageChatMemoryAdvisor,
+                                  RagAdvisor ragAdvisor,
+                                  ObjectProvider<AnswerCacheAdvisor> answerCacheAdvisor,
+                                  PipelineMetrics pipelineMetrics) {
+        List<Advisor> advisors = new ArrayList<>(List.of(
+                MeteredAdvisor.of(expansionQueryAdvisor, "expansion", pipelineMetrics),
+                MeteredAdvisor.of(messageChatMemoryAdvisor, "memory", pipelineMetrics),
                 requestLoggerAdvisor(),
-                ragAdvisor,
-                requestResponseLoggerAdvisor()
-        );
+                MeteredAdvisor.of(ragAdvisor, "rag", pipelineMetrics)
+        ));
+        answerCacheAdvisor.ifAvailable(advisor -> advisors.add(
+                MeteredAdvisor.of(advisor, "answer-cache", pipelineMetrics)
+        ));
+        advisors.add(requestResponseLoggerAdvisor());
+        advisors.add(GenerationMetricsAdvisor.builder()
+                .order(AdvisorOrder.GENERATION_METRICS.getValue())
+                .metrics(pipelineMetrics)
+                .build());
+        return List.copyOf(advisors);
+    }
+
+    /**
+     * The model tag defaults to the model of the active profile, the profile tag is the active profile itself.
+     */
+    @Bean
+    public PipelineMetrics pipelineMetrics(MeterRegistry meterRegistry,
+                                           ChatModel chatModel,
+                                           @Value("${spring.profiles.active:default}") String profile) {
+        String defaultModel = chatModel.getDefaultOptions() != null ? chatModel.getDefaultOptions().getModel() : null;
+        return PipelineMetrics.builder()
+                .meterRegistry(meterRegistry)
+                .defaultModel(defaultModel != null ? defaultModel : "unknown")
+                .profile(profile)
+                .build();
     }
 
     @Bean
     public ExpansionQueryAdvisor expansionQueryAdvisor(ChatClient.Builder builder,
                                                        @Qualifier("queryAdvisorChatOptions")
-                                                       ChatOptions chatOptions) {
+                                                       ChatOptions chatOptions,
+                                                       BM25RerankEngine rerankEngine,
+                                                       BM25StatisticsService bm25StatisticsService,
+                                                       MeterRegistry meterRegistry,
+                                                       @Value("${spring.ai.expansion.cache.max-size:10000}")
+                                                       long cacheMaxSize,
+                                                       @Value("${spring.ai.expansion.cache.ttl:24h}")
+                                                       Duration cacheTtl,
+                                                       @Value("${spring.ai.expansion.max-question-words:30}")
+                                                       int maxQuestionWords,
+                                                       @Value("${spring.ai.expansion.rare-term-max-document-ratio:0.0}")
+                                                       double rareTermMaxDocumentRatio,
+                                                       @Value("${spring.ai.retrieval.speculative.enabled:false}")
+                                                       boolean speculativeRetrieval,
+                                                       @Value("${spring.ai.retrieval.speculative.latency-budget:2s}")
+                                                       Duration latencyBudget,
+                                                       @Value("${spring.ai.expansion.sub-queries:1}")
+                                                       int subQueries,
+                                                       ExecutorService advisorExecutor) {
         ChatClient chatClient = builder
                 .defaultOptions(chatOptions)
                 .build();
 
+        Cache<String, String> expansionCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(cacheTtl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, expansionCache, "query-expansions");
+
         return ExpansionQueryAdvisor
                 .builder(chatClient)
                 .order(AdvisorOrder.EXPANSION_QUERY.getValue())
+                .expansionCache(expansionCache)
+                .maxQuestionWords(maxQuestionWords)
+                .rareTermMaxDocumentRatio(rareTermMaxDocumentRatio)
+                .rerankEngine(rerankEngine)
+                .corpusStatistics(bm25StatisticsService)
+                .meterRegistry(meterRegistry)
+                .speculativeExecutor(speculativeRetrieval ? advisorExecutor : null)
+                .latencyBudget(latencyBudget)
+                .subQueries(subQueries)
                 .build();
     }
 
     @Bean
-    public MessageChatMemoryAdvisor messageChatMemoryAdvisor(PostgresChatMemory chatMemory) {
+    public MessageChatMemoryAdvisor messageChatMemoryAdvisor(PostgresChatMemory chatMemory,
+                                                             Scheduler advisorScheduler) {
         return MessageChatMemoryAdvisor
                 .builder(chatMemory)
                 .order(AdvisorOrder.CHAT_MEMORY.getValue())
+                .scheduler(advisorScheduler)
                 .build();
     }
 
     @Bean
-    public RagAdvisor ragAdvisor(VectorStore vectorStore) {
+    public RagAdvisor ragAdvisor(VectorStore vectorStore,
+                                 BM25RerankEngine rerankEngine,
+                                 ExecutorService advisorExecutor,
+                                 Scheduler advisorScheduler,
+                                 MeterRegistry meterRegistry,
+                                 PipelineMetrics pipelineMetrics,
+                                 EmbeddingModel embeddingModel,
+                                 ObjectProvider<QuantizedVectorSearchRepository> quantizedSearchRepository,
+                                 @Value("${spring.ai.retrieval.quantization.mode:NONE}")
+                                 SearchQuantization quantization,
+                                 @Value("${spring.ai.retrieval.quantization.oversampling:4}")
+                                 int oversampling,
+                                 ObjectProvider<HybridSearchRepository> hybridSearchRepository,
+                                 @Value("${spring.ai.retrieval.hybrid.enabled:false}")
+                                 boolean hybrid,
+                                 @Value("${spring.ai.retrieval.hybrid.vector-weight:1.0}")
+                                 double vectorWeight,
+                                 @Value("${spring.ai.retrieval.hybrid.lexical-weight:1.0}")
+                                 double lexicalWeight,
+                                 @Value("${spring.ai.retrieval.hybrid.rrf-k:60}")
+                                 int rrfK,
+                                 @Value("${spring.ai.retrieval.hybrid.candidates:20}")
+                                 int hybridCandidates,
+                                 @Value("${spring.ai.retrieval.max-top-k:20}")
+                                 int maxTopK,
+                                 @Value("${spring.ai.retrieval.context.max-tokens:1500}")
+                                 int contextMaxTokens,
+                                 @Value("${spring.ai.retrieval.context.duplicate-threshold:0.8}")
+                                 double duplicateThreshold) {
+        QuantizedVectorSearchRepository repository = quantizedSearchRepository.getIfAvailable();
+        if (quantization != SearchQuantization.NONE && repository == null) {
+            throw new IllegalStateException("Quantized search " + quantization + " requires the pgvector vector store");
+        }
+        HybridSearchRepository hybridRepository = hybridSearchRepository.getIfAvailable();
+        if (hybrid && hybridRepository == null) {
+            throw new IllegalStateException("Hybrid search requires the pgvector vector store");
+        }
+
         return RagAdvisor
                 .build(vectorStore)
                 .order(AdvisorOrder.RAG.getValue())
                 .rerankEnabled(false)
+                .rerankEngine(rerankEngine)
+                .contextPacker(ContextPacker.builder()
+                        .maxTokens(contextMaxTokens)
+                        .duplicateThreshold(duplicateThreshold)
+                        .build())
+                .quantization(quantization)
+                .oversampling(oversampling)
+                .quantizedSearchRepository(repository)
+                .hybrid(hybrid)
+                .hybridSearchRepository(hybridRepository)
+                .hybridWeights(new Weights(vectorWeight, lexicalWeight, rrfK))
+                .hybridCandidates(hybridCandidates)
+                .maxTopK(maxTopK)
+                .embeddingModel(embeddingModel)
+                .searchExecutor(advisorExecutor)
+                .retrievalScheduler(advisorScheduler)
+                .meterRegistry(meterRegistry)
+                .pipelineMetrics(pipelineMetrics)
+                .build();
+    }
+
+    /**
+     * Expansion LLM calls and searches of speculative retrieval block on I/O, so each gets a virtual thread.
+     */
+    @Bean
+    public ExecutorService advisorExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    /**
+     * Blocking work of streamed requests (the chat memory lookup and the retrieval) runs on virtual threads
+     * of {@code advisorExecutor} instead of the shared bounded elastic scheduler.
+     */
+    @Bean
+    public Scheduler advisorScheduler(ExecutorService advisorExecutor) {
+        return Schedulers.fromExecutorService(advisorExecutor, "advisors");
+    }
+
+    @Bean
+    public BM25RerankEngine rerankEngine(BM25StatisticsService bm25StatisticsService,
+                                         LanguageAnalyzerRegistry languageAnalyzerRegistry) {
+        return BM25RerankEngine.builder()
+                .corpusStatistics(bm25StatisticsService)
+                .analyzerRegistry(languageAnalyzerRegistry)
                 .build();
     }
 
+    @Bean
+    public LanguageAnalyzerRegistry languageAnalyzerRegistry(
+            @Value("${spring.ai.rerank.language-detection-mode:HIGH_ACCURACY}") DetectionMode detectionMode) {
+        return new LanguageAnalyzerRegistry(detectionMode);
+    }
+
     private RequestLoggerAdvisor requestLoggerAdvisor() {
         return RequestLoggerAdvisor.builder()
                 .order(AdvisorOrder.LOG_AFTER_CHAT_MEMORY.getValue())
@@ -0,0 +1,61 @@
+package com.glvov.springairag.configuration;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.glvov.springairag.advisor.AnswerCacheAdvisor;
+import com.glvov.springairag.advisor.AnswerCacheAdvisor.CachedAnswer;
+import com.glvov.springairag.configuration.AdvisorsConfig.AdvisorOrder;
+import com.glvov.springairag.service.RagDocumentsChangedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.PayloadApplicationEvent;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * {@link AnswerCacheAdvisor} in the main chat client, invalidated whenever RAG documents change.
+ */
+@Configuration
+@ConditionalOnProperty(value = "spring.ai.answer-cache.enabled", havingValue = "true", matchIfMissing = true)
+public class AnswerCacheConfig {
+
+    @Bean
+    public AnswerCacheAdvisor answerCacheAdvisor(EmbeddingModel embeddingModel,
+                                                 MeterRegistry meterRegistry,
+                                                 @Value("${spring.ai.answer-cache.max-answers:1000}")
+                                                 long maxAnswers,
+                                                 @Value("${spring.ai.answer-cache.ttl:1h}")
+                                                 Duration ttl,
+                                                 @Value("${spring.ai.answer-cache.similarity-threshold:0.95}")
+                                                 double similarityThreshold) {
+        // weighed by the number of answers of a chunk fingerprint, as answers are added one by one
+        Cache<String, List<CachedAnswer>> answerCache = Caffeine.newBuilder()
+                .maximumWeight(maxAnswers)
+                .weigher((String fingerprint, List<CachedAnswer> answers) -> answers.size())
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, answerCache, "answers");
+
+        return AnswerCacheAdvisor
+                .builder(embeddingModel, answerCache)
+                .order(AdvisorOrder.ANSWER_CACHE.getValue())
+                .similarityThreshold(similarityThreshold)
+                .ttl(ttl)
+                .meterRegistry(meterRegistry)
+                .build();
+    }
+
+    @Bean
+    public ApplicationListener<PayloadApplicationEvent<RagDocumentsChangedEvent>> answerCacheInvalidator(
+            AnswerCacheAdvisor answerCacheAdvisor) {
+        return ApplicationListener.forPayload(event -> answerCacheAdvisor.invalidateAll());
+    }
+}
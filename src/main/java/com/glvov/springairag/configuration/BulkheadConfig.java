@@ -0,0 +1,101 @@
+package com.glvov.springairag.configuration;
+
+import com.glvov.springairag.bulkhead.Bulkhead;
+import com.glvov.springairag.bulkhead.BulkheadChatModel;
+import com.glvov.springairag.bulkhead.BulkheadEmbeddingModel;
+import com.glvov.springairag.embedding.CachingEmbeddingModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+
+import java.time.Duration;
+
+/**
+ * Wraps the auto-configured chat and embedding models (Ollama or Mistral) into {@link BulkheadChatModel}
+ * and {@link BulkheadEmbeddingModel}, one {@link Bulkhead} per kind of model.
+ * <br><br>
+ * The bulkheads are applied before {@link EmbeddingCacheConfig}, so the query embedding cache is in front
+ * of the embedding bulkhead and cache hits never wait for a slot.
+ */
+@Configuration
+@ConditionalOnProperty(value = "spring.ai.bulkhead.enabled", havingValue = "true", matchIfMissing = true)
+public class BulkheadConfig {
+
+    /**
+     * Static, because bean post processors are instantiated before regular beans.
+     */
+    @Bean
+    public static BeanPostProcessor modelBulkheadPostProcessor(
+            ObjectProvider<MeterRegistry> meterRegistry,
+            @Value("${spring.ai.bulkhead.chat.max-concurrent-calls:2}") int chatMaxConcurrentCalls,
+            @Value("${spring.ai.bulkhead.chat.max-wait:30s}") Duration chatMaxWait,
+            @Value("${spring.ai.bulkhead.embedding.max-concurrent-calls:4}") int embeddingMaxConcurrentCalls,
+            @Value("${spring.ai.bulkhead.embedding.max-wait:10s}") Duration embeddingMaxWait) {
+        return new ModelBulkheadPostProcessor(meterRegistry, chatMaxConcurrentCalls, chatMaxWait,
+                embeddingMaxConcurrentCalls, embeddingMaxWait);
+    }
+
+    private static class ModelBulkheadPostProcessor implements BeanPostProcessor, Ordered {
+
+        private final ObjectProvider<MeterRegistry> meterRegistry;
+        private final int chatMaxConcurrentCalls;
+        private final Duration chatMaxWait;
+        private final int embeddingMaxConcurrentCalls;
+        private final Duration embeddingMaxWait;
+
+        // shared by all models of a kind, created with the first of them
+        private Bulkhead chatBulkhead;
+        private Bulkhead embeddingBulkhead;
+
+
+        ModelBulkheadPostProcessor(ObjectProvider<MeterRegistry> meterRegistry,
+                                   int chatMaxConcurrentCalls, Duration chatMaxWait,
+                                   int embeddingMaxConcurrentCalls, Duration embeddingMaxWait) {
+            this.meterRegistry = meterRegistry;
+            this.chatMaxConcurrentCalls = chatMaxConcurrentCalls;
+            this.chatMaxWait = chatMaxWait;
+            this.embeddingMaxConcurrentCalls = embeddingMaxConcurrentCalls;
+            this.embeddingMaxWait = embeddingMaxWait;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+            if (bean instanceof ChatModel chatModel && !(bean instanceof BulkheadChatModel)) {
+                if (chatBulkhead == null) {
+                    chatBulkhead = new Bulkhead("chat", chatMaxConcurrentCalls, chatMaxWait, registry());
+                }
+                return new BulkheadChatModel(chatModel, chatBulkhead);
+            }
+            if (bean instanceof EmbeddingModel embeddingModel && !(bean instanceof BulkheadEmbeddingModel)
+                    && !(bean instanceof CachingEmbeddingModel)) {
+                if (embeddingBulkhead == null) {
+                    embeddingBulkhead = new Bulkhead(
+                            "embedding", embeddingMaxConcurrentCalls, embeddingMaxWait, registry()
+                    );
+                }
+                return new BulkheadEmbeddingModel(embeddingModel, embeddingBulkhead);
+            }
+            return bean;
+        }
+
+        private MeterRegistry registry() {
+            return meterRegistry.getIfAvailable(() -> Metrics.globalRegistry);
+        }
+
+        /**
+         * Before the unordered {@link EmbeddingCacheConfig} post processor, so its wrapper is the outer one.
+         */
+        @Override
+        public int getOrder() {
+            return Ordered.HIGHEST_PRECEDENCE;
+        }
+    }
+}
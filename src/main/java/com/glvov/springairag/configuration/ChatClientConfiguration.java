@@ -1,5 +1,6 @@
 package com.glvov.springairag.configuration;
 
+import com.glvov.springairag.service.BatchQuestionService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.advisor.api.Advisor;
@@ -47,4 +48,18 @@ public class ChatClientConfiguration {
                 .defaultSystem(systemPrompt)
                 .build();
     }
+
+    /**
+     * Same system prompt and options as the main client, without advisors: {@link BatchQuestionService}
+     * retrieves the chunks itself and batch answers don't belong to any chat memory.
+     */
+    @Bean
+    public ChatClient batchChatClient(ChatClient.Builder builder) {
+        String systemPrompt = new SystemPromptTemplate(systemPromptResource).render();
+
+        return builder
+                .defaultOptions(chatOptions)
+                .defaultSystem(systemPrompt)
+                .build();
+    }
 }
@@ -0,0 +1,45 @@
+package com.glvov.springairag.configuration;
+
+import com.glvov.springairag.embedding.CachingEmbeddingModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * Wraps the auto-configured embedding model (Ollama or Mistral) into {@link CachingEmbeddingModel},
+ * so the vector store reuses embeddings of repeated questions.
+ */
+@Configuration
+@ConditionalOnProperty(value = "spring.ai.embedding.cache.enabled", havingValue = "true", matchIfMissing = true)
+public class EmbeddingCacheConfig {
+
+    /**
+     * Static, because bean post processors are instantiated before regular beans.
+     */
+    @Bean
+    public static BeanPostProcessor queryEmbeddingCachePostProcessor(
+            ObjectProvider<MeterRegistry> meterRegistry,
+            @Value("${spring.ai.embedding.cache.max-size:64MB}") DataSize maxSize,
+            @Value("${spring.ai.embedding.cache.ttl:1h}") Duration ttl) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof EmbeddingModel embeddingModel && !(bean instanceof CachingEmbeddingModel)) {
+                    // bean name (e.g. ollamaEmbeddingModel) identifies the embedding backend within the cache key
+                    return new CachingEmbeddingModel(
+                            embeddingModel, beanName, maxSize.toBytes(), ttl, meterRegistry.getIfAvailable()
+                    );
+                }
+                return bean;
+            }
+        };
+    }
+}
@@ -0,0 +1,42 @@
+package com.glvov.springairag.configuration;
+
+import com.glvov.springairag.vectorstore.HnswVectorStore;
+import com.glvov.springairag.vectorstore.HnswVectorStoreChunkRepository;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+/**
+ * Embedded {@link HnswVectorStore} instead of pgvector, with {@code spring.ai.vectorstore.type=hnsw}:
+ * the pgvector auto-configuration backs off for any type other than {@code pgvector}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "spring.ai.vectorstore.type", havingValue = "hnsw")
+public class HnswVectorStoreConfig {
+
+    @Bean(destroyMethod = "close")
+    public HnswVectorStore vectorStore(EmbeddingModel embeddingModel,
+                                       ObjectProvider<ObservationRegistry> observationRegistry,
+                                       @Value("${spring.ai.vectorstore.hnsw.directory:data/hnsw}") Path directory,
+                                       @Value("${spring.ai.vectorstore.hnsw.m:16}") int m,
+                                       @Value("${spring.ai.vectorstore.hnsw.ef-construction:200}") int efConstruction,
+                                       @Value("${spring.ai.vectorstore.hnsw.ef-search:64}") int efSearch) {
+        return HnswVectorStore.builder(embeddingModel, directory)
+                .m(m)
+                .efConstruction(efConstruction)
+                .efSearch(efSearch)
+                .observationRegistry(observationRegistry.getIfUnique(() -> ObservationRegistry.NOOP))
+                .build();
+    }
+
+    @Bean
+    public HnswVectorStoreChunkRepository vectorStoreChunkRepository(HnswVectorStore vectorStore) {
+        return new HnswVectorStoreChunkRepository(vectorStore);
+    }
+}
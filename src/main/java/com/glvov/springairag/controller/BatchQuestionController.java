@@ -0,0 +1,49 @@
+package com.glvov.springairag.controller;
+
+import com.glvov.springairag.service.BatchQuestionService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.util.List;
+
+/**
+ * Answers batches of questions outside of any chat, e.g. regression sets or FAQ pre-generation.
+ */
+@RestController
+@RequiredArgsConstructor
+public class BatchQuestionController {
+
+    private final BatchQuestionService batchQuestionService;
+
+    @Value("${spring.ai.batch.max-questions:1000}")
+    private final int maxQuestions;
+
+
+    /**
+     * Takes a JSON array of questions, answers are streamed back as NDJSON lines as they finish,
+     * see {@link BatchQuestionService}.
+     */
+    @PostMapping(value = "/api/questions/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ResponseBodyEmitter> answer(@RequestBody List<String> questions) {
+        if (questions.isEmpty() || questions.size() > maxQuestions) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "A batch takes from 1 to " + maxQuestions + " questions");
+        }
+        if (!questions.stream().allMatch(StringUtils::hasText)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Questions must not be blank");
+        }
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(batchQuestionService.streamAnswers(questions));
+    }
+}
@@ -0,0 +1,28 @@
+package com.glvov.springairag.controller;
+
+import com.glvov.springairag.bulkhead.BulkheadFullException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+
+/**
+ * Answers requests rejected by an overloaded LLM backend with {@code 503 Service Unavailable},
+ * so that clients retry later instead of seeing a generic error page.
+ */
+@Slf4j
+@ControllerAdvice
+public class BulkheadExceptionHandler {
+
+    @ExceptionHandler(BulkheadFullException.class)
+    public ResponseEntity<String> handleBulkheadFull(BulkheadFullException e) {
+        log.warn("Request rejected: {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.retryAfterSeconds()))
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(BulkheadFullException.USER_MESSAGE);
+    }
+}
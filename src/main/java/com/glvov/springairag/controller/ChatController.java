@@ -19,13 +19,13 @@ public class ChatController {
 
     @GetMapping("/")
     public String mainPage(ModelMap model) {
-        model.addAttribute("chats", chatService.getAllChats());
+        model.addAttribute("chatPage", chatService.getChats(null, null));
         return "chat";
     }
 
     @GetMapping("/chat/{chatId}")
     public String showChat(@PathVariable Long chatId, ModelMap model) {
-        model.addAttribute("chats", chatService.getAllChats());
+        model.addAttribute("chatPage", chatService.getChats(null, null));
         model.addAttribute("chat", chatService.getChat(chatId));
         return "chat";
     }
@@ -0,0 +1,26 @@
+package com.glvov.springairag.controller;
+
+import com.glvov.springairag.model.ChatPage;
+import com.glvov.springairag.service.ChatService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.lang.Nullable;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Chat list pages for the sidebar infinite scroll.
+ */
+@RestController
+@RequiredArgsConstructor
+public class ChatListController {
+
+    private final ChatService chatService;
+
+
+    @GetMapping("/api/chats")
+    public ChatPage getChats(@RequestParam(required = false) @Nullable Long before,
+                             @RequestParam(required = false) @Nullable Integer limit) {
+        return chatService.getChats(before, limit);
+    }
+}
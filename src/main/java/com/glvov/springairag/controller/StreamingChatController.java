@@ -1,14 +1,19 @@
 package com.glvov.springairag.controller;
 
+import com.glvov.springairag.advisor.RagAdvisor;
 import com.glvov.springairag.service.ChatService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.MediaType;
+import org.springframework.lang.Nullable;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @RestController
 @RequiredArgsConstructor
 public class StreamingChatController {
@@ -16,8 +21,25 @@ public class StreamingChatController {
     private final ChatService chatService;
 
 
+    /**
+     * {@code topK}, {@code vectorWeight} and {@code lexicalWeight} override the retrieval settings for this request,
+     * {@code topK} is clamped to {@code spring.ai.retrieval.max-top-k}, the weights apply to hybrid search only.
+     */
     @GetMapping(value = "/chat-stream/{chatId}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter talkToModel(@PathVariable Long chatId, @RequestParam String userPrompt) {
-        return chatService.proceedInteractionWithStreaming(chatId, userPrompt);
+    public SseEmitter talkToModel(@PathVariable Long chatId, @RequestParam String userPrompt,
+                                  @RequestParam(required = false) @Nullable Integer topK,
+                                  @RequestParam(required = false) @Nullable Double vectorWeight,
+                                  @RequestParam(required = false) @Nullable Double lexicalWeight) {
+        Map<String, Object> retrievalParams = new HashMap<>();
+        if (topK != null) {
+            retrievalParams.put(RagAdvisor.RETRIEVAL_TOP_K, topK);
+        }
+        if (vectorWeight != null) {
+            retrievalParams.put(RagAdvisor.HYBRID_VECTOR_WEIGHT, vectorWeight);
+        }
+        if (lexicalWeight != null) {
+            retrievalParams.put(RagAdvisor.HYBRID_LEXICAL_WEIGHT, lexicalWeight);
+        }
+        return chatService.proceedInteractionWithStreaming(chatId, userPrompt, retrievalParams);
     }
 }
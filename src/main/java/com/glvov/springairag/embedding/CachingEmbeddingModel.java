@@ -0,0 +1,134 @@
+package com.glvov.springairag.embedding;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.glvov.springairag.utils.QueryNormalizer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.BatchingStrategy;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptions;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.lang.Nullable;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.glvov.springairag.utils.QueryNormalizer.normalize;
+
+/**
+ * Decorates an {@link EmbeddingModel} with a bounded cache of query embeddings.
+ * <br><br>
+ * {@link VectorStore#similaritySearch(SearchRequest)} embeds the query with {@link EmbeddingModel#embed(String)},
+ * which is a round trip to the embedding backend (e.g. Ollama /api/embed) even for a question asked seconds ago.
+ * Only query paths are cached: batch embedding of document chunks during ingestion goes straight
+ * to the delegate and doesn't pollute the cache.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>Keyed by the embedding model id and the query text normalized by {@link QueryNormalizer},
+ *     so repeated questions differing only in case or spacing skip the embedding call.</li>
+ *     <li>Caffeine W-TinyLFU eviction bounded by the approximate size of cached vectors in bytes, plus time to live.</li>
+ *     <li>{@link #embed(List)} embeds several queries (e.g. the sub-queries of a multi-query retrieval)
+ *     with one request for all the missing ones, so that searches embedding them one by one afterwards
+ *     hit the cache.</li>
+ *     <li>Hit/miss/eviction metrics are exported as {@code cache.*} meters with tag {@code cache=query-embeddings}.</li>
+ * </ul>
+ */
+public class CachingEmbeddingModel implements EmbeddingModel {
+
+    public static final String CACHE_NAME = "query-embeddings";
+
+    /**
+     * Rough per-entry overhead of the key, the array header and cache bookkeeping.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final EmbeddingModel delegate;
+
+    private final String modelId;
+
+    private final Cache<CacheKey, float[]> cache;
+
+
+    public CachingEmbeddingModel(EmbeddingModel delegate, String modelId, long maxSizeBytes, Duration ttl,
+                                 @Nullable MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.modelId = modelId;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher((CacheKey key, float[] embedding) ->
+                        ENTRY_OVERHEAD_BYTES + key.text().length() * 2 + embedding.length * Float.BYTES)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+
+        if (meterRegistry != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        }
+    }
+
+    @Override
+    public float[] embed(String text) {
+        // copy, so that callers can't modify the cached vector
+        return cache.get(new CacheKey(modelId, normalize(text)), key -> delegate.embed(text)).clone();
+    }
+
+    @Override
+    public List<float[]> embed(List<String> texts) {
+        Map<CacheKey, String> textsByKey = new LinkedHashMap<>();
+        for (String text : texts) {
+            textsByKey.putIfAbsent(new CacheKey(modelId, normalize(text)), text);
+        }
+
+        Map<CacheKey, float[]> embeddings = cache.getAll(textsByKey.keySet(), missingKeys -> {
+            List<CacheKey> missing = List.copyOf(missingKeys);
+            List<float[]> missingEmbeddings = delegate.embed(missing.stream().map(textsByKey::get).toList());
+
+            Map<CacheKey, float[]> loaded = new HashMap<>();
+            for (int i = 0; i < missing.size(); i++) {
+                loaded.put(missing.get(i), missingEmbeddings.get(i));
+            }
+            return loaded;
+        });
+
+        // copies, so that callers can't modify the cached vectors
+        return texts.stream()
+                .map(text -> embeddings.get(new CacheKey(modelId, normalize(text))).clone())
+                .toList();
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return delegate.embed(document);
+    }
+
+    @Override
+    public List<float[]> embed(List<Document> documents, EmbeddingOptions options, BatchingStrategy batchingStrategy) {
+        return delegate.embed(documents, options, batchingStrategy);
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        return delegate.call(request);
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private record CacheKey(String modelId, String text) {
+    }
+}
@@ -0,0 +1,4 @@
+@NonNullApi
+package com.glvov.springairag.embedding;
+
+import org.springframework.lang.NonNullApi;
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.glvov.springairag.model;
+
+import org.springframework.lang.Nullable;
+
+import java.util.List;
+
+/**
+ * Answer to one question of a batch, a line of the NDJSON response.
+ *
+ * @param index    position of the question in the batch
+ * @param question the question as asked
+ * @param answer   generated answer, {@code null} when answering failed
+ * @param chunkIds ids of the chunks put into the prompt, in their order
+ * @param error    why answering failed, {@code null} on success
+ */
+public record BatchAnswer(int index, String question, @Nullable String answer, List<String> chunkIds,
+                          @Nullable String error) {
+}
@@ -0,0 +1,14 @@
+package com.glvov.springairag.model;
+
+import org.springframework.lang.Nullable;
+
+import java.util.List;
+
+/**
+ * Page of the chat list, newest chats first.
+ *
+ * @param chats      chats of the page
+ * @param nextCursor id to request the next page with, {@code null} on the last page
+ */
+public record ChatPage(List<ChatSummary> chats, @Nullable Long nextCursor) {
+}
@@ -0,0 +1,17 @@
+package com.glvov.springairag.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Projection of {@link Chat} for the chat list, without its history.
+ */
+public interface ChatSummary {
+
+    Long getId();
+
+    String getTitle();
+
+    LocalDateTime getCreatedAt();
+
+    int getMessageCount();
+}
@@ -0,0 +1,32 @@
+package com.glvov.springairag.model;
+
+import com.glvov.springairag.advisor.misc.BM25DocumentStatistics;
+import org.springframework.lang.Nullable;
+
+import java.util.Set;
+
+/**
+ * Chunk of a loaded document as recorded in {@link LoadedDocument#getChunkManifest()}.
+ * <br><br>
+ * Holds what's needed to remove the chunk when the document changes, without reading it back
+ * from the vector store: its id and the BM25 statistics it contributed to the corpus-wide ones.
+ *
+ * @param id     vector store id, derived from the source filename and the chunk content hash
+ * @param length number of analyzed tokens in the chunk
+ * @param terms  distinct analyzed terms of the chunk, {@code null} for chunks stored before BM25 statistics
+ *               were recorded, which were never counted in the corpus-wide ones
+ */
+public record ChunkManifestEntry(String id, int length, @Nullable Set<String> terms) {
+
+    public static ChunkManifestEntry of(String id, BM25DocumentStatistics statistics) {
+        return new ChunkManifestEntry(id, statistics.length(), Set.copyOf(statistics.termFrequencies().keySet()));
+    }
+
+    public static ChunkManifestEntry uncounted(String id) {
+        return new ChunkManifestEntry(id, 0, null);
+    }
+
+    public boolean counted() {
+        return terms != null;
+    }
+}
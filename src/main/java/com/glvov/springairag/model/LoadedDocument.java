@@ -9,8 +9,11 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 @Entity
 @Data
@@ -31,6 +34,13 @@ public class LoadedDocument {
 
     private int chunkCount;
 
+    /**
+     * Chunks currently stored for this document, in order,
+     * {@code null} for documents loaded before manifests were recorded.
+     */
+    @JdbcTypeCode(SqlTypes.JSON)
+    private List<ChunkManifestEntry> chunkManifest;
+
     @CreationTimestamp
     private LocalDateTime loadedAt ;
 }
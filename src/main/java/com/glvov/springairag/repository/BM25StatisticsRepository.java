@@ -0,0 +1,64 @@
+package com.glvov.springairag.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Corpus-wide BM25 statistics stored in {@code bm25_term_stats} and {@code bm25_corpus_stats}.
+ * <br><br>
+ * Plain JDBC instead of JPA: document frequencies of all terms of a chunk are incremented with a single
+ * batched upsert, without loading term entities first.
+ */
+@Repository
+@RequiredArgsConstructor
+public class BM25StatisticsRepository {
+
+    private static final String INCREMENT_TERM_SQL = """
+            INSERT INTO bm25_term_stats (term, doc_freq) VALUES (?, ?)
+            ON CONFLICT (term) DO UPDATE SET doc_freq = bm25_term_stats.doc_freq + EXCLUDED.doc_freq
+            """;
+
+    private static final String INCREMENT_CORPUS_SQL = """
+            INSERT INTO bm25_corpus_stats (id, doc_count, total_length) VALUES (1, ?, ?)
+            ON CONFLICT (id) DO UPDATE SET doc_count = bm25_corpus_stats.doc_count + EXCLUDED.doc_count,
+                                           total_length = bm25_corpus_stats.total_length + EXCLUDED.total_length
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+
+    public Map<String, Integer> findAllDocumentFrequencies() {
+        Map<String, Integer> documentFrequencies = new HashMap<>();
+        RowCallbackHandler collector = rs -> documentFrequencies.put(rs.getString("term"), rs.getInt("doc_freq"));
+        jdbcTemplate.query("SELECT term, doc_freq FROM bm25_term_stats", collector);
+        return documentFrequencies;
+    }
+
+    public CorpusTotals findCorpusTotals() {
+        return jdbcTemplate.query("SELECT doc_count, total_length FROM bm25_corpus_stats WHERE id = 1",
+                        (rs, rowNum) -> new CorpusTotals(rs.getLong("doc_count"), rs.getLong("total_length")))
+                .stream()
+                .findFirst()
+                .orElse(new CorpusTotals(0, 0));
+    }
+
+    public void increment(Map<String, Integer> documentFrequencies, long documentCount, long totalLength) {
+        // terms are upserted in a fixed order, so that concurrent increments can't deadlock on row locks
+        List<Object[]> termArgs = new ArrayList<>(documentFrequencies.size());
+        new TreeMap<>(documentFrequencies).forEach((term, docFreq) -> termArgs.add(new Object[]{term, docFreq}));
+
+        jdbcTemplate.batchUpdate(INCREMENT_TERM_SQL, termArgs);
+        jdbcTemplate.update(INCREMENT_CORPUS_SQL, documentCount, totalLength);
+    }
+
+    public record CorpusTotals(long documentCount, long totalLength) {
+    }
+}
@@ -0,0 +1,149 @@
+package com.glvov.springairag.repository;
+
+import com.glvov.springairag.model.ChatEntry;
+import com.glvov.springairag.model.Role;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Appends chat entries to {@code chat_entry}, reads the last ones of a chat with its rolling summary
+ * and updates the summary.
+ * <br><br>
+ * Plain JDBC instead of JPA: a batch of entries of any chats is written with a single multi-row insert,
+ * without loading the {@link com.glvov.springairag.model.Chat} aggregates with their whole history.
+ */
+@Repository
+@RequiredArgsConstructor
+public class ChatHistoryRepository {
+
+    private static final String INSERT_SQL = "INSERT INTO chat_entry (chat_id, role, content, created_at) VALUES ";
+
+    private static final String ROW_PLACEHOLDERS = "(?, ?, ?, ?)";
+
+    /**
+     * The summary of the chat and a backward scan of its last entries after the summary on the
+     * {@code (chat_id, created_at)} index, returned in chronological order, one row without an entry
+     * when there are none. {@code LIMIT NULL} reads all of them.
+     */
+    private static final String FIND_WINDOW_SQL = """
+            SELECT c.summary, c.summarized_until, e.id, e.role, e.content, e.created_at
+            FROM chat c
+            LEFT JOIN LATERAL (SELECT id, role, content, created_at
+                               FROM chat_entry
+                               WHERE chat_id = c.id
+                                 AND (c.summarized_until IS NULL OR created_at > c.summarized_until)
+                               ORDER BY created_at DESC
+                               LIMIT ?) AS e ON TRUE
+            WHERE c.id = ?
+            ORDER BY e.created_at
+            """;
+
+    /**
+     * Only over the summary the new one was made from, so that a concurrent compaction isn't overwritten.
+     */
+    private static final String UPDATE_SUMMARY_SQL = """
+            UPDATE chat
+            SET summary = ?, summarized_until = ?
+            WHERE id = ? AND summarized_until IS NOT DISTINCT FROM ?
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+
+    /**
+     * @param limit entries to read at most, the last ones
+     */
+    public StoredWindow findWindow(long chatId, int limit) {
+        return findAfterSummary(chatId, limit);
+    }
+
+    /**
+     * The summary of the chat and all of its entries after the summary, to fold them into the summary.
+     */
+    public StoredWindow findUnsummarized(long chatId) {
+        return findAfterSummary(chatId, null);
+    }
+
+    private StoredWindow findAfterSummary(long chatId, @Nullable Integer limit) {
+        return jdbcTemplate.query(FIND_WINDOW_SQL, rs -> {
+            String summary = null;
+            Instant summarizedUntil = null;
+            List<ChatEntry> entries = new ArrayList<>();
+            while (rs.next()) {
+                summary = rs.getString("summary");
+                summarizedUntil = toInstant(rs.getObject("summarized_until", OffsetDateTime.class));
+                if (rs.getObject("id") != null) {
+                    entries.add(ChatEntry.builder()
+                            .id(rs.getLong("id"))
+                            .role(Role.valueOf(rs.getString("role")))
+                            .content(rs.getString("content"))
+                            .createdAt(toInstant(rs.getObject("created_at", OffsetDateTime.class)))
+                            .build());
+                }
+            }
+            return new StoredWindow(summary, summarizedUntil, entries);
+        }, limit, chatId);
+    }
+
+    /**
+     * @param previousSummarizedUntil {@code summarized_until} of the summary the new one was made from
+     * @return whether the summary was updated, not when the chat is gone or was summarized meanwhile
+     */
+    public boolean updateSummary(long chatId, String summary, Instant summarizedUntil,
+                                 @Nullable Instant previousSummarizedUntil) {
+        return jdbcTemplate.update(UPDATE_SUMMARY_SQL,
+                summary, toTimestamp(summarizedUntil), chatId, toTimestamp(previousSummarizedUntil)) > 0;
+    }
+
+    public void insertAll(List<ChatEntryRow> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        String sql = INSERT_SQL + String.join(", ", Collections.nCopies(rows.size(), ROW_PLACEHOLDERS));
+        Object[] args = new Object[rows.size() * 4];
+        for (int i = 0; i < rows.size(); i++) {
+            ChatEntryRow row = rows.get(i);
+            args[i * 4] = row.chatId();
+            args[i * 4 + 1] = row.role().name();
+            args[i * 4 + 2] = row.content();
+            args[i * 4 + 3] = toTimestamp(row.createdAt());
+        }
+
+        jdbcTemplate.update(sql, args);
+    }
+
+    /**
+     * The JDBC driver maps {@code OffsetDateTime}, not {@code Instant}, to {@code TIMESTAMPTZ}.
+     */
+    @Nullable
+    private static OffsetDateTime toTimestamp(@Nullable Instant instant) {
+        return instant != null ? instant.atOffset(ZoneOffset.UTC) : null;
+    }
+
+    @Nullable
+    private static Instant toInstant(@Nullable OffsetDateTime timestamp) {
+        return timestamp != null ? timestamp.toInstant() : null;
+    }
+
+    public record ChatEntryRow(long chatId, Role role, String content, Instant createdAt) {
+    }
+
+    /**
+     * @param summary         rolling summary of the chat entries up to {@code summarizedUntil}, if any
+     * @param summarizedUntil creation time of the last summarized entry
+     * @param entries         last entries after the summarized ones, in chronological order
+     */
+    public record StoredWindow(@Nullable String summary, @Nullable Instant summarizedUntil,
+                               List<ChatEntry> entries) {
+    }
+}
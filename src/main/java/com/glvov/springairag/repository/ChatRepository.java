@@ -1,7 +1,28 @@
 package com.glvov.springairag.repository;
 
 import com.glvov.springairag.model.Chat;
+import com.glvov.springairag.model.ChatSummary;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
 
 public interface ChatRepository extends JpaRepository<Chat, Long> {
+
+    /**
+     * Keyset pagination over chats, newest first: the page after the chat {@code beforeId}.
+     * Entries are only counted (per chat of the page), never loaded.
+     * <br><br>
+     * The key is the id alone, which follows the creation order and, unlike {@code createdAt}, is unique:
+     * chats created at the same time are neither repeated nor skipped at a page boundary.
+     */
+    @Query("""
+            SELECT c.id AS id, c.title AS title, c.createdAt AS createdAt, SIZE(c.history) AS messageCount
+            FROM Chat c
+            WHERE c.id < :beforeId
+            ORDER BY c.id DESC
+            """)
+    List<ChatSummary> findSummariesBefore(@Param("beforeId") long beforeId, Limit limit);
 }
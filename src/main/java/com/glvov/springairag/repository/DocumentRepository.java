@@ -3,6 +3,8 @@ package com.glvov.springairag.repository;
 import com.glvov.springairag.model.LoadedDocument;
 import org.springframework.data.jpa.repository.JpaRepository;
 
+import java.util.List;
+
 public interface DocumentRepository extends JpaRepository<LoadedDocument, Long> {
-    boolean existsByFilenameAndContentHash(String filename, String contentHash);
+    List<LoadedDocument> findByFilenameOrderByLoadedAtDesc(String filename);
 }
@@ -0,0 +1,171 @@
+package com.glvov.springairag.repository;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.glvov.springairag.advisor.misc.LanguageAnalyzerRegistry;
+import com.pgvector.PGvector;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentMetadata;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.FilterExpressionConverter;
+import org.springframework.ai.vectorstore.pgvector.PgVectorFilterExpressionConverter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Hybrid search over the {@code vector_store} table: a vector and a full-text search fused with
+ * reciprocal rank fusion (RRF), in a single statement.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>Vector search: the {@code candidates} nearest chunks by cosine distance within the similarity threshold
+ *     of the request, from the HNSW index.</li>
+ *     <li>Full-text search: the {@code candidates} best chunks by {@code ts_rank_cd} matching any term
+ *     of the query, from the GIN index of {@code content_tsv}. The {@code simple} text search configuration
+ *     doesn't stem or drop words, so product names and error codes match exactly, in any language.
+ *     English, Russian and German stopwords are dropped from the query (see {@link #lexicalQuery(String)}),
+ *     otherwise an OR of them would match and rank almost every chunk, ahead of the ones with the rare term.
+ *     Lexical hits don't need to pass the similarity threshold, that's what they are for.</li>
+ *     <li>A chunk scores {@code vectorWeight / (rrfK + vector rank) + lexicalWeight / (rrfK + lexical rank)},
+ *     a rank it doesn't have adds nothing, the {@code topK} best chunks are returned.</li>
+ * </ul>
+ * Results look like the ones of {@link org.springframework.ai.vectorstore.pgvector.PgVectorStore}, except that
+ * the score is the RRF score: the cosine distance is in the metadata, filter expressions are converted to
+ * the same {@code jsonpath} and apply to both searches.
+ */
+@Repository
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "spring.ai.vectorstore.type", havingValue = "pgvector", matchIfMissing = true)
+public class HybridSearchRepository {
+
+    private static final TypeReference<Map<String, Object>> METADATA_TYPE = new TypeReference<>() {
+    };
+
+    // pgvector returns at most hnsw.ef_search (40 by default) rows from an HNSW index scan
+    private static final String SET_EF_SEARCH_SQL = "SELECT set_config('hnsw.ef_search', ?, true)";
+
+    // plainto_tsquery ANDs the terms, an OR of them finds chunks with any of the exact terms,
+    // only a function call may appear in FROM, hence CAST instead of ::
+    private static final String SEARCH_SQL = """
+            WITH vector_hits AS (
+                SELECT id, ROW_NUMBER() OVER (ORDER BY distance) AS rank
+                FROM (
+                    SELECT id, embedding <=> ? AS distance
+                    FROM vector_store
+                    WHERE embedding <=> ? < ? %1$s
+                    ORDER BY embedding <=> ?
+                    LIMIT ?
+                ) nearest
+            ),
+            lexical_hits AS (
+                SELECT id, ROW_NUMBER() OVER (ORDER BY lexical_score DESC) AS rank
+                FROM (
+                    SELECT id, ts_rank_cd(content_tsv, query) AS lexical_score
+                    FROM vector_store,
+                         CAST(replace(plainto_tsquery('simple', ?)::text, '&', '|') AS tsquery) AS query
+                    WHERE content_tsv @@ query %1$s
+                    ORDER BY lexical_score DESC
+                    LIMIT ?
+                ) matching
+            ),
+            fused AS (
+                SELECT COALESCE(v.id, l.id) AS id,
+                       COALESCE(? / (? + v.rank), 0) + COALESCE(? / (? + l.rank), 0) AS rrf_score
+                FROM vector_hits v
+                FULL OUTER JOIN lexical_hits l ON l.id = v.id
+            )
+            SELECT s.id, s.content, s.metadata::text AS metadata, s.embedding <=> ? AS distance, f.rrf_score
+            FROM fused f
+            JOIN vector_store s ON s.id = f.id
+            ORDER BY f.rrf_score DESC, distance
+            LIMIT ?
+            """;
+
+    private static final int MAX_EF_SEARCH = 1000;
+
+    // letters and digits, joined by hyphens, underscores or dots, like product names and error codes
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+(?:[-_.][\\p{L}\\p{N}]+)*");
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final ObjectMapper objectMapper;
+
+    private final FilterExpressionConverter filterExpressionConverter = new PgVectorFilterExpressionConverter();
+
+
+    /**
+     * @param query      embedding of the query text of the request
+     * @param candidates chunks taken from each search before fusion, at least {@code topK} of the request
+     */
+    @Transactional(readOnly = true)
+    public List<Document> search(float[] query, SearchRequest request, int candidates, Weights weights) {
+        int limit = Math.max(candidates, request.getTopK());
+        jdbcTemplate.queryForObject(SET_EF_SEARCH_SQL, String.class, String.valueOf(Math.min(limit, MAX_EF_SEARCH)));
+
+        PGvector vector = new PGvector(query);
+        String sql = SEARCH_SQL.formatted(filterClause(request));
+        return jdbcTemplate.query(sql, this::toDocument,
+                vector, vector, 1 - request.getSimilarityThreshold(), vector, limit,
+                lexicalQuery(request.getQuery()), limit,
+                weights.vector(), weights.rrfK(), weights.lexical(), weights.rrfK(),
+                vector, request.getTopK());
+    }
+
+    /**
+     * Words of the query without stopwords, lowercased as by the {@code simple} configuration,
+     * {@code plainto_tsquery} splits them into lexemes the same way as the chunks.
+     */
+    static String lexicalQuery(String query) {
+        return WORD.matcher(query).results()
+                .map(match -> match.group().toLowerCase(Locale.ROOT))
+                .filter(word -> !LanguageAnalyzerRegistry.QUERY_STOPWORDS.contains(word))
+                .distinct()
+                .collect(Collectors.joining(" "));
+    }
+
+    private String filterClause(SearchRequest request) {
+        if (!request.hasFilterExpression()) {
+            return "";
+        }
+        return " AND metadata::jsonb @@ '%s'::jsonpath"
+                .formatted(filterExpressionConverter.convertExpression(request.getFilterExpression()));
+    }
+
+    private Document toDocument(ResultSet rs, int rowNum) throws SQLException {
+        Map<String, Object> metadata = new HashMap<>(parseMetadata(rs.getString("metadata")));
+        metadata.put(DocumentMetadata.DISTANCE.value(), (float) rs.getDouble("distance"));
+
+        return Document.builder()
+                .id(rs.getString("id"))
+                .text(rs.getString("content"))
+                .metadata(metadata)
+                .score(rs.getDouble("rrf_score"))
+                .build();
+    }
+
+    @SneakyThrows
+    private Map<String, Object> parseMetadata(String metadata) {
+        return objectMapper.readValue(metadata, METADATA_TYPE);
+    }
+
+    /**
+     * @param vector  weight of the vector search rank
+     * @param lexical weight of the full-text search rank
+     * @param rrfK    RRF constant, the higher, the less the top ranks dominate
+     */
+    public record Weights(double vector, double lexical, int rrfK) {
+    }
+}
@@ -0,0 +1,54 @@
+package com.glvov.springairag.repository;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.glvov.springairag.advisor.misc.BM25DocumentStatistics;
+import com.glvov.springairag.model.ChunkManifestEntry;
+import com.glvov.springairag.service.VectorStoreService;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads stored chunks straight from the {@code vector_store} table of pgvector.
+ */
+@Repository
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "spring.ai.vectorstore.type", havingValue = "pgvector", matchIfMissing = true)
+public class PgVectorStoreChunkRepository implements VectorStoreChunkRepository {
+
+    private static final TypeReference<Map<String, Object>> METADATA_TYPE = new TypeReference<>() {
+    };
+
+    // the oldest chunks only have the source set by TextReader
+    private static final String FIND_BY_SOURCE_SQL = """
+            SELECT id, metadata::text AS metadata
+            FROM vector_store
+            WHERE metadata ->> 'source' = ? OR metadata ->> '%s' = ?
+            """.formatted(VectorStoreService.SOURCE_FILENAME_KEY);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final ObjectMapper objectMapper;
+
+
+    @Override
+    public List<ChunkManifestEntry> findManifestBySource(String filename) {
+        return jdbcTemplate.query(FIND_BY_SOURCE_SQL, (rs, rowNum) -> {
+            String id = rs.getString("id");
+            return BM25DocumentStatistics.fromMetadata(parseMetadata(rs.getString("metadata")))
+                    .map(statistics -> ChunkManifestEntry.of(id, statistics))
+                    .orElseGet(() -> ChunkManifestEntry.uncounted(id));
+        }, filename, filename);
+    }
+
+    @SneakyThrows
+    private Map<String, Object> parseMetadata(String metadata) {
+        return objectMapper.readValue(metadata, METADATA_TYPE);
+    }
+}
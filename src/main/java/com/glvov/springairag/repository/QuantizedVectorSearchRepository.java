@@ -0,0 +1,123 @@
+package com.glvov.springairag.repository;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.glvov.springairag.advisor.misc.SearchQuantization;
+import com.pgvector.PGvector;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentMetadata;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.FilterExpressionConverter;
+import org.springframework.ai.vectorstore.pgvector.PgVectorFilterExpressionConverter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Two-stage similarity search over the quantized embeddings of the {@code vector_store} table,
+ * see {@link SearchQuantization}:
+ * <ol>
+ *     <li>{@code candidates} nearest chunks by the quantized embedding, from its own HNSW index;</li>
+ *     <li>exact cosine distance of the candidates to the query on the full embedding, the {@code topK}
+ *     nearest of them within the similarity threshold are returned.</li>
+ * </ol>
+ * Both stages are a single statement. Results look like the ones of
+ * {@link org.springframework.ai.vectorstore.pgvector.PgVectorStore}: score is {@code 1 - distance},
+ * the distance is also in the metadata, filter expressions are converted to the same {@code jsonpath}.
+ */
+@Repository
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "spring.ai.vectorstore.type", havingValue = "pgvector", matchIfMissing = true)
+public class QuantizedVectorSearchRepository {
+
+    private static final TypeReference<Map<String, Object>> METADATA_TYPE = new TypeReference<>() {
+    };
+
+    // pgvector returns at most hnsw.ef_search (40 by default) rows from an HNSW index scan
+    private static final String SET_EF_SEARCH_SQL = "SELECT set_config('hnsw.ef_search', ?, true)";
+
+    private static final String SEARCH_SQL = """
+            WITH candidates AS (
+                SELECT id, content, metadata, embedding
+                FROM vector_store
+                WHERE TRUE %s
+                ORDER BY %s
+                LIMIT ?
+            )
+            SELECT id, content, metadata::text AS metadata, embedding <=> ? AS distance
+            FROM candidates
+            WHERE embedding <=> ? < ?
+            ORDER BY distance
+            LIMIT ?
+            """;
+
+    private static final int MAX_EF_SEARCH = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final ObjectMapper objectMapper;
+
+    private final FilterExpressionConverter filterExpressionConverter = new PgVectorFilterExpressionConverter();
+
+
+    /**
+     * @param candidates chunks found by the first pass, at least {@code topK} of the request
+     */
+    @Transactional(readOnly = true)
+    public List<Document> search(float[] query, SearchQuantization quantization, int candidates,
+                                 SearchRequest request) {
+        int limit = Math.max(candidates, request.getTopK());
+        jdbcTemplate.queryForObject(SET_EF_SEARCH_SQL, String.class, String.valueOf(Math.min(limit, MAX_EF_SEARCH)));
+
+        PGvector vector = new PGvector(query);
+        String sql = SEARCH_SQL.formatted(filterClause(request), firstPassOrder(quantization));
+        return jdbcTemplate.query(sql, this::toDocument,
+                vector, limit, vector, vector, 1 - request.getSimilarityThreshold(), request.getTopK());
+    }
+
+    /**
+     * Distances match the operator classes of the indexes in {@code 01-create-tables.sql}.
+     */
+    private static String firstPassOrder(SearchQuantization quantization) {
+        return switch (quantization) {
+            case NONE -> "embedding <=> ?";
+            case HALFVEC -> "embedding_halfvec <=> ?::halfvec";
+            case BIT -> "embedding_bit <~> binary_quantize(?::vector)";
+        };
+    }
+
+    private String filterClause(SearchRequest request) {
+        if (!request.hasFilterExpression()) {
+            return "";
+        }
+        return " AND metadata::jsonb @@ '%s'::jsonpath"
+                .formatted(filterExpressionConverter.convertExpression(request.getFilterExpression()));
+    }
+
+    private Document toDocument(ResultSet rs, int rowNum) throws SQLException {
+        double distance = rs.getDouble("distance");
+        Map<String, Object> metadata = new HashMap<>(parseMetadata(rs.getString("metadata")));
+        metadata.put(DocumentMetadata.DISTANCE.value(), (float) distance);
+
+        return Document.builder()
+                .id(rs.getString("id"))
+                .text(rs.getString("content"))
+                .metadata(metadata)
+                .score(1 - distance)
+                .build();
+    }
+
+    @SneakyThrows
+    private Map<String, Object> parseMetadata(String metadata) {
+        return objectMapper.readValue(metadata, METADATA_TYPE);
+    }
+}
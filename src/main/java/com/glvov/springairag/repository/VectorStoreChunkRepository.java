@@ -0,0 +1,17 @@
+package com.glvov.springairag.repository;
+
+import com.glvov.springairag.model.ChunkManifestEntry;
+
+import java.util.List;
+
+/**
+ * Reads chunks of documents loaded before chunk manifests were recorded in {@code loaded_document}
+ * back from the vector store, which {@link org.springframework.ai.vectorstore.VectorStore} can't.
+ */
+public interface VectorStoreChunkRepository {
+
+    /**
+     * @return manifest entries of the chunks of the document, uncounted for chunks without BM25 statistics
+     */
+    List<ChunkManifestEntry> findManifestBySource(String filename);
+}
@@ -0,0 +1,113 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.advisor.misc.BM25CorpusStatistics;
+import com.glvov.springairag.advisor.misc.BM25DocumentStatistics;
+import com.glvov.springairag.model.ChunkManifestEntry;
+import com.glvov.springairag.repository.BM25StatisticsRepository;
+import com.glvov.springairag.repository.BM25StatisticsRepository.CorpusTotals;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps corpus-wide BM25 statistics up to date as chunks of RAG documents are stored and deleted.
+ * <br><br>
+ * Statistics are persisted in the database and mirrored in memory, so the reranker reads
+ * document frequencies on every request without an extra database round trip.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BM25StatisticsService implements BM25CorpusStatistics {
+
+    private final BM25StatisticsRepository statisticsRepository;
+
+    private final Map<String, Integer> documentFrequencies = new ConcurrentHashMap<>();
+    private final AtomicLong documentCount = new AtomicLong();
+    private final AtomicLong totalLength = new AtomicLong();
+
+
+    @PostConstruct
+    public void loadStatistics() {
+        documentFrequencies.putAll(statisticsRepository.findAllDocumentFrequencies());
+
+        CorpusTotals totals = statisticsRepository.findCorpusTotals();
+        documentCount.set(totals.documentCount());
+        totalLength.set(totals.totalLength());
+
+        log.info("BM25 statistics loaded, chunks: {}, terms: {}", documentCount.get(), documentFrequencies.size());
+    }
+
+    /**
+     * Adds statistics of newly stored chunks to the corpus-wide ones.
+     */
+    @Transactional
+    public void addDocuments(List<BM25DocumentStatistics> documents) {
+        Map<String, Integer> documentFrequenciesDelta = new HashMap<>();
+        long lengthDelta = 0;
+
+        for (BM25DocumentStatistics document : documents) {
+            lengthDelta += document.length();
+            document.termFrequencies().keySet()
+                    .forEach(term -> documentFrequenciesDelta.merge(term, 1, Integer::sum));
+        }
+
+        applyDelta(documentFrequenciesDelta, documents.size(), lengthDelta);
+    }
+
+    /**
+     * Subtracts statistics of chunks deleted from the vector store from the corpus-wide ones,
+     * chunks which were never counted are skipped.
+     */
+    @Transactional
+    public void removeDocuments(List<ChunkManifestEntry> chunks) {
+        Map<String, Integer> documentFrequenciesDelta = new HashMap<>();
+        long lengthDelta = 0;
+        long documentCountDelta = 0;
+
+        for (ChunkManifestEntry chunk : chunks) {
+            if (!chunk.counted()) {
+                continue;
+            }
+            documentCountDelta--;
+            lengthDelta -= chunk.length();
+            chunk.terms().forEach(term -> documentFrequenciesDelta.merge(term, -1, Integer::sum));
+        }
+
+        applyDelta(documentFrequenciesDelta, documentCountDelta, lengthDelta);
+    }
+
+    private void applyDelta(Map<String, Integer> documentFrequenciesDelta, long documentCountDelta, long lengthDelta) {
+        statisticsRepository.increment(documentFrequenciesDelta, documentCountDelta, lengthDelta);
+
+        documentFrequenciesDelta.forEach((term, docFreq) -> documentFrequencies.merge(
+                term, docFreq, (current, delta) -> current + delta > 0 ? current + delta : null
+        ));
+        totalLength.addAndGet(lengthDelta);
+        documentCount.addAndGet(documentCountDelta);
+    }
+
+    @Override
+    public long documentCount() {
+        return documentCount.get();
+    }
+
+    @Override
+    public double averageDocumentLength() {
+        long count = documentCount.get();
+        return count == 0 ? 0.0 : (double) totalLength.get() / count;
+    }
+
+    @Override
+    public int documentFrequency(String term) {
+        return documentFrequencies.getOrDefault(term, 0);
+    }
+}
@@ -0,0 +1,201 @@
+package com.glvov.springairag.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.glvov.springairag.advisor.RagAdvisor;
+import com.glvov.springairag.embedding.CachingEmbeddingModel;
+import com.glvov.springairag.model.BatchAnswer;
+import com.glvov.springairag.utils.QueryNormalizer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.glvov.springairag.advisor.RagAdvisor.RETRIEVED_CHUNK_IDS;
+import static com.glvov.springairag.utils.QueryNormalizer.normalize;
+
+/**
+ * Answers a batch of questions with the RAG pipeline, outside of any chat.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>Questions equal after {@link QueryNormalizer} normalization are answered once,
+ *     the answer is returned for each of them.</li>
+ *     <li>All questions are embedded with one request up front, the searches then get their embeddings
+ *     from {@link CachingEmbeddingModel}.</li>
+ *     <li>Chunks are retrieved by {@link RagAdvisor}, at most {@code maxConcurrentSearches} searches at a time.</li>
+ *     <li>Answers are generated by {@code batchChatClient} (the system prompt and options of the main client,
+ *     without advisors, so nothing goes to chat memory), at most {@code maxConcurrentGenerations} at a time,
+ *     so that a batch leaves LLM bulkhead slots to interactive chats.</li>
+ *     <li>Answers are emitted as they are generated, not in the order of the questions. A failed question
+ *     gets an answer with the error instead of failing the batch.</li>
+ * </ul>
+ */
+@Slf4j
+@Service
+public class BatchQuestionService {
+
+    private static final AdvisorChain NO_ADVISORS = new AdvisorChain() {
+    };
+
+    private final ChatClient batchChatClient;
+
+    private final RagAdvisor ragAdvisor;
+
+    private final EmbeddingModel embeddingModel;
+
+    private final ObjectMapper objectMapper;
+
+    private final Scheduler advisorScheduler;
+
+    private final int maxConcurrentSearches;
+
+    private final int maxConcurrentGenerations;
+
+
+    public BatchQuestionService(@Qualifier("batchChatClient") ChatClient batchChatClient,
+                                RagAdvisor ragAdvisor,
+                                EmbeddingModel embeddingModel,
+                                ObjectMapper objectMapper,
+                                Scheduler advisorScheduler,
+                                @Value("${spring.ai.batch.max-concurrent-searches:8}") int maxConcurrentSearches,
+                                @Value("${spring.ai.batch.max-concurrent-generations:2}")
+                                int maxConcurrentGenerations) {
+        this.batchChatClient = batchChatClient;
+        this.ragAdvisor = ragAdvisor;
+        this.embeddingModel = embeddingModel;
+        this.objectMapper = objectMapper;
+        this.advisorScheduler = advisorScheduler;
+        this.maxConcurrentSearches = maxConcurrentSearches;
+        this.maxConcurrentGenerations = maxConcurrentGenerations;
+    }
+
+    /**
+     * Writes the answers to the returned emitter as NDJSON lines, the batch is cancelled when the client goes away.
+     */
+    public ResponseBodyEmitter streamAnswers(List<String> questions) {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(0L);
+
+        Disposable batch = answer(questions).subscribe(
+                answer -> send(emitter, answer),
+                emitter::completeWithError,
+                emitter::complete
+        );
+        emitter.onCompletion(batch::dispose);
+        emitter.onError(error -> batch.dispose());
+        emitter.onTimeout(batch::dispose);
+
+        return emitter;
+    }
+
+    public Flux<BatchAnswer> answer(List<String> questions) {
+        Map<String, QuestionGroup> groups = new LinkedHashMap<>();
+        for (int i = 0; i < questions.size(); i++) {
+            String question = questions.get(i);
+            groups.computeIfAbsent(normalize(question), key -> new QuestionGroup(question, new ArrayList<>()))
+                    .indexes()
+                    .add(i);
+        }
+        List<QuestionGroup> uniqueQuestions = List.copyOf(groups.values());
+
+        return Mono.fromRunnable(() -> embedAll(uniqueQuestions))
+                .subscribeOn(advisorScheduler)
+                .thenMany(Flux.fromIterable(uniqueQuestions))
+                .flatMap(this::retrieve, maxConcurrentSearches)
+                .flatMap(this::generate, maxConcurrentGenerations);
+    }
+
+    private void embedAll(List<QuestionGroup> groups) {
+        if (!(embeddingModel instanceof CachingEmbeddingModel)) {
+            // searches would embed the questions again
+            return;
+        }
+        try {
+            embeddingModel.embed(groups.stream().map(QuestionGroup::question).toList());
+        } catch (RuntimeException e) {
+            log.warn("Batch embedding failed, questions are embedded one by one", e);
+        }
+    }
+
+    private Mono<Retrieval> retrieve(QuestionGroup group) {
+        return Mono.fromCallable(() -> {
+                    ChatClientRequest request = ChatClientRequest.builder()
+                            .prompt(new Prompt(new UserMessage(group.question())))
+                            .build();
+                    return new Retrieval(group, ragAdvisor.before(request, NO_ADVISORS), null);
+                })
+                .subscribeOn(advisorScheduler)
+                .onErrorResume(error -> Mono.just(new Retrieval(group, null, error)));
+    }
+
+    private Flux<BatchAnswer> generate(Retrieval retrieval) {
+        if (retrieval.request() == null) {
+            return Flux.fromIterable(retrieval.group().failed(retrieval.error()));
+        }
+
+        List<String> chunkIds = chunkIds(retrieval.request());
+        return Mono.fromCallable(() -> batchChatClient.prompt(retrieval.request().prompt()).call().content())
+                .subscribeOn(advisorScheduler)
+                .defaultIfEmpty("")
+                .flatMapIterable(answer -> retrieval.group().answered(answer, chunkIds))
+                .onErrorResume(error -> Flux.fromIterable(retrieval.group().failed(error)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> chunkIds(ChatClientRequest request) {
+        return request.context().get(RETRIEVED_CHUNK_IDS) instanceof List<?> ids ? (List<String>) ids : List.of();
+    }
+
+    private void send(ResponseBodyEmitter emitter, BatchAnswer answer) {
+        try {
+            emitter.send(objectMapper.writeValueAsString(answer) + "\n", MediaType.APPLICATION_NDJSON);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A question and the positions of it and its duplicates in the batch.
+     */
+    private record QuestionGroup(String question, List<Integer> indexes) {
+
+        List<BatchAnswer> answered(String answer, List<String> chunkIds) {
+            return indexes.stream()
+                    .map(index -> new BatchAnswer(index, question, answer, chunkIds, null))
+                    .toList();
+        }
+
+        List<BatchAnswer> failed(@Nullable Throwable error) {
+            log.warn("Batch question failed: {}", question, error);
+            String message = error != null && error.getMessage() != null ? error.getMessage() : "Answering failed";
+            return indexes.stream()
+                    .map(index -> new BatchAnswer(index, question, null, List.of(), message))
+                    .toList();
+        }
+    }
+
+    private record Retrieval(QuestionGroup group, @Nullable ChatClientRequest request, @Nullable Throwable error) {
+    }
+}
@@ -0,0 +1,265 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.model.ChatEntry;
+import com.glvov.springairag.repository.ChatHistoryRepository;
+import com.glvov.springairag.repository.ChatHistoryRepository.ChatEntryRow;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Write-behind persistence of chat history.
+ * <br><br>
+ * Chat turns of both the blocking and the streaming path reach {@link PostgresChatMemory#add} on the request
+ * (or reactor) thread. Instead of loading the {@link com.glvov.springairag.model.Chat} aggregate and saving it,
+ * entries are put into a bounded queue and a single background thread writes them with multi-row inserts:
+ * <ul>
+ *     <li>The flusher takes whatever has accumulated (up to {@code batchSize} entries), so under load many turns
+ *     share one insert, while a single turn is written right away.</li>
+ *     <li>Entries are timestamped when queued, so their order doesn't depend on the order of inserts.</li>
+ *     <li>Entries not written yet are visible through {@link #pendingEntries}, so a chat reads its own writes.</li>
+ *     <li>When the queue is full for longer than {@code offerTimeout}, the entry is written on the calling thread
+ *     (backpressure instead of dropping history).</li>
+ *     <li>On shutdown the queue is drained before the data source is closed.</li>
+ * </ul>
+ * Metrics: {@code chat.history.queue.size}, {@code chat.history.entries} tagged with {@code result},
+ * {@code chat.history.backpressure}, {@code chat.history.flush} and {@code chat.history.batch.size}.
+ */
+@Slf4j
+@Service
+public class ChatHistoryWriter {
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(100);
+
+    private final ChatHistoryRepository chatHistoryRepository;
+
+    private final int batchSize;
+
+    private final Duration offerTimeout;
+
+    private final Duration shutdownTimeout;
+
+    private final BlockingQueue<ChatEntryRow> queue;
+
+    /**
+     * Queued and in-flight entries by chat id, removed once written.
+     */
+    private final Map<Long, Queue<ChatEntryRow>> pendingByChat = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastTimestampMicros = new AtomicLong();
+
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("chat-history-writer").daemon().factory()
+    );
+
+    private volatile boolean running = true;
+
+    private final Counter writtenEntries;
+    private final Counter failedEntries;
+    private final Counter backpressure;
+    private final Timer flushTimer;
+    private final DistributionSummary batchSizes;
+
+
+    public ChatHistoryWriter(ChatHistoryRepository chatHistoryRepository,
+                             MeterRegistry meterRegistry,
+                             @Value("${spring.ai.chat.memory.write-behind.queue-capacity:10000}") int queueCapacity,
+                             @Value("${spring.ai.chat.memory.write-behind.batch-size:200}") int batchSize,
+                             @Value("${spring.ai.chat.memory.write-behind.offer-timeout:50ms}") Duration offerTimeout,
+                             @Value("${spring.ai.chat.memory.write-behind.shutdown-timeout:10s}") Duration shutdownTimeout) {
+        this.chatHistoryRepository = chatHistoryRepository;
+        this.batchSize = batchSize;
+        this.offerTimeout = offerTimeout;
+        this.shutdownTimeout = shutdownTimeout;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        meterRegistry.gauge("chat.history.queue.size", queue, BlockingQueue::size);
+        this.writtenEntries = meterRegistry.counter("chat.history.entries", "result", "written");
+        this.failedEntries = meterRegistry.counter("chat.history.entries", "result", "failed");
+        this.backpressure = meterRegistry.counter("chat.history.backpressure");
+        this.flushTimer = meterRegistry.timer("chat.history.flush");
+        this.batchSizes = meterRegistry.summary("chat.history.batch.size");
+    }
+
+    @PostConstruct
+    public void start() {
+        flusher.execute(this::flushLoop);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        flusher.shutdown();
+        if (!flusher.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            log.error("Chat history writer didn't finish in {}, {} entries are not saved", shutdownTimeout, queue.size());
+        }
+    }
+
+    /**
+     * Queues entries of the chat to be written, blocks only when the queue is full.
+     *
+     * @return the queued entries with their creation timestamps
+     */
+    public List<ChatEntry> write(long chatId, List<ChatEntry> entries) {
+        List<ChatEntry> queuedEntries = new ArrayList<>(entries.size());
+        for (ChatEntry entry : entries) {
+            ChatEntryRow row = new ChatEntryRow(chatId, entry.getRole(), entry.getContent(), nextTimestamp());
+            addPending(row);
+
+            if (!running || !offer(row)) {
+                backpressure.increment();
+                flush(List.of(row));
+            }
+            queuedEntries.add(toChatEntry(row));
+        }
+        return queuedEntries;
+    }
+
+    /**
+     * Snapshot of the chat entries not written yet, to be appended to the stored history of the chat.
+     * <br><br>
+     * Must be taken before the stored history is read: an entry written in between is then found
+     * in the stored history and skipped, rather than missing from both.
+     */
+    public PendingEntries pendingEntries(long chatId) {
+        Queue<ChatEntryRow> pending = pendingByChat.get(chatId);
+        return new PendingEntries(pending != null ? List.copyOf(pending) : List.of());
+    }
+
+    private boolean offer(ChatEntryRow row) {
+        try {
+            return queue.offer(row, offerTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void flushLoop() {
+        List<ChatEntryRow> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                ChatEntryRow first = queue.poll(POLL_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Chat history writer interrupted, {} entries are not saved", queue.size());
+                return;
+            } catch (RuntimeException e) {
+                log.error("Unexpected chat history writer failure", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<ChatEntryRow> batch) {
+        try {
+            flushTimer.record(() -> chatHistoryRepository.insertAll(batch));
+            batchSizes.record(batch.size());
+            writtenEntries.increment(batch.size());
+        } catch (DataAccessException e) {
+            // e.g. the chat was deleted meanwhile: one failing row must not fail the others
+            log.warn("Multi-row insert of {} chat entries failed, inserting them one by one", batch.size(), e);
+            batch.forEach(this::insertSingle);
+        } finally {
+            batch.forEach(this::removePending);
+        }
+    }
+
+    private void insertSingle(ChatEntryRow row) {
+        try {
+            chatHistoryRepository.insertAll(List.of(row));
+            writtenEntries.increment();
+        } catch (DataAccessException e) {
+            log.error("Chat entry of chat {} is not saved", row.chatId(), e);
+            failedEntries.increment();
+        }
+    }
+
+    private void addPending(ChatEntryRow row) {
+        // within compute, so that a concurrent removal of the last pending entry can't drop the queue being added to
+        pendingByChat.compute(row.chatId(), (chatId, pending) -> {
+            Queue<ChatEntryRow> entries = pending != null ? pending : new ConcurrentLinkedQueue<>();
+            entries.add(row);
+            return entries;
+        });
+    }
+
+    private void removePending(ChatEntryRow row) {
+        pendingByChat.computeIfPresent(row.chatId(), (chatId, pending) -> {
+            pending.remove(row);
+            return pending.isEmpty() ? null : pending;
+        });
+    }
+
+    private static ChatEntry toChatEntry(ChatEntryRow row) {
+        return ChatEntry.builder()
+                .role(row.role())
+                .content(row.content())
+                .createdAt(row.createdAt())
+                .build();
+    }
+
+    /**
+     * Current time at microsecond precision of {@code TIMESTAMPTZ(6)}, strictly increasing between calls.
+     */
+    private Instant nextTimestamp() {
+        long nowMicros = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+        long micros = lastTimestampMicros.accumulateAndGet(nowMicros, (last, now) -> Math.max(last + 1, now));
+        return Instant.EPOCH.plus(micros, ChronoUnit.MICROS);
+    }
+
+    public record PendingEntries(List<ChatEntryRow> rows) {
+
+        public List<ChatEntry> appendTo(List<ChatEntry> storedHistory) {
+            if (rows.isEmpty()) {
+                return storedHistory;
+            }
+
+            // timestamps are unique within the writer, so they identify entries already written
+            Set<Instant> storedTimestamps = storedHistory.stream()
+                    .map(ChatEntry::getCreatedAt)
+                    .collect(Collectors.toSet());
+
+            List<ChatEntry> history = new ArrayList<>(storedHistory);
+            rows.stream()
+                    .filter(row -> !storedTimestamps.contains(row.createdAt()))
+                    .sorted(Comparator.comparing(ChatEntryRow::createdAt))
+                    .map(ChatHistoryWriter::toChatEntry)
+                    .forEach(history::add);
+            return history;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.model.ChatEntry;
+import com.glvov.springairag.repository.ChatHistoryRepository.StoredWindow;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Ring buffer of the last chat entries of a conversation, ordered by creation time,
+ * with the rolling summary of the entries before them.
+ * <br><br>
+ * Entries are identified by their creation timestamp (unique within {@link ChatHistoryWriter}),
+ * so appending an entry the window was already loaded with, or one already summarized, is a no-op.
+ */
+class ChatMemoryWindow {
+
+    private static final Comparator<ChatEntry> BY_CREATED_AT = Comparator.comparing(
+            ChatEntry::getCreatedAt, Comparator.nullsFirst(Comparator.naturalOrder())
+    );
+
+    private final int capacity;
+
+    private final List<ChatEntry> entries;
+
+    private String summary;
+
+    private Instant summarizedUntil;
+
+
+    ChatMemoryWindow(int capacity, StoredWindow window) {
+        this.capacity = capacity;
+        this.entries = new ArrayList<>(capacity + 1);
+        this.summary = window.summary();
+        this.summarizedUntil = window.summarizedUntil();
+        append(window.entries());
+    }
+
+    synchronized void append(List<ChatEntry> newEntries) {
+        for (ChatEntry entry : newEntries) {
+            if (isSummarized(entry) || contains(entry.getCreatedAt())) {
+                continue;
+            }
+
+            // concurrent writers of the same conversation may append out of order, the window is small anyway
+            int position = entries.size();
+            while (position > 0 && BY_CREATED_AT.compare(entries.get(position - 1), entry) > 0) {
+                position--;
+            }
+            entries.add(position, entry);
+
+            if (entries.size() > capacity) {
+                entries.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Replaces the summary with one which covers the entries up to {@code until}, they are dropped.
+     */
+    synchronized void summarize(String newSummary, Instant until) {
+        summary = newSummary;
+        summarizedUntil = until;
+        entries.removeIf(this::isSummarized);
+    }
+
+    synchronized StoredWindow snapshot() {
+        return new StoredWindow(summary, summarizedUntil, List.copyOf(entries));
+    }
+
+    private boolean isSummarized(ChatEntry entry) {
+        return summarizedUntil != null
+                && entry.getCreatedAt() != null
+                && !entry.getCreatedAt().isAfter(summarizedUntil);
+    }
+
+    private boolean contains(Instant createdAt) {
+        return entries.stream().anyMatch(entry -> Objects.equals(entry.getCreatedAt(), createdAt));
+    }
+}
@@ -1,26 +1,36 @@
 package com.glvov.springairag.service;
 
+import com.glvov.springairag.advisor.RagAdvisor;
+import com.glvov.springairag.bulkhead.BulkheadFullException;
 import com.glvov.springairag.model.Chat;
-import com.glvov.springairag.model.ChatEntry;
-import com.glvov.springairag.model.Role;
+import com.glvov.springairag.model.ChatPage;
+import com.glvov.springairag.model.ChatSummary;
 import com.glvov.springairag.repository.ChatRepository;
-import lombok.SneakyThrows;
+import com.glvov.springairag.service.ChatHistoryWriter.PendingEntries;
+import com.glvov.springairag.service.SseTokenDelivery.Event;
+import com.glvov.springairag.service.SseTokenDelivery.Piece;
+import com.glvov.springairag.service.SseTokenDelivery.Token;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.publisher.Flux;
 
 import java.util.List;
-
-import static com.glvov.springairag.model.Role.ASSISTANT;
-import static com.glvov.springairag.model.Role.USER;
+import java.util.Map;
 
 @Service
 public class ChatService {
 
+    public static final String OVERLOADED_EVENT = "overloaded";
+
+    public static final String RETRIEVAL_EVENT = "retrieval";
+
     @Autowired
     private ChatRepository chatRepo;
 
@@ -28,11 +38,34 @@ public class ChatService {
     private ChatClient chatClient;
 
     @Autowired
-    private ChatService myProxy;
+    private ChatHistoryWriter chatHistoryWriter;
+
+    @Autowired
+    private SseTokenDelivery sseTokenDelivery;
 
+    @Value("${spring.ai.chat.list.page-size:30}")
+    private int chatListPageSize;
 
-    public List<Chat> getAllChats() {
-        return chatRepo.findAll();
+    @Value("${spring.ai.chat.list.max-page-size:100}")
+    private int chatListMaxPageSize;
+
+
+    /**
+     * Page of the chat list after the chat {@code beforeId}, newest first, without loading chat histories.
+     */
+    public ChatPage getChats(@Nullable Long beforeId, @Nullable Integer limit) {
+        int pageSize = limit != null ? Math.clamp(limit, 1, chatListMaxPageSize) : chatListPageSize;
+
+        // one extra chat tells whether there is a next page
+        List<ChatSummary> chats = chatRepo.findSummariesBefore(
+                beforeId != null ? beforeId : Long.MAX_VALUE, Limit.of(pageSize + 1)
+        );
+
+        if (chats.size() <= pageSize) {
+            return new ChatPage(chats, null);
+        }
+        List<ChatSummary> page = chats.subList(0, pageSize);
+        return new ChatPage(page, page.getLast().getId());
     }
 
     public Chat createNewChat(String title) {
@@ -41,46 +74,89 @@ public class ChatService {
         return chat;
     }
 
+    /**
+     * Returns a detached copy of the chat, including entries still queued by {@link ChatHistoryWriter}.
+     */
     public Chat getChat(Long chatId) {
-        return chatRepo.findById(chatId).orElseThrow();
+        PendingEntries pendingEntries = chatHistoryWriter.pendingEntries(chatId);
+        Chat chat = chatRepo.findById(chatId).orElseThrow();
+        return Chat.builder()
+                .id(chat.getId())
+                .title(chat.getTitle())
+                .createdAt(chat.getCreatedAt())
+                .history(pendingEntries.appendTo(chat.getHistory()))
+                .build();
     }
 
     public void deleteChat(Long chatId) {
         chatRepo.deleteById(chatId);
     }
 
-    @Transactional
-    public void addChatEntry(Long chatId, String prompt, Role role) {
-        Chat chat = chatRepo.findById(chatId).orElseThrow();
-        chat.addChatEntry(ChatEntry.builder().content(prompt).role(role).build());
-    }
-
-    @Transactional
+    /**
+     * Both turns are persisted by the chat memory advisor through {@link ChatHistoryWriter},
+     * so the request thread doesn't wait on the database for them.
+     */
     public void proceedInteraction(Long chatId, String prompt) {
-        myProxy.addChatEntry(chatId, prompt, USER);
-        String answer = chatClient.prompt().user(prompt).call().content();
-        myProxy.addChatEntry(chatId, answer, ASSISTANT);
+        chatClient.prompt()
+                .user(prompt)
+                .advisors(advisorSpec -> advisorSpec.param(ChatMemory.CONVERSATION_ID, chatId))
+                .call()
+                .content();
     }
 
-    public SseEmitter proceedInteractionWithStreaming(Long chatId, String userPrompt) {
+    /**
+     * The chat memory advisor aggregates the streamed answer and persists it on completion,
+     * the same way as in {@link #proceedInteraction(Long, String)}.
+     * <br><br>
+     * Tokens are coalesced into frames by {@link SseTokenDelivery}, which also cancels the generation
+     * when the client goes away. A {@value #RETRIEVAL_EVENT} event with the number of chunks in the prompt
+     * is sent once the RAG retrieval is done, before the first token.
+     * <br><br>
+     * The response is committed by the time the stream fails, so a request rejected by an overloaded backend
+     * gets an {@value #OVERLOADED_EVENT} event with the retry delay in seconds instead of an HTTP status.
+     *
+     * @param retrievalParams per-request retrieval settings, e.g. {@link RagAdvisor#RETRIEVAL_TOP_K},
+     *                        passed to the advisors as is
+     */
+    public SseEmitter proceedInteractionWithStreaming(Long chatId, String userPrompt,
+                                                      Map<String, Object> retrievalParams) {
         SseEmitter sseEmitter = new SseEmitter(0L);
-        final StringBuilder answer = new StringBuilder();
 
-        chatClient.prompt(userPrompt)
-                .advisors(advisorSpec -> advisorSpec.param(ChatMemory.CONVERSATION_ID, chatId))
+        Flux<Piece> pieces = chatClient.prompt(userPrompt)
+                .advisors(advisorSpec -> advisorSpec
+                        .params(retrievalParams)
+                        .param(ChatMemory.CONVERSATION_ID, chatId))
                 .stream()
                 .chatResponse()
-                .subscribe(
-                        (ChatResponse response) -> processToken(response, sseEmitter, answer),
-                        sseEmitter::completeWithError,
-                        sseEmitter::complete);
+                .map(ChatService::toPiece)
+                .onErrorResume(error -> {
+                    BulkheadFullException rejected = findRejection(error);
+                    return rejected != null ? Flux.just(overloaded(rejected)) : Flux.error(error);
+                });
+        sseTokenDelivery.deliver(pieces, sseEmitter);
         return sseEmitter;
     }
 
-    @SneakyThrows
-    private static void processToken(ChatResponse response, SseEmitter emitter, StringBuilder answer) {
-        var token = response.getResult().getOutput();
-        emitter.send(token);
-        answer.append(token.getText());
+    private static Piece toPiece(ChatResponse response) {
+        if (response.getMetadata().containsKey(RagAdvisor.RETRIEVAL_DONE)) {
+            return new Event(RETRIEVAL_EVENT, Map.of("chunks", response.getMetadata().get(RagAdvisor.RETRIEVAL_DONE)));
+        }
+        String text = response.getResult() != null ? response.getResult().getOutput().getText() : null;
+        return new Token(text != null ? text : "");
+    }
+
+    @Nullable
+    private static BulkheadFullException findRejection(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BulkheadFullException rejected) {
+                return rejected;
+            }
+        }
+        return null;
+    }
+
+    private static Event overloaded(BulkheadFullException rejected) {
+        return new Event(OVERLOADED_EVENT, Map.of("message", BulkheadFullException.USER_MESSAGE,
+                "retryAfter", rejected.retryAfterSeconds()));
     }
 }
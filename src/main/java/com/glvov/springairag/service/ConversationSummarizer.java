@@ -0,0 +1,75 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.model.ChatEntry;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.PromptTemplate;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.glvov.springairag.utils.FileLoader.loadFile;
+
+/**
+ * Folds chat entries into the rolling summary of a conversation, see {@link PostgresChatMemory}.
+ * <br><br>
+ * Uses its own chat client with the options of the query advisors (temperature 0), so summaries are
+ * as deterministic as expansions and don't depend on the main LLM settings. The summary is asked to stay within
+ * {@code maxTokens / 2} words, Russian text takes about two tokens per word.
+ */
+@Service
+@ConditionalOnProperty(name = "spring.ai.chat.memory.summary.enabled", havingValue = "true")
+public class ConversationSummarizer {
+
+    private static final String CONVERSATION_SUMMARY_PROMPT = loadFile("/ai/prompts/conversation_summary.txt");
+
+    private static final String NO_SUMMARY = "(none, the conversation has just started)";
+
+    private final ChatClient chatClient;
+
+    private final int maxWords;
+
+
+    public ConversationSummarizer(ChatClient.Builder builder,
+                                  @Qualifier("queryAdvisorChatOptions") ChatOptions chatOptions,
+                                  @Value("${spring.ai.chat.memory.summary.max-tokens:400}") int maxTokens) {
+        this.chatClient = builder
+                .defaultOptions(chatOptions)
+                .build();
+        this.maxWords = Math.max(1, maxTokens / 2);
+    }
+
+    /**
+     * @param previousSummary summary of the entries before the given ones, if any
+     * @param entries         entries to fold in, in chronological order
+     * @return the summary of the previous summary and the entries
+     */
+    public String summarize(@Nullable String previousSummary, List<ChatEntry> entries) {
+        String conversation = entries.stream()
+                .map(entry -> entry.getRole() + ": " + entry.getContent())
+                .collect(Collectors.joining("\n\n"));
+
+        String prompt = new PromptTemplate(CONVERSATION_SUMMARY_PROMPT).render(Map.of(
+                "summary", StringUtils.hasText(previousSummary) ? previousSummary : NO_SUMMARY,
+                "conversation", conversation,
+                "maxWords", maxWords
+        ));
+
+        String summary = chatClient
+                .prompt()
+                .user(prompt)
+                .call()
+                .content();
+        if (!StringUtils.hasText(summary)) {
+            throw new IllegalStateException("The model returned an empty conversation summary");
+        }
+        return summary.strip();
+    }
+}
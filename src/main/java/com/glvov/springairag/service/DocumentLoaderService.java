@@ -1,19 +1,71 @@
 package com.glvov.springairag.service;
 
+import com.glvov.springairag.model.ChunkManifestEntry;
 import com.glvov.springairag.model.LoadedDocument;
 import com.glvov.springairag.repository.DocumentRepository;
+import com.glvov.springairag.repository.VectorStoreChunkRepository;
+import com.glvov.springairag.service.VectorStoreService.SplitResult;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.ResourcePatternResolver;
 import org.springframework.stereotype.Service;
 import org.springframework.util.DigestUtils;
 
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+/**
+ * Loads RAG documents into the vector store with a staged pipeline on virtual threads:
+ * <ol>
+ *     <li>discovery of the documents on the classpath;</li>
+ *     <li>a document loaded before is hashed first, and skipped when its hash is the recorded one;</li>
+ *     <li>single streaming pass over each new or changed document, at most {@code file-concurrency} documents
+ *     at a time: it's hashed and split into chunks, and chunks not in the chunk manifest of the previous version
+ *     of the document go further as soon as they are cut;</li>
+ *     <li>embed and store, in batches of at most {@code batch-max-tokens} tokens shared across documents,
+ *     at most {@code embedding-concurrency} batches at a time, see {@link EmbeddingBatcher};</li>
+ *     <li>delete chunks no longer in the document and record the document as loaded with its chunk manifest,
+ *     once all of its new chunks are stored.</li>
+ * </ol>
+ * The manifest keeps the id and the BM25 statistics of every chunk (see {@link ChunkManifestEntry}),
+ * so stale chunks are deleted and subtracted from the corpus-wide BM25 statistics without reading them back
+ * from the vector store. Apart from manifests, memory doesn't depend on the size of the documents:
+ * the batcher blocks the splitting while enough batches are in flight. A run which loaded any document ends
+ * with a {@link RagDocumentsChangedEvent}.
+ * <br><br>
+ * Chunk ids are derived from the chunk content,
+ * see {@link VectorStoreService#split(Resource, java.util.function.Consumer)}.
+ * An unchanged document is only read to be hashed, which is much cheaper than tokenizing it, so a boot
+ * with unchanged documents doesn't split any of them. An edit re-embeds only the chunks whose text changed,
+ * but as the splitter cuts by token count, inserting text shifts the boundaries of the chunks after it.
+ * Embedding and storing are a single stage, because {@link org.springframework.ai.vectorstore.VectorStore#accept}
+ * embeds the chunks itself. The batch token limit is kept below the limit of the vector store batching strategy,
+ * so every batch is a single embedding request.
+ */
 @Service
 @Slf4j
 @RequiredArgsConstructor
@@ -22,6 +74,24 @@ public class DocumentLoaderService implements CommandLineRunner {
     private final DocumentRepository documentRepository;
     private final ResourcePatternResolver resolver;
     private final VectorStoreService vectorStoreService;
+    private final VectorStoreChunkRepository vectorStoreChunkRepository;
+    private final MeterRegistry meterRegistry;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${spring.ai.vectorstore.ingestion.file-concurrency:4}")
+    private final int fileConcurrency;
+
+    @Value("${spring.ai.vectorstore.ingestion.embedding-concurrency:2}")
+    private final int embeddingConcurrency;
+
+    @Value("${spring.ai.vectorstore.ingestion.batch-max-tokens:7000}")
+    private final int batchMaxTokens;
+
+    @Value("${spring.ai.vectorstore.ingestion.progress-log-interval:5s}")
+    private final Duration progressLogInterval;
+
+    // the same encoding as TokenTextSplitter and the vector store batching strategy
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator();
 
 
     @Override
@@ -33,40 +103,160 @@ public class DocumentLoaderService implements CommandLineRunner {
     public void loadDocuments() {
         Resource[] resources = resolver.getResources("classpath:/ai/rag/**/*.txt");
 
-        for (Resource resource : resources) {
-            String contentHash = calculateContentHash(resource);
+        IngestionProgress progress = new IngestionProgress(resources.length, progressLogInterval, meterRegistry);
+        Semaphore splittingFiles = new Semaphore(fileConcurrency);
+        List<String> failedFiles = new ArrayList<>();
+        // manifest entries of stored chunks until the manifest of their document is recorded
+        Map<String, ChunkManifestEntry> storedChunks = new ConcurrentHashMap<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            EmbeddingBatcher batcher = new EmbeddingBatcher(
+                    chunks -> storeBatch(chunks, storedChunks, progress), executor, tokenCountEstimator,
+                    batchMaxTokens, embeddingConcurrency
+            );
+
+            List<CompletableFuture<CompletableFuture<Void>>> submittedFiles = Arrays.stream(resources)
+                    .map(resource -> CompletableFuture.supplyAsync(
+                            () -> ingest(resource, batcher, splittingFiles, storedChunks, progress), executor
+                    ))
+                    .toList();
 
-            if (documentExists(resource.getFilename(), contentHash)) {
-                continue;
+            // all documents are split, so the last partial batch won't get any more chunks
+            CompletableFuture.allOf(submittedFiles.toArray(CompletableFuture[]::new))
+                    .exceptionally(error -> null)
+                    .join();
+            batcher.flush();
+
+            for (int i = 0; i < resources.length; i++) {
+                try {
+                    submittedFiles.get(i).thenCompose(Function.identity()).join();
+                } catch (CompletionException e) {
+                    log.error("RAG document is not loaded, name: '{}'", resources[i].getFilename(), e.getCause());
+                    failedFiles.add(resources[i].getFilename());
+                }
             }
+        }
+
+        progress.logSummary();
+
+        // also when some documents failed, as the others may have changed
+        if (progress.loadedFiles() > 0) {
+            eventPublisher.publishEvent(new RagDocumentsChangedEvent(progress.loadedFiles()));
+        }
+
+        if (!failedFiles.isEmpty()) {
+            throw new IllegalStateException("RAG documents are not loaded: " + failedFiles);
+        }
+    }
 
-            processDocument(contentHash, resource);
+    /**
+     * @return completes when the document is stored and recorded as loaded
+     */
+    private CompletableFuture<Void> ingest(Resource resource, EmbeddingBatcher batcher, Semaphore splittingFiles,
+                                           Map<String, ChunkManifestEntry> storedChunks, IngestionProgress progress) {
+        String filename = resource.getFilename();
+        List<LoadedDocument> previousVersions = documentRepository.findByFilenameOrderByLoadedAtDesc(filename);
+        if (!previousVersions.isEmpty() && isUnchanged(resource, previousVersions.getFirst(), splittingFiles)) {
+            progress.fileSkipped();
+            return CompletableFuture.completedFuture(null);
         }
+
+        Map<String, ChunkManifestEntry> previousChunks = previousManifest(filename, previousVersions).stream()
+                .collect(Collectors.toMap(
+                        ChunkManifestEntry::id, Function.identity(), (first, second) -> first, LinkedHashMap::new
+                ));
+        List<CompletableFuture<Void>> newChunkBatches = new ArrayList<>();
+        AtomicInteger newChunks = new AtomicInteger();
+        SplitResult split;
+
+        splittingFiles.acquireUninterruptibly();
+        try {
+            // new chunks are embedded while the rest of the document is still being read
+            split = vectorStoreService.split(resource, chunk -> {
+                if (previousChunks.containsKey(chunk.getId())) {
+                    return;
+                }
+                newChunks.incrementAndGet();
+                CompletableFuture<Void> chunkBatch = batcher.add(chunk);
+                if (newChunkBatches.isEmpty() || newChunkBatches.getLast() != chunkBatch) {
+                    newChunkBatches.add(chunkBatch);
+                }
+            });
+        } finally {
+            splittingFiles.release();
+        }
+
+        List<ChunkManifestEntry> staleChunks = previousChunks.values().stream()
+                .filter(chunk -> !split.chunkIds().contains(chunk.id()))
+                .toList();
+
+        // new chunks are stored before stale ones are deleted, so the document stays searchable meanwhile
+        return CompletableFuture.allOf(newChunkBatches.toArray(CompletableFuture[]::new))
+                .thenRun(() -> {
+                    vectorStoreService.delete(staleChunks);
+                    List<ChunkManifestEntry> manifest = split.chunkIds().stream()
+                            .map(id -> previousChunks.containsKey(id)
+                                    ? previousChunks.get(id)
+                                    : storedChunks.remove(id))
+                            .toList();
+                    saveLoadedDocument(filename, split, manifest, previousVersions, progress);
+                    log.info("RAG document has been processed, name: '{}', chunks: {} ({} new, {} deleted)",
+                            filename, split.chunkIds().size(), newChunks.get(), staleChunks.size());
+                });
     }
 
     @SneakyThrows
-    private String calculateContentHash(Resource resource) {
-        return DigestUtils.md5DigestAsHex(resource.getInputStream());
+    private boolean isUnchanged(Resource resource, LoadedDocument previousVersion, Semaphore splittingFiles) {
+        splittingFiles.acquireUninterruptibly();
+        try (InputStream content = resource.getInputStream()) {
+            return DigestUtils.md5DigestAsHex(content).equals(previousVersion.getContentHash());
+        } finally {
+            splittingFiles.release();
+        }
     }
 
-    private boolean documentExists(String filename, String contentHash) {
-        return documentRepository.existsByFilenameAndContentHash(filename, contentHash);
+    /**
+     * Chunk ids are derived from the chunk content, so they're compared with the ones of the previous version.
+     */
+    private List<ChunkManifestEntry> previousManifest(String filename, List<LoadedDocument> previousVersions) {
+        if (previousVersions.isEmpty()) {
+            return List.of();
+        }
+        if (previousVersions.getFirst().getChunkManifest() != null) {
+            return previousVersions.getFirst().getChunkManifest();
+        }
+        // loaded before manifests were recorded, so the stored chunks are looked up once,
+        // the oldest ones have random ids, so they all get replaced
+        return vectorStoreChunkRepository.findManifestBySource(filename);
     }
 
-    private void processDocument(String contentHash, Resource resource) {
-        log.info("Start processing RAG document, name: '{}'", resource.getFilename());
+    private void storeBatch(List<Document> chunks, Map<String, ChunkManifestEntry> storedChunks,
+                            IngestionProgress progress) {
+        long start = System.nanoTime();
+        vectorStoreService.store(chunks).forEach(chunk -> storedChunks.put(chunk.id(), chunk));
+        progress.batchStored(chunks.size(), System.nanoTime() - start);
+    }
 
-        List<Document> chunks = vectorStoreService.save(resource);
+    /**
+     * Records the current version of the document in place of the previous ones, so that reverting
+     * the document to a previous content is detected as a change too.
+     */
+    private void saveLoadedDocument(String filename, SplitResult split, List<ChunkManifestEntry> manifest,
+                                    List<LoadedDocument> previousVersions, IngestionProgress progress) {
+        LoadedDocument loadedDocument = previousVersions.isEmpty()
+                ? LoadedDocument.builder().filename(filename).build()
+                : previousVersions.getFirst();
 
-        LoadedDocument loadedDocument = LoadedDocument.builder()
-                .documentType("txt")
-                .chunkCount(chunks.size())
-                .filename(resource.getFilename())
-                .contentHash(contentHash)
-                .build();
+        loadedDocument.setDocumentType("txt");
+        loadedDocument.setContentHash(split.contentHash());
+        loadedDocument.setChunkCount(split.chunkIds().size());
+        loadedDocument.setChunkManifest(manifest);
+        loadedDocument.setLoadedAt(LocalDateTime.now());
 
+        if (previousVersions.size() > 1) {
+            documentRepository.deleteAll(previousVersions.subList(1, previousVersions.size()));
+        }
         documentRepository.save(loadedDocument);
-
-        log.info("RAG document has been successfully processed");
+        progress.fileLoaded();
     }
 }
@@ -0,0 +1,115 @@
+package com.glvov.springairag.service;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Groups chunks of any documents into embedding batches of at most {@code maxBatchTokens} tokens
+ * and stores each full batch on the executor, at most {@code concurrency} batches at a time.
+ * <br><br>
+ * A batch is dispatched as soon as the next chunk doesn't fit into it, the last partial batch on {@link #flush()}.
+ * Submitters block while {@code 2 * concurrency} batches are in flight, so splitting can't run arbitrarily
+ * far ahead of the embedding backend.
+ */
+class EmbeddingBatcher {
+
+    private final Consumer<List<Document>> store;
+
+    private final Executor executor;
+
+    private final TokenCountEstimator tokenCountEstimator;
+
+    private final int maxBatchTokens;
+
+    private final Semaphore storingBatches;
+
+    private final Semaphore inFlightBatches;
+
+    // not synchronized: dispatching may block, which would pin the carrier of a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private List<Document> batch = new ArrayList<>();
+
+    private int batchTokens;
+
+    private CompletableFuture<Void> batchStored = new CompletableFuture<>();
+
+
+    EmbeddingBatcher(Consumer<List<Document>> store, Executor executor, TokenCountEstimator tokenCountEstimator,
+                     int maxBatchTokens, int concurrency) {
+        this.store = store;
+        this.executor = executor;
+        this.tokenCountEstimator = tokenCountEstimator;
+        this.maxBatchTokens = maxBatchTokens;
+        this.storingBatches = new Semaphore(concurrency, true);
+        this.inFlightBatches = new Semaphore(concurrency * 2);
+    }
+
+    /**
+     * @return completes when the batch holding the chunk is stored, the same future for all chunks of the batch
+     */
+    CompletableFuture<Void> add(Document chunk) {
+        lock.lock();
+        try {
+            return append(chunk);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void flush() {
+        lock.lock();
+        try {
+            if (!batch.isEmpty()) {
+                dispatch();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CompletableFuture<Void> append(Document chunk) {
+        int tokens = tokenCountEstimator.estimate(chunk.getText());
+        if (!batch.isEmpty() && batchTokens + tokens > maxBatchTokens) {
+            dispatch();
+        }
+        batch.add(chunk);
+        batchTokens += tokens;
+        return batchStored;
+    }
+
+    private void dispatch() {
+        List<Document> fullBatch = batch;
+        CompletableFuture<Void> fullBatchStored = batchStored;
+        batch = new ArrayList<>();
+        batchTokens = 0;
+        batchStored = new CompletableFuture<>();
+
+        inFlightBatches.acquireUninterruptibly();
+        CompletableFuture
+                .runAsync(() -> {
+                    storingBatches.acquireUninterruptibly();
+                    try {
+                        store.accept(fullBatch);
+                    } finally {
+                        storingBatches.release();
+                    }
+                }, executor)
+                .whenComplete((result, error) -> {
+                    inFlightBatches.release();
+                    if (error != null) {
+                        fullBatchStored.completeExceptionally(error);
+                    } else {
+                        fullBatchStored.complete(null);
+                    }
+                });
+    }
+}
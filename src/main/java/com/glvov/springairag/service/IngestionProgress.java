@@ -0,0 +1,91 @@
+package com.glvov.springairag.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and throughput of one run of the ingestion pipeline, logged at most once per {@code logInterval}
+ * and summarized at the end. Stored chunks and batch latency are also exported as {@code rag.ingestion.*} meters.
+ */
+@Slf4j
+class IngestionProgress {
+
+    private final long startNanos = System.nanoTime();
+
+    private final long logIntervalNanos;
+
+    private final AtomicLong lastLogNanos = new AtomicLong(startNanos);
+
+    private final int totalFiles;
+
+    private final AtomicInteger loadedFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicLong storedChunks = new AtomicLong();
+    private final AtomicLong storedBatches = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+
+    private final Counter chunkCounter;
+    private final Timer batchTimer;
+
+
+    IngestionProgress(int totalFiles, Duration logInterval, MeterRegistry meterRegistry) {
+        this.totalFiles = totalFiles;
+        this.logIntervalNanos = logInterval.toNanos();
+        this.chunkCounter = meterRegistry.counter("rag.ingestion.chunks");
+        this.batchTimer = meterRegistry.timer("rag.ingestion.batch");
+    }
+
+    void fileSkipped() {
+        skippedFiles.incrementAndGet();
+    }
+
+    void fileLoaded() {
+        loadedFiles.incrementAndGet();
+    }
+
+    int loadedFiles() {
+        return loadedFiles.get();
+    }
+
+    /**
+     * Records a stored embedding batch, the latency covers embedding and insertion.
+     */
+    void batchStored(int chunks, long nanos) {
+        storedChunks.addAndGet(chunks);
+        storedBatches.incrementAndGet();
+        batchNanos.addAndGet(nanos);
+        maxBatchNanos.accumulateAndGet(nanos, Math::max);
+        chunkCounter.increment(chunks);
+        batchTimer.record(nanos, TimeUnit.NANOSECONDS);
+
+        long now = System.nanoTime();
+        long lastLog = lastLogNanos.get();
+        if (now - lastLog >= logIntervalNanos && lastLogNanos.compareAndSet(lastLog, now)) {
+            log.info("RAG ingestion in progress: {}", this);
+        }
+    }
+
+    void logSummary() {
+        log.info("RAG ingestion finished: {}", this);
+    }
+
+    @Override
+    public String toString() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long batches = storedBatches.get();
+
+        return String.format("files %d/%d (%d unchanged), chunks %d (%.1f chunks/s), "
+                        + "embedding batches %d (avg %.0f ms, max %.0f ms)",
+                loadedFiles.get() + skippedFiles.get(), totalFiles, skippedFiles.get(),
+                storedChunks.get(), seconds > 0 ? storedChunks.get() / seconds : 0.0,
+                batches, batches > 0 ? batchNanos.get() / 1e6 / batches : 0.0, maxBatchNanos.get() / 1e6);
+    }
+}
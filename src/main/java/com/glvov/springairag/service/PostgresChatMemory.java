@@ -1,54 +1,281 @@
 package com.glvov.springairag.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.glvov.springairag.mapper.ChatEntryMapper;
-import com.glvov.springairag.model.Chat;
-import com.glvov.springairag.repository.ChatRepository;
-import lombok.RequiredArgsConstructor;
+import com.glvov.springairag.model.ChatEntry;
+import com.glvov.springairag.model.Role;
+import com.glvov.springairag.repository.ChatHistoryRepository;
+import com.glvov.springairag.repository.ChatHistoryRepository.StoredWindow;
+import com.glvov.springairag.service.ChatHistoryWriter.PendingEntries;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Chat memory of a conversation within a token budget: the rolling summary of the conversation
+ * and as many of its last entries as fit into {@code max-tokens}.
+ * <br><br>
+ * Memory lookup is O(window) regardless of the chat length:
+ * <ul>
+ *     <li>The summary and the last {@code max-messages} entries after it are read with a single query
+ *     (the summary is stored in the {@code chat} row, entries come from a {@code LIMIT} query
+ *     on the {@code (chat_id, created_at)} index), plus entries still queued by {@link ChatHistoryWriter}.</li>
+ *     <li>With {@code spring.ai.chat.memory.window-cache.enabled}, the window is kept in memory per conversation
+ *     and new entries are appended to it as they are written, so following turns don't query the database at all.
+ *     Disable it when several application instances serve the same chats.</li>
+ * </ul>
+ * Incremental compaction, with a {@link ConversationSummarizer}:
+ * <ul>
+ *     <li>After a turn, once the entries after the summary no longer fit into the window ({@code max-messages}
+ *     or {@code max-tokens}), they are folded into the summary in the background down to half of the window
+ *     ({@code max-messages / 2} and half of {@code max-tokens - summary.max-tokens}), so long answers move
+ *     into the summary instead of growing the prompt, and older context is summarized instead of dropped.
+ *     Each summary is an LLM call which competes with user requests for the chat model, so it covers several
+ *     turns at once instead of being paid after every turn.</li>
+ *     <li>Compaction reads every entry after the summary from the database, not the window, so entries
+ *     which have already left the window are summarized as well.</li>
+ *     <li>A conversation is compacted by one task at a time, a turn finished meanwhile is picked up
+ *     by the next compaction. The summary is only updated over the one it was made from,
+ *     so a stale compaction (e.g. of another instance) can't overwrite a newer summary.</li>
+ *     <li>When a compaction fails, the summary stays as it was and the conversation works as a plain window
+ *     until the next compaction, which folds the entries left unsummarized as well.</li>
+ * </ul>
+ * Compactions are counted in {@code chat.memory.summaries} tagged with the {@code outcome}.
+ */
+@Slf4j
 @Service
-@RequiredArgsConstructor
 public class PostgresChatMemory implements ChatMemory {
 
-    private final ChatEntryMapper chatEntryMapper;
-    private final ChatRepository chatMemoryRepository;
+    public static final String WINDOW_CACHE_NAME = "chat-memory-windows";
+
+    static final String SUMMARY_PREFIX = "Summary of the earlier conversation:\n";
 
-    @Value("${spring.ai.chat.memory.max-messages}")
+    private final ChatEntryMapper chatEntryMapper;
+    private final ChatHistoryRepository chatHistoryRepository;
+    private final ChatHistoryWriter chatHistoryWriter;
+    private final MeterRegistry meterRegistry;
     private final int maxMessages;
+    private final int maxTokens;
+    private final int summaryMaxTokens;
+
+    @Nullable
+    private final ConversationSummarizer conversationSummarizer;
+
+    @Nullable
+    private final Cache<Long, ChatMemoryWindow> windows;
+
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator();
+
+    private final ExecutorService compactionExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Set<Long> compactingChats = ConcurrentHashMap.newKeySet();
+
 
+    public PostgresChatMemory(ChatEntryMapper chatEntryMapper,
+                              ChatHistoryRepository chatHistoryRepository,
+                              ChatHistoryWriter chatHistoryWriter,
+                              MeterRegistry meterRegistry,
+                              @Nullable ConversationSummarizer conversationSummarizer,
+                              @Value("${spring.ai.chat.memory.max-messages}") int maxMessages,
+                              @Value("${spring.ai.chat.memory.max-tokens:2000}") int maxTokens,
+                              @Value("${spring.ai.chat.memory.summary.max-tokens:400}") int summaryMaxTokens,
+                              @Value("${spring.ai.chat.memory.window-cache.enabled:true}") boolean windowCacheEnabled,
+                              @Value("${spring.ai.chat.memory.window-cache.max-conversations:10000}") long maxConversations,
+                              @Value("${spring.ai.chat.memory.window-cache.ttl:30m}") Duration windowTtl) {
+        this.chatEntryMapper = chatEntryMapper;
+        this.chatHistoryRepository = chatHistoryRepository;
+        this.chatHistoryWriter = chatHistoryWriter;
+        this.meterRegistry = meterRegistry;
+        this.conversationSummarizer = conversationSummarizer;
+        this.maxMessages = maxMessages;
+        this.maxTokens = maxTokens;
+        this.summaryMaxTokens = summaryMaxTokens;
+
+        if (windowCacheEnabled) {
+            this.windows = Caffeine.newBuilder()
+                    .maximumSize(maxConversations)
+                    .expireAfterAccess(windowTtl)
+                    .recordStats()
+                    .build();
+            CaffeineCacheMetrics.monitor(meterRegistry, windows, WINDOW_CACHE_NAME);
+        } else {
+            this.windows = null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compactionExecutor.shutdownNow();
+    }
 
     @Override
     public void add(String conversationId, List<Message> messages) {
-        Chat chat = chatMemoryRepository.findById(Long.valueOf(conversationId))
-                .orElseThrow();
-
-        messages.stream()
+        long chatId = Long.parseLong(conversationId);
+        List<ChatEntry> entries = messages.stream()
                 .map(chatEntryMapper::toChatEntry)
-                .forEach(chat::addChatEntry);
+                .toList();
+
+        List<ChatEntry> queuedEntries = chatHistoryWriter.write(chatId, entries);
 
-        chatMemoryRepository.save(chat);
+        if (windows != null) {
+            // only windows already loaded are updated, a window loaded meanwhile picks the entries up as pending
+            windows.asMap().computeIfPresent(chatId, (id, window) -> {
+                window.append(queuedEntries);
+                return window;
+            });
+        }
+
+        // a turn ends with the answer
+        if (entries.stream().anyMatch(entry -> entry.getRole() == Role.ASSISTANT)) {
+            scheduleCompaction(chatId);
+        }
     }
 
     @Override
     public List<Message> get(String conversationId) {
-        Chat chat = chatMemoryRepository.findById(Long.valueOf(conversationId))
-                .orElseThrow();
+        long chatId = Long.parseLong(conversationId);
+        StoredWindow window = window(chatId);
 
-        long messagesToSkip = Math.max(0,chat.getHistory().size() - maxMessages);
+        List<Message> messages = new ArrayList<>();
+        int tokenBudget = maxTokens;
+        if (window.summary() != null) {
+            messages.add(new SystemMessage(SUMMARY_PREFIX + window.summary()));
+            tokenBudget -= tokenCountEstimator.estimate(window.summary());
+        }
 
-        return chat.getHistory().stream()
-                .skip(messagesToSkip)
+        List<ChatEntry> history = window.entries();
+        history.subList(history.size() - recentEntries(history, tokenBudget), history.size()).stream()
                 .map(chatEntryMapper::toMessage)
-                .toList();
+                .forEach(messages::add);
+        return messages;
     }
 
     @Override
     public void clear(String conversationId) {
         // not implemented
     }
+
+    private StoredWindow window(long chatId) {
+        return windows != null
+                ? windows.get(chatId, id -> new ChatMemoryWindow(maxMessages, loadWindow(id))).snapshot()
+                : loadWindow(chatId);
+    }
+
+    private StoredWindow loadWindow(long chatId) {
+        // pending entries are read first, so that an entry written meanwhile is read back from the database
+        PendingEntries pendingEntries = chatHistoryWriter.pendingEntries(chatId);
+        StoredWindow unsummarized = unsummarized(chatHistoryRepository.findWindow(chatId, maxMessages), pendingEntries);
+
+        List<ChatEntry> history = unsummarized.entries();
+        return new StoredWindow(unsummarized.summary(), unsummarized.summarizedUntil(),
+                history.subList(Math.max(0, history.size() - maxMessages), history.size()));
+    }
+
+    /**
+     * Stored entries followed by the ones still queued by {@link ChatHistoryWriter}, without summarized ones.
+     */
+    private static StoredWindow unsummarized(StoredWindow stored, PendingEntries pendingEntries) {
+        List<ChatEntry> history = pendingEntries.appendTo(stored.entries()).stream()
+                .filter(entry -> stored.summarizedUntil() == null
+                        || entry.getCreatedAt() == null
+                        || entry.getCreatedAt().isAfter(stored.summarizedUntil()))
+                .toList();
+        return new StoredWindow(stored.summary(), stored.summarizedUntil(), history);
+    }
+
+    /**
+     * Number of the last entries which fit into the token budget, at least the last one however long it is.
+     */
+    private int recentEntries(List<ChatEntry> history, int tokenBudget) {
+        int count = 0;
+        int tokens = 0;
+        for (int i = history.size() - 1; i >= 0; i--) {
+            tokens += tokenCountEstimator.estimate(history.get(i).getContent());
+            if (count > 0 && tokens > tokenBudget) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private void scheduleCompaction(long chatId) {
+        if (conversationSummarizer == null || !compactingChats.add(chatId)) {
+            return;
+        }
+        try {
+            compactionExecutor.execute(() -> {
+                try {
+                    compact(chatId);
+                } finally {
+                    compactingChats.remove(chatId);
+                }
+            });
+        } catch (RuntimeException e) {
+            // shutting down
+            compactingChats.remove(chatId);
+        }
+    }
+
+    void compact(long chatId) {
+        // all entries after the summary: the window has a fixed size, so older ones may have left it already
+        PendingEntries pendingEntries = chatHistoryWriter.pendingEntries(chatId);
+        StoredWindow window = unsummarized(chatHistoryRepository.findUnsummarized(chatId), pendingEntries);
+        List<ChatEntry> history = window.entries();
+
+        if (history.size() <= maxMessages && recentEntries(history, maxTokens) == history.size()) {
+            return;
+        }
+
+        int kept = Math.min(recentEntries(history, (maxTokens - summaryMaxTokens) / 2), maxMessages / 2);
+        List<ChatEntry> folded = history.subList(0, history.size() - kept);
+        if (folded.isEmpty()) {
+            return;
+        }
+
+        String outcome;
+        try {
+            String summary = conversationSummarizer.summarize(window.summary(), folded);
+            Instant until = folded.getLast().getCreatedAt();
+
+            if (chatHistoryRepository.updateSummary(chatId, summary, until, window.summarizedUntil())) {
+                if (windows != null) {
+                    windows.asMap().computeIfPresent(chatId, (id, cached) -> {
+                        cached.summarize(summary, until);
+                        return cached;
+                    });
+                }
+                outcome = "updated";
+            } else {
+                // summarized meanwhile, the cached window is stale
+                if (windows != null) {
+                    windows.invalidate(chatId);
+                }
+                outcome = "conflict";
+            }
+        } catch (RuntimeException e) {
+            log.warn("Compaction of chat {} failed, {} entries are left unsummarized", chatId, folded.size(), e);
+            outcome = "failed";
+        }
+        meterRegistry.counter("chat.memory.summaries", "outcome", outcome).increment();
+    }
 }
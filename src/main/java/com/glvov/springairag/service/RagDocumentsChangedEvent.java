@@ -0,0 +1,9 @@
+package com.glvov.springairag.service;
+
+/**
+ * Published by {@link DocumentLoaderService} once a loading run has stored or deleted chunks.
+ *
+ * @param loadedDocuments documents whose new version was loaded
+ */
+public record RagDocumentsChangedEvent(int loadedDocuments) {
+}
@@ -0,0 +1,304 @@
+package com.glvov.springairag.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers a streamed answer to an {@link SseEmitter} in frames instead of a write and flush per token.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>Consecutive tokens are coalesced into one {@code message} event, a frame is sent once it has
+ *     {@code frameMaxBytes} bytes of text or {@code frameMaxDelay} after the previous one, whichever comes first.
+ *     Named events are sent right away, after the tokens before them.</li>
+ *     <li>Frames are written on virtual threads, so a slow client never blocks the thread which produces tokens.
+ *     While a frame is written, the next ones accumulate in a buffer of {@code maxBufferedTokens} tokens
+ *     and are coalesced into larger frames.</li>
+ *     <li>When the buffer overflows, the client is too slow for the model and {@code slowConsumerPolicy} applies.</li>
+ *     <li>When the client goes away (a write fails or the container completes the response),
+ *     the model stream is cancelled.</li>
+ * </ul>
+ * Meters: {@code rag.sse.frames} (frames sent, the rate is frames per second), {@code rag.sse.request.bytes}
+ * and {@code rag.sse.request.frames} (per streamed answer) and {@code rag.sse.streams}
+ * tagged with the {@code outcome}.
+ */
+@Slf4j
+@Service
+public class SseTokenDelivery {
+
+    private static final Piece FLUSH = new Token("");
+
+    private final Duration frameMaxDelay;
+
+    private final int frameMaxBytes;
+
+    private final int maxBufferedTokens;
+
+    private final SlowConsumerPolicy slowConsumerPolicy;
+
+    private final Scheduler writeScheduler = Schedulers.fromExecutorService(
+            Executors.newVirtualThreadPerTaskExecutor(), "sse-writer"
+    );
+
+    private final MeterRegistry meterRegistry;
+
+    private final Counter frames;
+
+    private final DistributionSummary requestBytes;
+
+    private final DistributionSummary requestFrames;
+
+
+    public SseTokenDelivery(MeterRegistry meterRegistry,
+                            @Value("${spring.ai.sse.frame-max-delay:50ms}") Duration frameMaxDelay,
+                            @Value("${spring.ai.sse.frame-max-bytes:256}") int frameMaxBytes,
+                            @Value("${spring.ai.sse.max-buffered-tokens:2048}") int maxBufferedTokens,
+                            @Value("${spring.ai.sse.slow-consumer-policy:DROP}") SlowConsumerPolicy slowConsumerPolicy) {
+        this.meterRegistry = meterRegistry;
+        this.frameMaxDelay = frameMaxDelay;
+        this.frameMaxBytes = frameMaxBytes;
+        this.maxBufferedTokens = maxBufferedTokens;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+
+        this.frames = meterRegistry.counter("rag.sse.frames");
+        this.requestBytes = DistributionSummary.builder("rag.sse.request.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.requestFrames = meterRegistry.summary("rag.sse.request.frames");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writeScheduler.dispose();
+    }
+
+    /**
+     * Subscribes to the pieces and sends them to the emitter, which is completed when they complete.
+     * An error of the pieces completes the emitter with the error, so they are expected to turn errors
+     * the client should know about into events.
+     */
+    public void deliver(Flux<Piece> pieces, SseEmitter emitter) {
+        AtomicBoolean overflowed = new AtomicBoolean();
+
+        Flux<Piece> buffered = slowConsumerPolicy == SlowConsumerPolicy.CANCEL
+                ? pieces.onBackpressureBuffer(maxBufferedTokens, piece -> overflowed.set(true),
+                        BufferOverflowStrategy.ERROR)
+                : pieces.onBackpressureBuffer(maxBufferedTokens, piece -> overflowed.set(true),
+                        BufferOverflowStrategy.DROP_LATEST);
+
+        FrameSubscriber subscriber = new FrameSubscriber(emitter, overflowed);
+        emitter.onCompletion(subscriber::onClientGone);
+        emitter.onError(error -> subscriber.onClientGone());
+        emitter.onTimeout(subscriber::onClientGone);
+
+        coalesce(buffered)
+                .publishOn(writeScheduler, 1)
+                .subscribe(subscriber);
+    }
+
+    /**
+     * Frames of tokens ending with a named event, a flush tick or a token which fills the frame.
+     * Ticks are dropped while the writer is busy, so that a slow client gets larger frames, not more of them.
+     */
+    Flux<List<Piece>> coalesce(Flux<Piece> pieces) {
+        return Flux.defer(() -> {
+            int[] frameBytes = {0};
+            return pieces.publish(shared -> Flux.merge(1,
+                            shared,
+                            Flux.interval(frameMaxDelay)
+                                    .onBackpressureDrop()
+                                    .<Piece>map(tick -> FLUSH)
+                                    .takeUntilOther(shared.then())
+                    ))
+                    .bufferUntil(piece -> {
+                        if (piece instanceof Token(String text) && piece != FLUSH) {
+                            frameBytes[0] += text.getBytes(StandardCharsets.UTF_8).length;
+                            if (frameBytes[0] < frameMaxBytes) {
+                                return false;
+                            }
+                        }
+                        frameBytes[0] = 0;
+                        return true;
+                    })
+                    .filter(frame -> frame.stream().anyMatch(piece -> piece != FLUSH));
+        });
+    }
+
+    /**
+     * Writes frames one at a time, requesting the next one once the previous one is written.
+     */
+    private class FrameSubscriber extends BaseSubscriber<List<Piece>> {
+
+        private final SseEmitter emitter;
+
+        private final AtomicBoolean overflowed;
+
+        // the emitter is completed by this subscriber, the container completing it afterwards is expected
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private long bytes;
+
+        private long frameCount;
+
+
+        FrameSubscriber(SseEmitter emitter, AtomicBoolean overflowed) {
+            this.emitter = emitter;
+            this.overflowed = overflowed;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            request(1);
+        }
+
+        @Override
+        protected void hookOnNext(List<Piece> frame) {
+            if (released.get()) {
+                // the client is dropped, the rest of the answer is still generated and saved to the chat history
+                request(1);
+                return;
+            }
+            if (overflowed.get()) {
+                release("dropped_slow_consumer");
+                request(1);
+                return;
+            }
+
+            try {
+                send(frame);
+                request(1);
+            } catch (IOException | IllegalStateException e) {
+                log.debug("SSE client went away: {}", e.getMessage());
+                released.set(true);
+                finish("client_gone");
+                cancel();
+            }
+        }
+
+        private void send(List<Piece> frame) throws IOException {
+            StringBuilder text = new StringBuilder();
+            for (Piece piece : frame) {
+                if (piece instanceof Token(String token)) {
+                    text.append(token);
+                } else if (piece instanceof Event(String name, Object data)) {
+                    sendText(text);
+                    text.setLength(0);
+                    emitter.send(SseEmitter.event().name(name).data(data, MediaType.APPLICATION_JSON));
+                    countFrame(0);
+                }
+            }
+            sendText(text);
+        }
+
+        private void sendText(StringBuilder text) throws IOException {
+            if (text.isEmpty()) {
+                return;
+            }
+            emitter.send(Map.of("text", text.toString()), MediaType.APPLICATION_JSON);
+            countFrame(text.toString().getBytes(StandardCharsets.UTF_8).length);
+        }
+
+        private void countFrame(int frameBytes) {
+            frames.increment();
+            frameCount++;
+            bytes += frameBytes;
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            if (!released.get()) {
+                release("completed");
+            }
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            if (released.get()) {
+                return;
+            }
+            if (overflowed.get()) {
+                // CANCEL policy, the model stream is cancelled already
+                release("cancelled_slow_consumer");
+                return;
+            }
+            released.set(true);
+            finish("error");
+            emitter.completeWithError(throwable);
+        }
+
+        private void release(String outcome) {
+            if (released.compareAndSet(false, true)) {
+                finish(outcome);
+                emitter.complete();
+            }
+        }
+
+        private void finish(String outcome) {
+            requestBytes.record(bytes);
+            requestFrames.record(frameCount);
+            meterRegistry.counter("rag.sse.streams", "outcome", outcome).increment();
+        }
+
+        /**
+         * The container completed the response, unless it was this subscriber, the client went away.
+         */
+        void onClientGone() {
+            if (released.compareAndSet(false, true)) {
+                finish("client_gone");
+                cancel();
+            }
+        }
+    }
+
+    /**
+     * What to do when the client reads slower than the model generates and the buffer is full.
+     */
+    public enum SlowConsumerPolicy {
+        /**
+         * Tokens beyond the buffer are dropped for the client, which gets no further frames and its stream is
+         * completed, while the model stream runs to the end, so that the full answer is still saved to the chat
+         * history and shown on reload.
+         */
+        DROP,
+        /**
+         * The model stream is cancelled and the client stream is completed.
+         */
+        CANCEL
+    }
+
+    public sealed interface Piece permits Token, Event {
+    }
+
+    /**
+     * Part of the answer text, sent coalesced with adjacent tokens.
+     */
+    public record Token(String text) implements Piece {
+    }
+
+    /**
+     * Named event, sent as is and in order with the tokens.
+     */
+    public record Event(String name, Object data) implements Piece {
+    }
+}
@@ -0,0 +1,245 @@
+package com.glvov.springairag.service;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingResult;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import lombok.SneakyThrows;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.function.Consumer;
+
+/**
+ * Splits a UTF-8 text resource into chunks of at most {@code chunkSize} tokens like {@link TokenTextSplitter},
+ * without reading the whole text into memory.
+ * <br><br>
+ * The resource is read once: bytes are hashed (MD5) and decoded as they are read, and chunks are cut
+ * from a window of the decoded text holding the next chunk and a lookahead of {@value #LOOKAHEAD_TOKENS} tokens,
+ * so memory doesn't depend on the size of the resource. Files of at least {@code mmapThreshold} bytes are
+ * memory-mapped region by region, other resources are read through a channel.
+ * <br><br>
+ * Chunk boundaries are the ones of {@link TokenTextSplitter} with default settings: the first {@code chunkSize}
+ * tokens, cut after the last sentence end or line break past the first {@value #MIN_CHUNK_SIZE_CHARS} characters.
+ * Unlike {@link TokenTextSplitter}, the number of chunks isn't limited: it glues everything after the 10000th chunk
+ * into a single one.
+ */
+public class StreamingTokenTextSplitter {
+
+    // the same encoding as TokenTextSplitter
+    private static final Encoding ENCODING = Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+    private static final int MIN_CHUNK_SIZE_CHARS = 350;
+
+    private static final int MIN_CHUNK_LENGTH_TO_EMBED = 5;
+
+    /**
+     * Tokens of the window after the chunk, so that the end of the chunk is tokenized as within the whole text.
+     */
+    private static final int LOOKAHEAD_TOKENS = 32;
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private static final int DECODE_BUFFER_CHARS = 4 * 1024;
+
+    private static final long MAPPED_REGION_BYTES = 64L * 1024 * 1024;
+
+    private final int chunkSize;
+
+    private final long mmapThreshold;
+
+    private final long mappedRegionBytes;
+
+
+    public StreamingTokenTextSplitter(int chunkSize, long mmapThreshold) {
+        this(chunkSize, mmapThreshold, MAPPED_REGION_BYTES);
+    }
+
+    StreamingTokenTextSplitter(int chunkSize, long mmapThreshold, long mappedRegionBytes) {
+        this.chunkSize = chunkSize;
+        this.mmapThreshold = mmapThreshold;
+        this.mappedRegionBytes = mappedRegionBytes;
+    }
+
+    /**
+     * @param chunkConsumer receives chunk texts in order, on the calling thread, while the resource is read
+     * @return MD5 of the resource content as a hex string, the same as {@code DigestUtils.md5DigestAsHex}
+     */
+    public String split(Resource resource, Consumer<String> chunkConsumer) throws IOException {
+        MessageDigest digest = md5();
+        Window window = new Window(chunkConsumer);
+
+        if (resource.isFile() && resource.contentLength() >= mmapThreshold) {
+            try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+                readMapped(channel, digest, window);
+            }
+        } else {
+            try (ReadableByteChannel channel = resource.readableChannel()) {
+                read(channel, digest, window);
+            }
+        }
+        window.finish();
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void readMapped(FileChannel channel, MessageDigest digest, Window window) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        long hashed = 0;
+
+        while (true) {
+            long length = Math.min(mappedRegionBytes, size - position);
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+            // a region starts with the undecoded tail of a character split by the previous one, hashed already
+            digest.update(region.duplicate().position((int) (hashed - position)));
+            hashed = position + length;
+
+            boolean endOfInput = hashed == size;
+            window.decode(region, endOfInput);
+            if (endOfInput) {
+                return;
+            }
+            position += region.position();
+        }
+    }
+
+    private void read(ReadableByteChannel channel, MessageDigest digest, Window window) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        int hashed = 0;
+
+        while (channel.read(buffer) != -1) {
+            // the buffer starts with the undecoded tail of a character split by the previous read, hashed already
+            digest.update(buffer.duplicate().flip().position(hashed));
+            buffer.flip();
+            window.decode(buffer, false);
+            buffer.compact();
+            hashed = buffer.position();
+        }
+
+        buffer.flip();
+        window.decode(buffer, true);
+    }
+
+    @SneakyThrows
+    private static MessageDigest md5() {
+        return MessageDigest.getInstance("MD5");
+    }
+
+    private final class Window {
+
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private final CharBuffer decoded = CharBuffer.allocate(DECODE_BUFFER_CHARS);
+
+        private final StringBuilder text = new StringBuilder();
+
+        private final Consumer<String> chunkConsumer;
+
+
+        Window(Consumer<String> chunkConsumer) {
+            this.chunkConsumer = chunkConsumer;
+        }
+
+        void decode(ByteBuffer bytes, boolean endOfInput) {
+            while (decoder.decode(bytes, decoded, endOfInput).isOverflow()) {
+                append();
+            }
+        }
+
+        void finish() {
+            CoderResult result;
+            do {
+                result = decoder.flush(decoded);
+                append();
+            } while (result.isOverflow());
+
+            while (cutChunk(true)) {
+                // the rest of the text is cut into chunks
+            }
+        }
+
+        private void append() {
+            text.append(decoded.flip());
+            decoded.clear();
+
+            while (cutChunk(false)) {
+                // the window keeps only the text after the last chunk
+            }
+        }
+
+        /**
+         * @return whether a chunk was cut off the window, {@code false} when more text is needed
+         */
+        private boolean cutChunk(boolean endOfInput) {
+            if (text.isEmpty()) {
+                return false;
+            }
+
+            String window = text.toString();
+            EncodingResult encoded = ENCODING.encode(window, chunkSize + LOOKAHEAD_TOKENS);
+            if (!endOfInput && !encoded.isTruncated()) {
+                return false;
+            }
+
+            String chunk = decodePrefix(window, encoded.getTokens(), Math.min(chunkSize, encoded.getTokens().size()));
+            text.delete(0, cutAtSentenceEnd(chunk).length());
+            return true;
+        }
+
+        private String cutAtSentenceEnd(String chunk) {
+            if (chunk.isBlank()) {
+                return chunk;
+            }
+
+            int lastSentenceEnd = Math.max(
+                    Math.max(chunk.lastIndexOf('.'), chunk.lastIndexOf('?')),
+                    Math.max(chunk.lastIndexOf('!'), chunk.lastIndexOf('\n'))
+            );
+            if (lastSentenceEnd > MIN_CHUNK_SIZE_CHARS) {
+                chunk = chunk.substring(0, lastSentenceEnd + 1);
+            }
+
+            String trimmed = chunk.trim();
+            if (trimmed.length() > MIN_CHUNK_LENGTH_TO_EMBED) {
+                chunkConsumer.accept(trimmed);
+            }
+            return chunk;
+        }
+
+        /**
+         * Decodes the first tokens of the window, fewer if the last of them ends within a multibyte character.
+         */
+        private static String decodePrefix(String window, IntArrayList tokens, int count) {
+            for (; count > 0; count--) {
+                IntArrayList prefix = new IntArrayList(count);
+                for (int i = 0; i < count; i++) {
+                    prefix.add(tokens.get(i));
+                }
+
+                String decoded = ENCODING.decode(prefix);
+                if (window.startsWith(decoded)) {
+                    return decoded;
+                }
+            }
+            return window.substring(0, Character.charCount(window.codePointAt(0)));
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.glvov.springairag.service;
 
+import com.glvov.springairag.advisor.misc.BM25DocumentStatistics;
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.model.ChunkManifestEntry;
 import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.embedding.BatchingStrategy;
 import org.springframework.ai.embedding.EmbeddingModel;
@@ -9,25 +13,37 @@ import org.springframework.ai.embedding.EmbeddingRequest;
 import org.springframework.ai.ollama.OllamaEmbeddingModel;
 import org.springframework.ai.ollama.api.OllamaApi;
 import org.springframework.ai.reader.TextReader;
-import org.springframework.ai.transformer.splitter.TokenTextSplitter;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.ai.vectorstore.observation.AbstractObservationVectorStore;
 import org.springframework.ai.vectorstore.pgvector.PgVectorStore;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.unit.DataSize;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.SequencedSet;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 /**
  * Service responsible for processing documents into vector embeddings for RAG applications.
  * <p>
  * This service handles the complete document processing pipeline:
  * <ul>
- *   <li>Loading documents from resources</li>
- *   <li>Splitting documents into appropriate chunks</li>
+ *   <li>Reading and splitting documents into chunks in a single streaming pass,
+ *   see {@link StreamingTokenTextSplitter}</li>
+ *   <li>Computing BM25 statistics of each chunk once, see {@link BM25DocumentStatistics}</li>
  *   <li>Converting chunks to vector embeddings via embeddings model (like Ollama mxbai-embed-large)</li>
  *   <li>Storing the embeddings in the vector database</li>
+ *   <li>Deleting chunks which are no longer in a changed document</li>
  * </ul>
  * <p>
  * The embedding process follows this call chain:
@@ -44,23 +60,125 @@ import java.util.List;
 @RequiredArgsConstructor
 public class VectorStoreService {
 
+    public static final String SOURCE_FILENAME_KEY = "source_filename";
+
+    public static final String CHUNK_HASH_KEY = "chunk_hash";
+
+    // stale chunks are deleted page by page
+    private static final int DELETE_PAGE_SIZE = 1000;
+
     @Value("${spring.ai.vectorstore.chunk-size:100}")
     private final int chunkSize;
 
+    @Value("${spring.ai.vectorstore.ingestion.mmap-threshold:16MB}")
+    private final DataSize mmapThreshold;
+
     private final VectorStore vectorStore;
 
+    private final BM25RerankEngine rerankEngine;
+
+    private final BM25StatisticsService bm25StatisticsService;
+
 
     public List<Document> save(Resource resource) {
-        List<Document> documents = new TextReader(resource).get();
+        List<Document> chunks = split(resource);
+        store(chunks);
+        return chunks;
+    }
+
+    public List<Document> split(Resource resource) {
+        List<Document> chunks = new ArrayList<>();
+        split(resource, chunks::add);
+        return chunks;
+    }
+
+    /**
+     * Reads the resource once and hands over its chunks as they are cut, each with a stable id
+     * and {@link TextReader#SOURCE_METADATA}, {@link #SOURCE_FILENAME_KEY} and {@link #CHUNK_HASH_KEY}
+     * (MD5 of the chunk text) in its metadata.
+     * <br><br>
+     * The id is derived from the filename, the chunk hash and the number of preceding chunks with the same hash,
+     * so an unchanged chunk gets the same id when the document is loaded again.
+     *
+     * @param chunkConsumer receives chunks in order, on the calling thread
+     */
+    @SneakyThrows
+    public SplitResult split(Resource resource, Consumer<Document> chunkConsumer) {
+        String filename = resource.getFilename();
+        SequencedSet<String> chunkIds = new LinkedHashSet<>();
+        // only hashes of repeated chunks, so that memory grows with the number of chunks by their ids only
+        Map<String, Integer> repeatedChunkOccurrences = new HashMap<>();
 
-        TokenTextSplitter textSplitter = TokenTextSplitter.builder()
-                .withChunkSize(chunkSize) // max tokens for one chunk
-                .build();
+        String contentHash = new StreamingTokenTextSplitter(chunkSize, mmapThreshold.toBytes()).split(resource, text -> {
+            String chunkHash = DigestUtils.md5DigestAsHex(text.getBytes(StandardCharsets.UTF_8));
+            String id = chunkId(filename, chunkHash, 1);
+            if (!chunkIds.add(id)) {
+                id = chunkId(filename, chunkHash, repeatedChunkOccurrences.merge(chunkHash, 2, (count, one) -> count + 1));
+                chunkIds.add(id);
+            }
 
-        List<Document> chunks = textSplitter.apply(documents);
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put(TextReader.CHARSET_METADATA, StandardCharsets.UTF_8.name());
+            metadata.put(TextReader.SOURCE_METADATA, filename);
+            metadata.put(SOURCE_FILENAME_KEY, filename);
+            metadata.put(CHUNK_HASH_KEY, chunkHash);
+
+            chunkConsumer.accept(Document.builder()
+                    .id(id)
+                    .text(text)
+                    .metadata(metadata)
+                    .build());
+        });
+
+        return new SplitResult(contentHash, chunkIds);
+    }
+
+    /**
+     * Computes BM25 statistics of chunks (of any documents) produced by {@link #split(Resource, Consumer)},
+     * then embeds and stores them.
+     *
+     * @return manifest entries of the chunks, in order
+     */
+    public List<ChunkManifestEntry> store(List<Document> chunks) {
+        List<BM25DocumentStatistics> chunkStatistics = chunks.stream()
+                .map(chunk -> {
+                    BM25DocumentStatistics statistics = rerankEngine.analyze(chunk.getText());
+                    // stored in chunk metadata, so the reranker doesn't analyze chunk texts on every request
+                    chunk.getMetadata().putAll(statistics.toMetadata());
+                    return statistics;
+                })
+                .toList();
 
         vectorStore.accept(chunks);
+        bm25StatisticsService.addDocuments(chunkStatistics);
 
-        return chunks;
+        return IntStream.range(0, chunks.size())
+                .mapToObj(i -> ChunkManifestEntry.of(chunks.get(i).getId(), chunkStatistics.get(i)))
+                .toList();
+    }
+
+    /**
+     * Deletes chunks from the vector store in batches, and subtracts their BM25 statistics, taken from
+     * the manifest, from the corpus-wide ones.
+     */
+    public void delete(List<ChunkManifestEntry> chunks) {
+        for (int from = 0; from < chunks.size(); from += DELETE_PAGE_SIZE) {
+            List<ChunkManifestEntry> page = chunks.subList(from, Math.min(from + DELETE_PAGE_SIZE, chunks.size()));
+
+            vectorStore.delete(page.stream().map(ChunkManifestEntry::id).toList());
+            bm25StatisticsService.removeDocuments(page);
+        }
+    }
+
+    private static String chunkId(String filename, String chunkHash, int occurrence) {
+        return UUID.nameUUIDFromBytes((filename + ":" + chunkHash + ":" + occurrence).getBytes(StandardCharsets.UTF_8))
+                .toString();
+    }
+
+    /**
+     * @param contentHash MD5 of the resource content
+     * @param chunkIds    ids of the chunks in order
+     */
+    public record SplitResult(String contentHash, SequencedSet<String> chunkIds) {
     }
 }
@@ -0,0 +1,21 @@
+package com.glvov.springairag.utils;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes user questions into cache keys: Unicode NFKC, lower case, collapsed whitespace.
+ */
+public final class QueryNormalizer {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private QueryNormalizer() {
+    }
+
+    public static String normalize(String text) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+    }
+}
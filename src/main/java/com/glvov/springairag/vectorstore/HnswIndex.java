@@ -0,0 +1,615 @@
+package com.glvov.springairag.vectorstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+/**
+ * HNSW graph (Malkov, Yashunin) over unit-length vectors, with cosine similarity as the dot product.
+ * <br><br>
+ * Everything lives in memory-mapped files of a directory, so a restart maps them instead of rebuilding the graph:
+ * <ul>
+ *     <li>{@code header.bin} - dimensions, {@code m}, node count and entry point, written last on {@link #commit()};</li>
+ *     <li>{@code vectors.bin} - normalized vectors, one record of floats per node;</li>
+ *     <li>{@code nodes.bin} - level, first record in {@code upper-links.bin} and deleted flag of every node;</li>
+ *     <li>{@code links.bin} - neighbours on level 0, up to {@code 2 * m} per node;</li>
+ *     <li>{@code upper-links.bin} - neighbours on levels above 0, up to {@code m} per node and level.</li>
+ * </ul>
+ * Single writer, any number of concurrent readers without locks. A node becomes visible to readers once it's linked,
+ * when the node count is published; links to nodes not published yet are skipped. Deleted nodes stay in the graph
+ * to keep it navigable, but aren't returned by {@link #search}.
+ */
+class HnswIndex implements Closeable {
+
+    private static final int MAGIC = 0x484E5357;
+
+    private static final int VERSION = 1;
+
+    private static final int MAX_LEVEL = 16;
+
+    // header fields
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 1;
+    private static final int HEADER_DIMENSIONS = 2;
+    private static final int HEADER_M = 3;
+    private static final int HEADER_SIZE = 4;
+    private static final int HEADER_ENTRY_NODE = 5;
+    private static final int HEADER_ENTRY_LEVEL = 6;
+    private static final int HEADER_UPPER_RECORDS = 7;
+    private static final int HEADER_FIELDS = 8;
+
+    // node fields
+    private static final int NODE_LEVEL = 0;
+    private static final int NODE_FIRST_UPPER_RECORD = 1;
+    private static final int NODE_DELETED = 2;
+    private static final int NODE_FIELDS = 3;
+
+    private final int dimensions;
+
+    private final int m;
+
+    private final int efConstruction;
+
+    private final double levelMultiplier;
+
+    private final MappedRecords header;
+
+    private final MappedRecords vectors;
+
+    private final MappedRecords nodes;
+
+    private final MappedRecords links;
+
+    private final MappedRecords upperLinks;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    private int upperRecords;
+
+    private volatile int size;
+
+    /**
+     * Level in the upper half and node in the lower half, so that both are published at once.
+     */
+    private volatile long entryPoint = -1;
+
+
+    /**
+     * Opens the index stored in the directory or creates an empty one.
+     */
+    HnswIndex(Path directory, int dimensions, int m, int efConstruction) throws IOException {
+        Files.createDirectories(directory);
+        boolean exists = Files.exists(directory.resolve("header.bin"));
+
+        this.dimensions = dimensions;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1 / Math.log(m);
+
+        this.header = new MappedRecords(directory.resolve("header.bin"), HEADER_FIELDS * Integer.BYTES);
+        this.vectors = new MappedRecords(directory.resolve("vectors.bin"), dimensions * Float.BYTES);
+        this.nodes = new MappedRecords(directory.resolve("nodes.bin"), NODE_FIELDS * Integer.BYTES);
+        this.links = new MappedRecords(directory.resolve("links.bin"), (1 + 2 * m) * Integer.BYTES);
+        this.upperLinks = new MappedRecords(directory.resolve("upper-links.bin"), (1 + m) * Integer.BYTES);
+        header.ensureCapacity(1);
+
+        if (exists) {
+            load();
+        } else {
+            header.putInt(0, HEADER_MAGIC, MAGIC);
+            header.putInt(0, HEADER_VERSION, VERSION);
+            header.putInt(0, HEADER_DIMENSIONS, dimensions);
+            header.putInt(0, HEADER_M, m);
+            commit();
+        }
+    }
+
+    /**
+     * @return dimensions of the index stored in the directory, {@code 0} if there's none
+     */
+    static int storedDimensions(Path directory) throws IOException {
+        if (!Files.exists(directory.resolve("header.bin"))) {
+            return 0;
+        }
+        try (MappedRecords header = new MappedRecords(directory.resolve("header.bin"), HEADER_FIELDS * Integer.BYTES)) {
+            header.ensureCapacity(1);
+            return header.getInt(0, HEADER_DIMENSIONS);
+        }
+    }
+
+    private void load() throws IOException {
+        if (header.getInt(0, HEADER_MAGIC) != MAGIC || header.getInt(0, HEADER_VERSION) != VERSION) {
+            throw new IllegalStateException("Not an HNSW index of version " + VERSION);
+        }
+        if (header.getInt(0, HEADER_DIMENSIONS) != dimensions || header.getInt(0, HEADER_M) != m) {
+            throw new IllegalStateException("HNSW index was built with dimensions %d and m %d, not %d and %d".formatted(
+                    header.getInt(0, HEADER_DIMENSIONS), header.getInt(0, HEADER_M), dimensions, m));
+        }
+
+        int storedSize = header.getInt(0, HEADER_SIZE);
+        upperRecords = header.getInt(0, HEADER_UPPER_RECORDS);
+        ensureCapacity(storedSize);
+        upperLinks.ensureCapacity(upperRecords);
+
+        size = storedSize;
+        if (storedSize > 0) {
+            entryPoint = packEntryPoint(header.getInt(0, HEADER_ENTRY_LEVEL), header.getInt(0, HEADER_ENTRY_NODE));
+        }
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isDeleted(int node) {
+        return nodes.getInt(node, NODE_DELETED) != 0;
+    }
+
+    /**
+     * @return node of the vector, the current {@link #size()}
+     */
+    int add(float[] vector) throws IOException {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected %d dimensions, got %d".formatted(dimensions, vector.length));
+        }
+
+        writeLock.lock();
+        try {
+            int node = size;
+            float[] normalized = normalize(vector);
+            int level = randomLevel();
+
+            ensureCapacity(node + 1);
+            MappedByteBuffer segment = vectors.segment(node);
+            int offset = vectors.offset(node);
+            for (int i = 0; i < dimensions; i++) {
+                segment.putFloat(offset + i * Float.BYTES, normalized[i]);
+            }
+
+            nodes.putInt(node, NODE_LEVEL, level);
+            nodes.putInt(node, NODE_FIRST_UPPER_RECORD, upperRecords);
+            nodes.putInt(node, NODE_DELETED, 0);
+            links.putInt(node, 0, 0);
+            upperLinks.ensureCapacity(upperRecords + level);
+            for (int i = 0; i < level; i++) {
+                upperLinks.putInt(upperRecords + i, 0, 0);
+            }
+            upperRecords += level;
+
+            long currentEntryPoint = entryPoint;
+            if (currentEntryPoint != -1) {
+                link(node, normalized, level, entryLevel(currentEntryPoint), entryNode(currentEntryPoint));
+            }
+
+            size = node + 1;
+            if (currentEntryPoint == -1 || level > entryLevel(currentEntryPoint)) {
+                entryPoint = packEntryPoint(level, node);
+            }
+            return node;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void link(int node, float[] vector, int level, int entryLevel, int entryNode) {
+        long current = encode(similarity(vector, entryNode), entryNode);
+        for (int l = entryLevel; l > level; l--) {
+            current = searchLayer(vector, new long[]{current}, 1, l, node, candidate -> true).max();
+        }
+
+        long[] entryPoints = {current};
+        for (int l = Math.min(level, entryLevel); l >= 0; l--) {
+            long[] candidates = searchLayer(vector, entryPoints, efConstruction, l, node, candidate -> true)
+                    .sortedDescending();
+            int[] neighbours = selectNeighbours(candidates, m);
+
+            setNeighbours(node, l, neighbours, neighbours.length);
+            for (int neighbour : neighbours) {
+                connect(neighbour, node, l);
+            }
+            entryPoints = candidates;
+        }
+    }
+
+    /**
+     * Adds a backlink to the new node, pruning the neighbours of the node if it has too many.
+     */
+    private void connect(int node, int newNeighbour, int level) {
+        int maxNeighbours = level == 0 ? 2 * m : m;
+        int count = neighbourCount(node, level);
+
+        if (count < maxNeighbours) {
+            putNeighbour(node, level, count, newNeighbour);
+            putNeighbourCount(node, level, count + 1);
+            return;
+        }
+
+        float[] vector = vector(node);
+        LongHeap candidates = new LongHeap(count + 1);
+        candidates.push(encode(similarity(vector, newNeighbour), newNeighbour));
+        for (int i = 0; i < count; i++) {
+            int neighbour = neighbour(node, level, i);
+            candidates.push(encode(similarity(vector, neighbour), neighbour));
+        }
+
+        int[] neighbours = selectNeighbours(candidates.sortedDescending(), maxNeighbours);
+        setNeighbours(node, level, neighbours, neighbours.length);
+    }
+
+    /**
+     * Heuristic selection: a candidate is skipped if it's closer to an already selected neighbour than to the node,
+     * which keeps links towards distinct regions of the graph.
+     *
+     * @param candidates encoded candidates, the most similar first
+     */
+    private int[] selectNeighbours(long[] candidates, int maxNeighbours) {
+        int[] selected = new int[Math.min(maxNeighbours, candidates.length)];
+        int count = 0;
+
+        for (long candidate : candidates) {
+            if (count == selected.length) {
+                break;
+            }
+            float[] candidateVector = vector(node(candidate));
+            boolean diverse = true;
+            for (int i = 0; i < count && diverse; i++) {
+                diverse = similarity(candidateVector, selected[i]) <= score(candidate);
+            }
+            if (diverse) {
+                selected[count++] = node(candidate);
+            }
+        }
+
+        return Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * @param accept whether a node may be returned, rejected nodes are still traversed
+     * @return up to {@code k} accepted nodes, the most similar first
+     */
+    List<Match> search(float[] query, int k, int ef, IntPredicate accept) {
+        long currentEntryPoint = entryPoint;
+        int visibleSize = size;
+        if (currentEntryPoint == -1 || k <= 0) {
+            return List.of();
+        }
+
+        float[] normalized = normalize(query);
+        int entryNode = entryNode(currentEntryPoint);
+        long current = encode(similarity(normalized, entryNode), entryNode);
+        for (int l = entryLevel(currentEntryPoint); l > 0; l--) {
+            current = searchLayer(normalized, new long[]{current}, 1, l, visibleSize, node -> true).max();
+        }
+
+        long[] found = searchLayer(normalized, new long[]{current}, Math.max(ef, k), 0, visibleSize,
+                node -> !isDeleted(node) && accept.test(node))
+                .sortedDescending();
+
+        List<Match> matches = new ArrayList<>(Math.min(k, found.length));
+        for (int i = 0; i < found.length && i < k; i++) {
+            matches.add(new Match(node(found[i]), score(found[i])));
+        }
+        return matches;
+    }
+
+    /**
+     * Best-first search on one level.
+     *
+     * @param visibleSize nodes from this one on aren't linked yet
+     * @return up to {@code ef} accepted nodes
+     */
+    private LongHeap searchLayer(float[] query, long[] entryPoints, int ef, int level, int visibleSize,
+                                 IntPredicate accept) {
+        BitSet visited = new BitSet(visibleSize);
+        // max-heap by similarity: entries are inverted, which reverses their order
+        LongHeap candidates = new LongHeap(ef * 2);
+        // min-heap by similarity: the worst result is on top
+        LongHeap results = new LongHeap(ef + 1);
+
+        for (long entry : entryPoints) {
+            visited.set(node(entry));
+            candidates.push(~entry);
+            if (accept.test(node(entry))) {
+                results.push(entry);
+                if (results.size() > ef) {
+                    results.pop();
+                }
+            }
+        }
+
+        while (!candidates.isEmpty()) {
+            long candidate = ~candidates.pop();
+            if (results.size() >= ef && score(candidate) < score(results.peek())) {
+                break;
+            }
+
+            int count = Math.min(neighbourCount(node(candidate), level), level == 0 ? 2 * m : m);
+            for (int i = 0; i < count; i++) {
+                int neighbour = neighbour(node(candidate), level, i);
+                if (neighbour < 0 || neighbour >= visibleSize || visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+
+                float similarity = similarity(query, neighbour);
+                if (results.size() < ef || similarity > score(results.peek())) {
+                    long entry = encode(similarity, neighbour);
+                    candidates.push(~entry);
+                    if (accept.test(neighbour)) {
+                        results.push(entry);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+
+        return results;
+    }
+
+    void markDeleted(int node) {
+        writeLock.lock();
+        try {
+            nodes.putInt(node, NODE_DELETED, 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the graph to disk, then the header with the node count, so that a crash in between
+     * leaves the previously committed index.
+     */
+    void commit() {
+        writeLock.lock();
+        try {
+            vectors.force();
+            nodes.force();
+            links.force();
+            upperLinks.force();
+
+            long currentEntryPoint = entryPoint;
+            header.putInt(0, HEADER_SIZE, size);
+            header.putInt(0, HEADER_ENTRY_NODE, currentEntryPoint == -1 ? 0 : entryNode(currentEntryPoint));
+            header.putInt(0, HEADER_ENTRY_LEVEL, currentEntryPoint == -1 ? 0 : entryLevel(currentEntryPoint));
+            header.putInt(0, HEADER_UPPER_RECORDS, upperRecords);
+            header.force();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        for (MappedRecords file : List.of(header, vectors, nodes, links, upperLinks)) {
+            file.close();
+        }
+    }
+
+    private void ensureCapacity(int records) throws IOException {
+        vectors.ensureCapacity(records);
+        nodes.ensureCapacity(records);
+        links.ensureCapacity(records);
+    }
+
+    private int randomLevel() {
+        return Math.min(MAX_LEVEL, (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier));
+    }
+
+    private float similarity(float[] vector, int node) {
+        MappedByteBuffer segment = vectors.segment(node);
+        int offset = vectors.offset(node);
+        float sum = 0;
+        for (int i = 0; i < dimensions; i++) {
+            sum += vector[i] * segment.getFloat(offset + i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    private float[] vector(int node) {
+        MappedByteBuffer segment = vectors.segment(node);
+        int offset = vectors.offset(node);
+        float[] vector = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = segment.getFloat(offset + i * Float.BYTES);
+        }
+        return vector;
+    }
+
+    private int neighbourCount(int node, int level) {
+        return level == 0
+                ? links.getInt(node, 0)
+                : upperLinks.getInt(upperRecord(node, level), 0);
+    }
+
+    private int neighbour(int node, int level, int index) {
+        return level == 0
+                ? links.getInt(node, 1 + index)
+                : upperLinks.getInt(upperRecord(node, level), 1 + index);
+    }
+
+    private void putNeighbour(int node, int level, int index, int neighbour) {
+        if (level == 0) {
+            links.putInt(node, 1 + index, neighbour);
+        } else {
+            upperLinks.putInt(upperRecord(node, level), 1 + index, neighbour);
+        }
+    }
+
+    private void putNeighbourCount(int node, int level, int count) {
+        if (level == 0) {
+            links.putInt(node, 0, count);
+        } else {
+            upperLinks.putInt(upperRecord(node, level), 0, count);
+        }
+    }
+
+    /**
+     * Neighbours are written before the count, so readers see either the old or the new neighbours
+     * of a shrinking list, and never an unwritten slot of a growing one.
+     */
+    private void setNeighbours(int node, int level, int[] neighbours, int count) {
+        int currentCount = neighbourCount(node, level);
+        if (count < currentCount) {
+            putNeighbourCount(node, level, count);
+        }
+        for (int i = 0; i < count; i++) {
+            putNeighbour(node, level, i, neighbours[i]);
+        }
+        putNeighbourCount(node, level, count);
+    }
+
+    private int upperRecord(int node, int level) {
+        return nodes.getInt(node, NODE_FIRST_UPPER_RECORD) + level - 1;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = norm == 0 ? 0 : (float) (vector[i] / norm);
+        }
+        return normalized;
+    }
+
+    private static long packEntryPoint(int level, int node) {
+        return ((long) level << 32) | (node & 0xFFFFFFFFL);
+    }
+
+    private static int entryLevel(long entryPoint) {
+        return (int) (entryPoint >>> 32);
+    }
+
+    private static int entryNode(long entryPoint) {
+        return (int) entryPoint;
+    }
+
+    /**
+     * Similarity in the upper half, as an int ordered like the float, and the node in the lower half,
+     * so that heaps of primitive longs order nodes by similarity.
+     */
+    private static long encode(float similarity, int node) {
+        int bits = Float.floatToIntBits(similarity);
+        bits ^= (bits >> 31) & 0x7FFFFFFF;
+        return ((long) bits << 32) | (node & 0xFFFFFFFFL);
+    }
+
+    private static float score(long entry) {
+        int bits = (int) (entry >> 32);
+        bits ^= (bits >> 31) & 0x7FFFFFFF;
+        return Float.intBitsToFloat(bits);
+    }
+
+    private static int node(long entry) {
+        return (int) entry;
+    }
+
+    record Match(int node, float similarity) {
+    }
+
+    /**
+     * Binary min-heap of longs.
+     */
+    private static final class LongHeap {
+
+        private long[] heap;
+
+        private int size;
+
+
+        LongHeap(int capacity) {
+            this.heap = new long[Math.max(capacity, 1)];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long peek() {
+            return heap[0];
+        }
+
+        void push(long value) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= value) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= last) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return top;
+        }
+
+        long max() {
+            long max = heap[0];
+            for (int i = 1; i < size; i++) {
+                max = Math.max(max, heap[i]);
+            }
+            return max;
+        }
+
+        long[] sortedDescending() {
+            long[] sorted = Arrays.copyOf(heap, size);
+            Arrays.sort(sorted);
+            for (int i = 0, j = sorted.length - 1; i < j; i++, j--) {
+                long swap = sorted[i];
+                sorted[i] = sorted[j];
+                sorted[j] = swap;
+            }
+            return sorted;
+        }
+    }
+}
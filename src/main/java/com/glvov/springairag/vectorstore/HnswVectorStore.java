@@ -0,0 +1,366 @@
+package com.glvov.springairag.vectorstore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.glvov.springairag.vectorstore.HnswIndex.Match;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentMetadata;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.observation.conventions.VectorStoreSimilarityMetric;
+import org.springframework.ai.vectorstore.AbstractVectorStoreBuilder;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.FilterExpressionConverter;
+import org.springframework.ai.vectorstore.filter.converter.SimpleVectorStoreFilterExpressionConverter;
+import org.springframework.ai.vectorstore.observation.AbstractObservationVectorStore;
+import org.springframework.ai.vectorstore.observation.VectorStoreObservationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.lang.Nullable;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * In-process {@link org.springframework.ai.vectorstore.VectorStore} over an {@link HnswIndex},
+ * for single-node deployments and tests without pgvector.
+ * <br><br>
+ * Details:
+ * <ul>
+ *     <li>Vectors and the graph are memory-mapped files in {@code directory}, texts and metadata of the documents
+ *     are kept on heap and appended to {@code documents.jsonl}, both are reloaded on start.</li>
+ *     <li>Searches run concurrently with adds and deletes, which are serialized.</li>
+ *     <li>{@link SearchRequest} semantics of pgvector with cosine distance: at most {@code topK} documents
+ *     with similarity of at least {@code similarityThreshold}, the most similar first, scored by similarity
+ *     and with the {@code distance} metadata. Filter expressions are evaluated like in
+ *     {@link org.springframework.ai.vectorstore.SimpleVectorStore}.</li>
+ *     <li>An added document with an existing id replaces it. Deleted documents are only marked as such,
+ *     their space isn't reclaimed.</li>
+ *     <li>The dimensions are taken from the first added embedding, so the embedding model isn't called on start.</li>
+ * </ul>
+ */
+@Slf4j
+public class HnswVectorStore extends AbstractObservationVectorStore implements Closeable {
+
+    public static final String DATABASE_SYSTEM = "hnsw";
+
+    private static final String DOCUMENTS_FILE = "documents.jsonl";
+
+    private final Path directory;
+
+    private final int m;
+
+    private final int efConstruction;
+
+    private final int efSearch;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final SpelExpressionParser expressionParser = new SpelExpressionParser();
+
+    private final FilterExpressionConverter filterExpressionConverter = new SimpleVectorStoreFilterExpressionConverter();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final Map<String, Integer> nodesById = new ConcurrentHashMap<>();
+
+    private final Map<Integer, StoredDocument> documentsByNode = new ConcurrentHashMap<>();
+
+    private final FileOutputStream documentLogStream;
+
+    private final Writer documentLog;
+
+    // created with the first embedding, unless stored already
+    @Nullable
+    private volatile HnswIndex index;
+
+
+    protected HnswVectorStore(HnswVectorStoreBuilder builder) {
+        super(builder);
+        this.directory = builder.directory;
+        this.m = builder.m;
+        this.efConstruction = builder.efConstruction;
+        this.efSearch = builder.efSearch;
+
+        try {
+            Files.createDirectories(directory);
+            int dimensions = HnswIndex.storedDimensions(directory);
+            if (dimensions > 0) {
+                index = new HnswIndex(directory, dimensions, m, efConstruction);
+                loadDocuments(index);
+            }
+            documentLogStream = new FileOutputStream(directory.resolve(DOCUMENTS_FILE).toFile(), true);
+            documentLog = new OutputStreamWriter(documentLogStream, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("HNSW vector store can't be opened in " + directory, e);
+        }
+
+        log.info("HNSW vector store opened in '{}', documents: {}", directory, nodesById.size());
+    }
+
+    public static HnswVectorStoreBuilder builder(EmbeddingModel embeddingModel, Path directory) {
+        return new HnswVectorStoreBuilder(embeddingModel, directory);
+    }
+
+    /**
+     * Documents logged for nodes not committed to the index or deleted since are skipped,
+     * a later node of the same id replaces an earlier one.
+     */
+    private void loadDocuments(HnswIndex index) throws IOException {
+        Path documentsFile = directory.resolve(DOCUMENTS_FILE);
+        if (!Files.exists(documentsFile)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(documentsFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                StoredDocument document = objectMapper.readValue(line, StoredDocument.class);
+                if (document.node() < index.size() && !index.isDeleted(document.node())) {
+                    documentsByNode.put(document.node(), document);
+                    nodesById.put(document.id(), document.node());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void doAdd(List<Document> documents) {
+        List<float[]> embeddings = embeddingModel.embed(documents, EmbeddingOptionsBuilder.builder().build(),
+                batchingStrategy);
+
+        writeLock.lock();
+        try {
+            HnswIndex currentIndex = index != null ? index : createIndex(embeddings.getFirst().length);
+
+            for (int i = 0; i < documents.size(); i++) {
+                Document document = documents.get(i);
+                Integer replaced = nodesById.get(document.getId());
+                if (replaced != null) {
+                    currentIndex.markDeleted(replaced);
+                    documentsByNode.remove(replaced);
+                }
+
+                // stored before the node is published, so that searches always find the document of a node
+                StoredDocument stored = new StoredDocument(
+                        currentIndex.size(), document.getId(), document.getText(), document.getMetadata()
+                );
+                documentsByNode.put(stored.node(), stored);
+                currentIndex.add(embeddings.get(i));
+                nodesById.put(stored.id(), stored.node());
+
+                documentLog.write(objectMapper.writeValueAsString(stored));
+                documentLog.write('\n');
+            }
+
+            documentLog.flush();
+            documentLogStream.getFD().sync();
+            currentIndex.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Documents can't be added to HNSW vector store", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private HnswIndex createIndex(int dimensions) throws IOException {
+        HnswIndex created = new HnswIndex(directory, dimensions, m, efConstruction);
+        index = created;
+        return created;
+    }
+
+    @Override
+    public void doDelete(List<String> idList) {
+        writeLock.lock();
+        try {
+            HnswIndex currentIndex = index;
+            if (currentIndex == null) {
+                return;
+            }
+            for (String id : idList) {
+                Integer node = nodesById.remove(id);
+                if (node != null) {
+                    currentIndex.markDeleted(node);
+                    documentsByNode.remove(node);
+                }
+            }
+            currentIndex.commit();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Document> doSimilaritySearch(SearchRequest request) {
+        HnswIndex currentIndex = index;
+        if (currentIndex == null || currentIndex.size() == 0) {
+            return List.of();
+        }
+
+        float[] query = embeddingModel.embed(request.getQuery());
+        Predicate<Map<String, Object>> filter = metadataFilter(request);
+        IntPredicate accept = node -> {
+            StoredDocument document = documentsByNode.get(node);
+            return document != null && filter.test(document.metadata());
+        };
+
+        return currentIndex.search(query, request.getTopK(), Math.max(efSearch, request.getTopK()), accept).stream()
+                .filter(match -> match.similarity() >= request.getSimilarityThreshold())
+                .map(this::toDocument)
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    private Predicate<Map<String, Object>> metadataFilter(SearchRequest request) {
+        if (!request.hasFilterExpression()) {
+            return metadata -> true;
+        }
+
+        Expression expression = expressionParser.parseExpression(
+                filterExpressionConverter.convertExpression(request.getFilterExpression())
+        );
+        return metadata -> {
+            StandardEvaluationContext context = new StandardEvaluationContext();
+            context.setVariable("metadata", metadata);
+            return Boolean.TRUE.equals(expression.getValue(context, Boolean.class));
+        };
+    }
+
+    @Nullable
+    private Document toDocument(Match match) {
+        StoredDocument document = documentsByNode.get(match.node());
+        if (document == null) {
+            // deleted meanwhile
+            return null;
+        }
+
+        Map<String, Object> metadata = new HashMap<>(document.metadata());
+        metadata.put(DocumentMetadata.DISTANCE.value(), 1 - match.similarity());
+        return Document.builder()
+                .id(document.id())
+                .text(document.text())
+                .metadata(metadata)
+                .score((double) match.similarity())
+                .build();
+    }
+
+    /**
+     * @return stored documents of the ids, without score
+     */
+    public List<Document> findByIds(Collection<String> ids) {
+        return ids.stream()
+                .map(nodesById::get)
+                .filter(Objects::nonNull)
+                .map(documentsByNode::get)
+                .filter(Objects::nonNull)
+                .map(document -> Document.builder()
+                        .id(document.id())
+                        .text(document.text())
+                        .metadata(new HashMap<>(document.metadata()))
+                        .build())
+                .toList();
+    }
+
+    /**
+     * Full scan of the stored documents.
+     */
+    public List<String> findIds(Predicate<Map<String, Object>> metadataPredicate) {
+        return documentsByNode.values().stream()
+                .filter(document -> metadataPredicate.test(document.metadata()))
+                .map(StoredDocument::id)
+                .toList();
+    }
+
+    @Override
+    public VectorStoreObservationContext.Builder createObservationContextBuilder(String operationName) {
+        HnswIndex currentIndex = index;
+        return VectorStoreObservationContext.builder(DATABASE_SYSTEM, operationName)
+                .collectionName(directory.getFileName().toString())
+                .dimensions(currentIndex != null ? currentIndex.dimensions() : null)
+                .similarityMetric(VectorStoreSimilarityMetric.COSINE.value());
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            documentLog.close();
+            HnswIndex currentIndex = index;
+            if (currentIndex != null) {
+                currentIndex.close();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    record StoredDocument(int node, String id, String text, Map<String, Object> metadata) {
+    }
+
+    public static class HnswVectorStoreBuilder extends AbstractVectorStoreBuilder<HnswVectorStoreBuilder> {
+
+        private final Path directory;
+
+        private int m = 16;
+
+        private int efConstruction = 200;
+
+        private int efSearch = 64;
+
+
+        private HnswVectorStoreBuilder(EmbeddingModel embeddingModel, Path directory) {
+            super(embeddingModel);
+            this.directory = directory;
+        }
+
+        /**
+         * Neighbours per node on levels above 0, twice as many on level 0.
+         */
+        public HnswVectorStoreBuilder m(int m) {
+            this.m = m;
+            return this;
+        }
+
+        /**
+         * Candidates considered when linking a new node, higher is a better graph and slower inserts.
+         */
+        public HnswVectorStoreBuilder efConstruction(int efConstruction) {
+            this.efConstruction = efConstruction;
+            return this;
+        }
+
+        /**
+         * Candidates considered by a search, at least {@code topK}, higher is a better recall and slower searches.
+         */
+        public HnswVectorStoreBuilder efSearch(int efSearch) {
+            this.efSearch = efSearch;
+            return this;
+        }
+
+        @Override
+        public HnswVectorStore build() {
+            return new HnswVectorStore(this);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.glvov.springairag.vectorstore;
+
+import com.glvov.springairag.advisor.misc.BM25DocumentStatistics;
+import com.glvov.springairag.model.ChunkManifestEntry;
+import com.glvov.springairag.repository.VectorStoreChunkRepository;
+import com.glvov.springairag.service.VectorStoreService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.ai.reader.TextReader;
+
+import java.util.List;
+
+/**
+ * Reads chunks back from the documents kept by {@link HnswVectorStore}.
+ */
+@RequiredArgsConstructor
+public class HnswVectorStoreChunkRepository implements VectorStoreChunkRepository {
+
+    private final HnswVectorStore vectorStore;
+
+
+    @Override
+    public List<ChunkManifestEntry> findManifestBySource(String filename) {
+        List<String> ids = vectorStore.findIds(
+                metadata -> filename.equals(metadata.get(VectorStoreService.SOURCE_FILENAME_KEY))
+                        || filename.equals(metadata.get(TextReader.SOURCE_METADATA))
+        );
+        return vectorStore.findByIds(ids).stream()
+                .map(chunk -> BM25DocumentStatistics.fromMetadata(chunk.getMetadata())
+                        .map(statistics -> ChunkManifestEntry.of(chunk.getId(), statistics))
+                        .orElseGet(() -> ChunkManifestEntry.uncounted(chunk.getId())))
+                .toList();
+    }
+}
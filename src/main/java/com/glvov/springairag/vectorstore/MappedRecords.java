@@ -0,0 +1,91 @@
+package com.glvov.springairag.vectorstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * File of fixed-size records, memory-mapped in segments of whole records, so a record never spans two mappings
+ * and the file grows beyond the 2 GB limit of a single {@link MappedByteBuffer}.
+ * <br><br>
+ * Writes are expected from a single thread at a time, reads from any threads without locking:
+ * segments are published through a volatile array.
+ */
+class MappedRecords implements Closeable {
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+
+    private final int recordBytes;
+
+    private final int recordsPerSegment;
+
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+
+    MappedRecords(Path file, int recordBytes) throws IOException {
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.recordBytes = recordBytes;
+        this.recordsPerSegment = (int) Math.max(1, SEGMENT_BYTES / recordBytes);
+    }
+
+    /**
+     * Makes sure records {@code [0, records)} are mapped, the file grows as needed.
+     */
+    void ensureCapacity(int records) throws IOException {
+        int required = (records + recordsPerSegment - 1) / recordsPerSegment;
+        MappedByteBuffer[] current = segments;
+        if (required <= current.length) {
+            return;
+        }
+
+        MappedByteBuffer[] grown = Arrays.copyOf(current, required);
+        long segmentBytes = (long) recordsPerSegment * recordBytes;
+        for (int i = current.length; i < required; i++) {
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentBytes, segmentBytes);
+            grown[i].order(ByteOrder.nativeOrder());
+        }
+        segments = grown;
+    }
+
+    /**
+     * @return segment holding the record, to be read at {@link #offset(int)}
+     */
+    MappedByteBuffer segment(int record) {
+        return segments[record / recordsPerSegment];
+    }
+
+    int offset(int record) {
+        return (record % recordsPerSegment) * recordBytes;
+    }
+
+    int getInt(int record, int index) {
+        return segment(record).getInt(offset(record) + index * Integer.BYTES);
+    }
+
+    void putInt(int record, int index, int value) {
+        segment(record).putInt(offset(record) + index * Integer.BYTES, value);
+    }
+
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            force();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,4 @@
+@NonNullApi
+package com.glvov.springairag.vectorstore;
+
+import org.springframework.lang.NonNullApi;
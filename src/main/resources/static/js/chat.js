@@ -1,7 +1,68 @@
+// Chat list is loaded page by page (newest first) as the sidebar is scrolled to the bottom
+function initChatList() {
+    const chatListWrapper = document.querySelector(".chat-list-wrapper");
+    const chatList = document.querySelector(".chat-list");
+    let loading = false;
+
+    async function loadNextPage() {
+        const cursor = chatList.dataset.nextCursor;
+        const nearBottom = chatListWrapper.scrollTop + chatListWrapper.clientHeight >= chatListWrapper.scrollHeight - 50;
+        if (!cursor || loading || !nearBottom) return;
+
+        loading = true;
+        let added = 0;
+        try {
+            const response = await fetch(`/api/chats?before=${cursor}`);
+            if (!response.ok) throw new Error(`HTTP ${response.status}`);
+            const page = await response.json();
+            page.chats.forEach(chat => chatList.appendChild(createChatItem(chat)));
+            added = page.chats.length;
+
+            if (page.nextCursor) {
+                chatList.dataset.nextCursor = page.nextCursor;
+            } else {
+                delete chatList.dataset.nextCursor;
+            }
+        } catch (e) {
+            console.error("Chat list loading error:", e);
+        } finally {
+            loading = false;
+        }
+        // the page may not fill the sidebar, so that no scroll event ever comes,
+        // after an error the next scroll event retries
+        if (added > 0) loadNextPage();
+    }
+
+    chatListWrapper.addEventListener("scroll", loadNextPage);
+    loadNextPage();
+}
+
+function createChatItem(chat) {
+    const item = document.createElement("li");
+
+    const link = document.createElement("a");
+    link.href = `/chat/${chat.id}`;
+    const title = document.createElement("span");
+    title.textContent = chat.title;
+    link.appendChild(title);
+
+    const deleteForm = document.createElement("form");
+    deleteForm.action = `/chat/${chat.id}/delete`;
+    deleteForm.method = "post";
+    deleteForm.innerHTML = `<button type="submit" class="delete-chat-btn">✕</button>`;
+
+    item.append(link, deleteForm);
+    return item;
+}
+
 document.addEventListener("DOMContentLoaded", function() {
+    initChatList();
+
     const sendButton = document.getElementById("send-button");
     const chatInput = document.getElementById("chat-input");
     const messagesContainer = document.getElementById("messages");
+    // no chat opened
+    if (!sendButton) return;
 
     sendButton.addEventListener("click", function() {
         const prompt = chatInput.value;
@@ -42,6 +103,21 @@ document.addEventListener("DOMContentLoaded", function() {
             messagesContainer.scrollTop = messagesContainer.scrollHeight;
         };
 
+        // chunks are retrieved, the answer is being generated
+        eventSource.addEventListener("retrieval", function(event) {
+            const data = JSON.parse(event.data);
+            if (fullText === "") {
+                aiBubble.textContent = `Found ${data.chunks} relevant fragments, generating the answer...`;
+            }
+        });
+
+        // the LLM backend is overloaded, the request wasn't processed
+        eventSource.addEventListener("overloaded", function(event) {
+            const data = JSON.parse(event.data);
+            aiBubble.textContent = `${data.message} (${data.retryAfter}s)`;
+            eventSource.close();
+        });
+
         eventSource.onerror = function(e) {
             console.error("SSE error:", e);
             eventSource.close();
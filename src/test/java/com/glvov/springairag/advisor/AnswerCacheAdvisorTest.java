@@ -0,0 +1,154 @@
+package com.glvov.springairag.advisor;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.embedding.EmbeddingModel;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.glvov.springairag.advisor.RagAdvisor.RAG_QUESTION;
+import static com.glvov.springairag.advisor.RagAdvisor.RETRIEVED_CHUNK_IDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AnswerCacheAdvisorTest {
+
+    private static final String ANSWER = "Restart the worker pool from the admin console.";
+
+    private final EmbeddingModel embeddingModel = mock(EmbeddingModel.class);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final AnswerCacheAdvisor advisor = AnswerCacheAdvisor
+            .builder(embeddingModel, Caffeine.newBuilder().build())
+            .similarityThreshold(0.95)
+            .meterRegistry(meterRegistry)
+            .build();
+
+    private final CallAdvisorChain callChain = mock(CallAdvisorChain.class);
+
+    private final StreamAdvisorChain streamChain = mock(StreamAdvisorChain.class);
+
+
+    @Test
+    void similarQuestionOverSameChunksIsAnsweredFromCache() {
+        when(embeddingModel.embed("How to restart PlatformX?")).thenReturn(new float[]{1, 0});
+        when(embeddingModel.embed("how do I restart PlatformX")).thenReturn(new float[]{0.99f, 0.05f});
+        when(callChain.nextCall(any())).thenReturn(response(ANSWER));
+
+        advisor.adviseCall(request("How to restart PlatformX?", List.of("a", "b")), callChain);
+        ChatClientResponse cached = advisor.adviseCall(request("how do I restart PlatformX", List.of("b", "a")), callChain);
+
+        assertThat(cached.chatResponse().getResult().getOutput().getText()).isEqualTo(ANSWER);
+        assertThat(cached.context()).containsEntry(AnswerCacheAdvisor.CACHED_ANSWER, true);
+        verify(callChain, times(1)).nextCall(any());
+        assertThat(meterRegistry.counter("rag.answer-cache.requests", "outcome", "hit").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void differentChunksOrDissimilarQuestionMiss() {
+        when(embeddingModel.embed("How to restart PlatformX?")).thenReturn(new float[]{1, 0});
+        when(embeddingModel.embed("How to scale PlatformX?")).thenReturn(new float[]{0.6f, 0.8f});
+        when(callChain.nextCall(any())).thenReturn(response(ANSWER));
+
+        advisor.adviseCall(request("How to restart PlatformX?", List.of("a")), callChain);
+        advisor.adviseCall(request("How to restart PlatformX?", List.of("c")), callChain);
+        advisor.adviseCall(request("How to scale PlatformX?", List.of("a")), callChain);
+
+        verify(callChain, times(3)).nextCall(any());
+    }
+
+    @Test
+    void streamedAnswerIsCachedAndReplayedAsStream() {
+        when(embeddingModel.embed("How to restart PlatformX?")).thenReturn(new float[]{1, 0});
+        when(streamChain.nextStream(any())).thenReturn(Flux.just(
+                response("Restart the worker pool "), response("from the admin console.")
+        ));
+        ChatClientRequest request = request("How to restart PlatformX?", List.of("a"));
+
+        advisor.adviseStream(request, streamChain).blockLast();
+        List<String> replayed = advisor.adviseStream(request, streamChain)
+                .map(response -> response.chatResponse().getResult().getOutput().getText())
+                .collectList()
+                .block();
+
+        assertThat(replayed).hasSizeGreaterThan(1);
+        assertThat(String.join("", replayed)).isEqualTo(ANSWER);
+        verify(streamChain, times(1)).nextStream(any());
+    }
+
+    @Test
+    void sameFollowUpOverDifferentHistoriesIsNotShared() {
+        when(embeddingModel.embed("And the second one?")).thenReturn(new float[]{1, 0});
+        when(callChain.nextCall(any())).thenReturn(response("The second one is PX-4013."), response("Dr. Watson."));
+
+        ChatClientResponse first = advisor.adviseCall(followUp(
+                new UserMessage("List the worker pool error codes"), new AssistantMessage("PX-4012 and PX-4013")
+        ), callChain);
+        ChatClientResponse second = advisor.adviseCall(followUp(
+                new UserMessage("Who are the characters of my novel?"), new AssistantMessage("Holmes and Watson")
+        ), callChain);
+        ChatClientResponse repeated = advisor.adviseCall(followUp(
+                new UserMessage("List the worker pool error codes"), new AssistantMessage("PX-4012 and PX-4013")
+        ), callChain);
+
+        assertThat(first.chatResponse().getResult().getOutput().getText()).isEqualTo("The second one is PX-4013.");
+        assertThat(second.chatResponse().getResult().getOutput().getText()).isEqualTo("Dr. Watson.");
+        assertThat(second.context()).doesNotContainKey(AnswerCacheAdvisor.CACHED_ANSWER);
+        assertThat(repeated.context()).containsEntry(AnswerCacheAdvisor.CACHED_ANSWER, true);
+        verify(callChain, times(2)).nextCall(any());
+    }
+
+    @Test
+    void invalidationDropsCachedAnswers() {
+        when(embeddingModel.embed("How to restart PlatformX?")).thenReturn(new float[]{1, 0});
+        when(callChain.nextCall(any())).thenReturn(response(ANSWER));
+        ChatClientRequest request = request("How to restart PlatformX?", List.of("a"));
+
+        advisor.adviseCall(request, callChain);
+        advisor.invalidateAll();
+        advisor.adviseCall(request, callChain);
+
+        verify(callChain, times(2)).nextCall(any());
+    }
+
+    private static ChatClientRequest request(String question, List<String> chunkIds) {
+        return ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(question)))
+                .context(Map.of(RAG_QUESTION, question, RETRIEVED_CHUNK_IDS, chunkIds))
+                .build();
+    }
+
+    private static ChatClientRequest followUp(Message... history) {
+        List<Message> messages = new ArrayList<>(List.of(history));
+        messages.add(new UserMessage("And the second one?"));
+        return ChatClientRequest.builder()
+                .prompt(new Prompt(messages))
+                .context(Map.of(RAG_QUESTION, "And the second one?", RETRIEVED_CHUNK_IDS, List.of("a")))
+                .build();
+    }
+
+    private static ChatClientResponse response(String text) {
+        return ChatClientResponse.builder()
+                .chatResponse(new ChatResponse(List.of(new Generation(new AssistantMessage(text)))))
+                .build();
+    }
+}
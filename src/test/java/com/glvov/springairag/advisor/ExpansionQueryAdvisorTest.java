@@ -0,0 +1,175 @@
+package com.glvov.springairag.advisor;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.glvov.springairag.advisor.misc.BM25CorpusStatistics;
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.prompt.Prompt;
+import reactor.core.publisher.Flux;
+
+import java.util.Set;
+
+import static com.glvov.springairag.advisor.ExpansionQueryAdvisor.ENRICHED_QUESTION;
+import static com.glvov.springairag.advisor.ExpansionQueryAdvisor.PENDING_EXPANSION;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class ExpansionQueryAdvisorTest {
+
+    private static final String EXPANDED = "how to restart platformx worker pool queue service";
+
+    private final ChatClient chatClient = mock(ChatClient.class, RETURNS_DEEP_STUBS);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final BM25RerankEngine rerankEngine = BM25RerankEngine.builder().build();
+
+    private final AdvisorChain advisorChain = new AdvisorChain() {
+    };
+
+
+    @Test
+    void cachedExpansionSkipsLlmCall() {
+        when(chatClient.prompt().user(anyString()).call().content()).thenReturn(EXPANDED);
+        ExpansionQueryAdvisor advisor = advisorBuilder().build();
+
+        ChatClientRequest first = advisor.before(request("How to restart PlatformX worker pool"), advisorChain);
+        ChatClientRequest second = advisor.before(request("how to restart  platformx worker pool "), advisorChain);
+
+        assertThat(first.context()).containsEntry(ENRICHED_QUESTION, EXPANDED);
+        assertThat(second.context()).containsEntry(ENRICHED_QUESTION, EXPANDED);
+        verify(chatClient.prompt().user(anyString()).call(), times(1)).content();
+        assertThat(meterRegistry.counter("rag.expansion.requests", "outcome", "cached").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void multiQueryExpansionKeepsSubQueriesOnePerLine() {
+        when(chatClient.prompt().user(anyString()).call().content()).thenReturn("""
+                1. how to restart PlatformX worker pool
+                2. как перезапустить пул воркеров PlatformX
+
+                3. PlatformX worker pool restart command
+                """);
+        ExpansionQueryAdvisor advisor = advisorBuilder().subQueries(2).build();
+
+        ChatClientRequest result = advisor.before(request("How to restart PlatformX worker pool"), advisorChain);
+
+        assertThat(result.context()).containsEntry(ENRICHED_QUESTION,
+                "how to restart PlatformX worker pool\nкак перезапустить пул воркеров PlatformX");
+        assertThat(ExpansionQueryAdvisor.queries(result.context().get(ENRICHED_QUESTION).toString())).hasSize(2);
+    }
+
+    @Test
+    void longQuestionIsNotExpanded() {
+        ExpansionQueryAdvisor advisor = advisorBuilder().maxQuestionWords(3).build();
+
+        ChatClientRequest result = advisor.before(request("How to restart PlatformX worker pool"), advisorChain);
+
+        assertThat(result.context()).doesNotContainKey(ENRICHED_QUESTION);
+        verify(chatClient.prompt().user(anyString()).call(), never()).content();
+    }
+
+    @Test
+    void questionWithRareCorpusTermIsNotExpanded() {
+        ExpansionQueryAdvisor advisor = advisorBuilder()
+                .rareTermMaxDocumentRatio(0.02)
+                .rerankEngine(rerankEngine)
+                .corpusStatistics(corpusStatistics("PX-404"))
+                .build();
+
+        ChatClientRequest result = advisor.before(request("What does PX-404 mean?"), advisorChain);
+
+        assertThat(result.context()).doesNotContainKey(ENRICHED_QUESTION);
+        verify(chatClient.prompt().user(anyString()).call(), never()).content();
+        assertThat(meterRegistry.counter("rag.expansion.requests", "outcome", "skipped_rare_term").count())
+                .isEqualTo(1.0);
+    }
+
+    @Test
+    void questionWithRareNameAmongGenericWordsIsExpanded() {
+        when(chatClient.prompt().user(anyString()).call().content()).thenReturn(EXPANDED);
+        ExpansionQueryAdvisor advisor = advisorBuilder()
+                .rareTermMaxDocumentRatio(0.02)
+                .rerankEngine(rerankEngine)
+                .corpusStatistics(corpusStatistics("John Smith"))
+                .build();
+
+        ChatClientRequest result = advisor.before(request("What makes John Smith sneeze?"), advisorChain);
+
+        assertThat(result.context()).containsEntry(ENRICHED_QUESTION, EXPANDED);
+        assertThat(meterRegistry.counter("rag.expansion.requests", "outcome", "skipped_rare_term").count())
+                .isZero();
+    }
+
+    @Test
+    void speculativeModeDoesNotWaitForExpansion() {
+        when(chatClient.prompt().user(anyString()).call().content()).thenReturn(EXPANDED);
+        ExpansionQueryAdvisor advisor = advisorBuilder().speculativeExecutor(Runnable::run).build();
+
+        ChatClientRequest result = advisor.before(request("How to restart PlatformX worker pool"), advisorChain);
+
+        assertThat(result.context()).doesNotContainKey(ENRICHED_QUESTION);
+        assertThat(result.context().get(PENDING_EXPANSION))
+                .isInstanceOfSatisfying(ExpansionQueryAdvisor.PendingExpansion.class,
+                        pending -> assertThat(pending.enrichedQuestion()).isCompletedWithValue(EXPANDED));
+    }
+
+    @Test
+    void streamedRequestIsPassedOnOnceStreamedExpansionCompletes() {
+        when(chatClient.prompt().user(anyString()).stream().content()).thenReturn(Flux.just("how to restart ",
+                "platformx worker pool ", "queue service"));
+        StreamAdvisorChain streamChain = mock(StreamAdvisorChain.class);
+        when(streamChain.nextStream(any())).thenReturn(Flux.empty());
+        ExpansionQueryAdvisor advisor = advisorBuilder().build();
+
+        advisor.adviseStream(request("How to restart PlatformX worker pool"), streamChain).blockLast();
+
+        ArgumentCaptor<ChatClientRequest> passedOn = ArgumentCaptor.forClass(ChatClientRequest.class);
+        verify(streamChain).nextStream(passedOn.capture());
+        assertThat(passedOn.getValue().context()).containsEntry(ENRICHED_QUESTION, EXPANDED);
+        verify(chatClient.prompt().user(anyString()).call(), never()).content();
+    }
+
+    private ExpansionQueryAdvisor.ExpansionQueryAdvisorBuilder advisorBuilder() {
+        return ExpansionQueryAdvisor.builder(chatClient)
+                .expansionCache(Caffeine.newBuilder().maximumSize(100).build())
+                .meterRegistry(meterRegistry);
+    }
+
+    /**
+     * Corpus of 100 chunks where terms of {@code rareText} occur in a single chunk, and any other term in half of them.
+     */
+    private BM25CorpusStatistics corpusStatistics(String rareText) {
+        Set<String> rareTerms = rerankEngine.analyze(rareText).termFrequencies().keySet();
+        return new BM25CorpusStatistics() {
+            @Override
+            public long documentCount() {
+                return 100;
+            }
+
+            @Override
+            public double averageDocumentLength() {
+                return 60;
+            }
+
+            @Override
+            public int documentFrequency(String term) {
+                return rareTerms.contains(term) ? 1 : 50;
+            }
+        };
+    }
+
+    private static ChatClientRequest request(String question) {
+        return ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(question)))
+                .build();
+    }
+}
@@ -0,0 +1,139 @@
+package com.glvov.springairag.advisor;
+
+import com.glvov.springairag.advisor.misc.PipelineMetrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.BaseAdvisor;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.metadata.ChatResponseMetadata;
+import org.springframework.ai.chat.metadata.DefaultUsage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MeteredAdvisorTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final PipelineMetrics metrics = PipelineMetrics.builder()
+            .meterRegistry(meterRegistry)
+            .defaultModel("gemma3")
+            .profile("ollama")
+            .build();
+
+    private final ChatClientRequest request = ChatClientRequest.builder().prompt(new Prompt("question")).build();
+
+
+    @Test
+    void stageTimeExcludesTheRestOfTheChain() {
+        CallAdvisorChain callChain = mock(CallAdvisorChain.class);
+        when(callChain.nextCall(any())).thenAnswer(invocation -> {
+            sleep(200);
+            return response("answer");
+        });
+
+        MeteredAdvisor.of(new SleepingAdvisor(), "rag", metrics).adviseCall(request, callChain);
+
+        Timer stage = meterRegistry.get(PipelineMetrics.STAGE_METER)
+                .tags("stage", "rag", "mode", "call", "outcome", "success", "model", "gemma3", "profile", "ollama")
+                .timer();
+        assertThat(stage.count()).isEqualTo(1);
+        assertThat(stage.totalTime(TimeUnit.MILLISECONDS)).isBetween(50.0, 190.0);
+    }
+
+    @Test
+    void streamedStageIsTimedUntilTheRestOfTheChainIsSubscribed() {
+        StreamAdvisorChain streamChain = mock(StreamAdvisorChain.class);
+        when(streamChain.nextStream(any())).thenReturn(
+                Flux.just(response("first "), response("answer")).delayElements(Duration.ofMillis(200))
+        );
+
+        List<ChatClientResponse> responses = MeteredAdvisor.of(new SleepingAdvisor(), "rag", metrics)
+                .adviseStream(request, streamChain)
+                .collectList()
+                .block();
+
+        assertThat(responses).hasSize(2);
+        Timer stage = meterRegistry.get(PipelineMetrics.STAGE_METER).tags("stage", "rag", "mode", "stream").timer();
+        assertThat(stage.count()).isEqualTo(1);
+        assertThat(stage.totalTime(TimeUnit.MILLISECONDS)).isBetween(50.0, 190.0);
+    }
+
+    @Test
+    void generationRecordsTimeToFirstTokenAndThroughput() {
+        StreamAdvisorChain streamChain = mock(StreamAdvisorChain.class);
+        when(streamChain.nextStream(any())).thenReturn(Flux.concat(
+                Flux.just(response("Restart ")).delaySubscription(Duration.ofMillis(100)),
+                Flux.just(response("the pool"), usage(12, 3)).delayElements(Duration.ofMillis(100))
+        ));
+        GenerationMetricsAdvisor advisor = GenerationMetricsAdvisor.builder().metrics(metrics).build();
+
+        advisor.adviseStream(request, streamChain).blockLast();
+
+        Timer timeToFirstToken = meterRegistry.get(PipelineMetrics.TIME_TO_FIRST_TOKEN_METER).timer();
+        assertThat(timeToFirstToken.totalTime(TimeUnit.MILLISECONDS)).isBetween(80.0, 190.0);
+        assertThat(meterRegistry.get(PipelineMetrics.PROMPT_TOKENS_METER).summary().totalAmount()).isEqualTo(12);
+        // 3 tokens in ~200 ms after the first one
+        assertThat(meterRegistry.get(PipelineMetrics.TOKENS_PER_SECOND_METER).summary().max()).isBetween(5.0, 16.0);
+        assertThat(meterRegistry.get(PipelineMetrics.STAGE_METER).tag("stage", "generation").timer().count())
+                .isEqualTo(1);
+    }
+
+    private static ChatClientResponse response(String text) {
+        return ChatClientResponse.builder()
+                .chatResponse(new ChatResponse(List.of(new Generation(new AssistantMessage(text)))))
+                .build();
+    }
+
+    private static ChatClientResponse usage(int promptTokens, int completionTokens) {
+        ChatResponseMetadata metadata = ChatResponseMetadata.builder()
+                .usage(new DefaultUsage(promptTokens, completionTokens))
+                .build();
+        return ChatClientResponse.builder()
+                .chatResponse(new ChatResponse(List.of(new Generation(new AssistantMessage(""))), metadata))
+                .build();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class SleepingAdvisor implements BaseAdvisor {
+
+        @Override
+        public ChatClientRequest before(ChatClientRequest chatClientRequest, AdvisorChain advisorChain) {
+            sleep(100);
+            return chatClientRequest;
+        }
+
+        @Override
+        public ChatClientResponse after(ChatClientResponse chatClientResponse, AdvisorChain advisorChain) {
+            return chatClientResponse;
+        }
+
+        @Override
+        public int getOrder() {
+            return 0;
+        }
+    }
+}
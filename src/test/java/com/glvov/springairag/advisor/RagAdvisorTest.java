@@ -0,0 +1,259 @@
+package com.glvov.springairag.advisor;
+
+import com.glvov.springairag.advisor.ExpansionQueryAdvisor.PendingExpansion;
+import com.glvov.springairag.advisor.misc.SearchQuantization;
+import com.glvov.springairag.embedding.CachingEmbeddingModel;
+import com.glvov.springairag.repository.HybridSearchRepository;
+import com.glvov.springairag.repository.HybridSearchRepository.Weights;
+import com.glvov.springairag.repository.QuantizedVectorSearchRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.glvov.springairag.advisor.ExpansionQueryAdvisor.ENRICHED_QUESTION;
+import static com.glvov.springairag.advisor.ExpansionQueryAdvisor.PENDING_EXPANSION;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class RagAdvisorTest {
+
+    private static final String QUESTION = "How to restart PlatformX?";
+
+    private static final String EXPANDED = "How to restart PlatformX worker pool service";
+
+    private final VectorStore vectorStore = mock(VectorStore.class);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final RagAdvisor advisor = RagAdvisor.build(vectorStore)
+            .rerankEnabled(false)
+            .meterRegistry(meterRegistry)
+            .build();
+
+    private final AdvisorChain advisorChain = new AdvisorChain() {
+    };
+
+
+    @Test
+    void speculativeAndEnrichedResultsAreMerged() {
+        givenSearchResults(Map.of(
+                QUESTION, List.of(chunk("a", "restart via admin console", 0.7)),
+                EXPANDED, List.of(chunk("b", "worker pool restart script", 0.9), chunk("a", "restart via admin console", 0.8))
+        ));
+        PendingExpansion pending = new PendingExpansion(
+                CompletableFuture.completedFuture(EXPANDED), System.nanoTime() + 5_000_000_000L
+        );
+
+        String prompt = advisor.before(request(pending), advisorChain).prompt().getUserMessage().getText();
+
+        assertThat(prompt).contains("worker pool restart script", "restart via admin console");
+        assertThat(prompt.indexOf("worker pool restart script")).isLessThan(prompt.indexOf("restart via admin console"));
+        assertThat(meterRegistry.counter("rag.retrieval.speculative", "outcome", "merged").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void speculativeResultsAreUsedAloneWhenExpansionMissesBudget() {
+        givenSearchResults(Map.of(
+                QUESTION, List.of(chunk("a", "restart via admin console", 0.7)),
+                EXPANDED, List.of(chunk("b", "worker pool restart script", 0.9))
+        ));
+        CompletableFuture<String> expansion = new CompletableFuture<>();
+        PendingExpansion pending = new PendingExpansion(expansion, System.nanoTime());
+
+        String prompt = advisor.before(request(pending), advisorChain).prompt().getUserMessage().getText();
+        expansion.complete(EXPANDED);
+
+        assertThat(prompt).contains("restart via admin console").doesNotContain("worker pool restart script");
+        assertThat(meterRegistry.counter("rag.retrieval.speculative", "outcome", "budget_exceeded").count())
+                .isEqualTo(1.0);
+    }
+
+    @Test
+    void quantizedSearchOversamplesFirstPassWithSameSearchRequest() {
+        QuantizedVectorSearchRepository repository = mock(QuantizedVectorSearchRepository.class);
+        EmbeddingModel embeddingModel = mock(EmbeddingModel.class);
+        float[] embedding = {0.6f, 0.8f};
+        when(embeddingModel.embed(QUESTION)).thenReturn(embedding);
+        when(repository.search(eq(embedding), eq(SearchQuantization.BIT), eq(40), any(SearchRequest.class)))
+                .thenAnswer(invocation -> {
+                    SearchRequest request = invocation.getArgument(3);
+                    assertThat(request.getTopK()).isEqualTo(4);
+                    assertThat(request.getSimilarityThreshold()).isEqualTo(0.62);
+                    return List.of(chunk("a", "restart via admin console", 0.9));
+                });
+        RagAdvisor quantizedAdvisor = RagAdvisor.build(vectorStore)
+                .rerankEnabled(false)
+                .quantization(SearchQuantization.BIT)
+                .oversampling(10)
+                .quantizedSearchRepository(repository)
+                .embeddingModel(embeddingModel)
+                .build();
+        ChatClientRequest request = ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(QUESTION)))
+                .build();
+
+        String prompt = quantizedAdvisor.before(request, advisorChain).prompt().getUserMessage().getText();
+
+        assertThat(prompt).contains("restart via admin console");
+        verifyNoInteractions(vectorStore);
+    }
+
+    @Test
+    void hybridSearchTakesPrecedenceAndAppliesRequestOverrides() {
+        HybridSearchRepository repository = mock(HybridSearchRepository.class);
+        EmbeddingModel embeddingModel = mock(EmbeddingModel.class);
+        float[] embedding = {0.6f, 0.8f};
+        when(embeddingModel.embed(QUESTION)).thenReturn(embedding);
+        when(repository.search(eq(embedding), any(SearchRequest.class), eq(20), eq(new Weights(0.5, 2.0, 60))))
+                .thenAnswer(invocation -> {
+                    SearchRequest request = invocation.getArgument(1);
+                    assertThat(request.getTopK()).isEqualTo(8);
+                    assertThat(request.getQuery()).isEqualTo(QUESTION);
+                    return List.of(chunk("a", "error PX-4012 means the worker pool is down", 0.03));
+                });
+        RagAdvisor hybridAdvisor = RagAdvisor.build(vectorStore)
+                .rerankEnabled(false)
+                .quantization(SearchQuantization.BIT)
+                .hybrid(true)
+                .hybridSearchRepository(repository)
+                .embeddingModel(embeddingModel)
+                .build();
+        ChatClientRequest request = ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(QUESTION)))
+                .context(Map.of(
+                        RagAdvisor.RETRIEVAL_TOP_K, 8,
+                        RagAdvisor.HYBRID_VECTOR_WEIGHT, "0.5",
+                        RagAdvisor.HYBRID_LEXICAL_WEIGHT, 2.0
+                ))
+                .build();
+
+        String prompt = hybridAdvisor.before(request, advisorChain).prompt().getUserMessage().getText();
+
+        assertThat(prompt).contains("error PX-4012 means the worker pool is down");
+        verifyNoInteractions(vectorStore);
+    }
+
+    @Test
+    void requestedTopKIsClampedToMaxTopK() {
+        when(vectorStore.similaritySearch(any(SearchRequest.class))).thenReturn(List.of());
+        RagAdvisor clampingAdvisor = RagAdvisor.build(vectorStore)
+                .rerankEnabled(false)
+                .maxTopK(10)
+                .build();
+        ChatClientRequest request = ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(QUESTION)))
+                .context(Map.of(RagAdvisor.RETRIEVAL_TOP_K, 1_000_000))
+                .build();
+
+        clampingAdvisor.before(request, advisorChain);
+
+        verify(vectorStore).similaritySearch(argThat((SearchRequest searchRequest) -> searchRequest.getTopK() == 10));
+    }
+
+    @Test
+    void subQueriesAreEmbeddedInOneBatchSearchedConcurrentlyAndFused() {
+        String english = "how to restart PlatformX worker pool";
+        String russian = "как перезапустить пул воркеров PlatformX";
+        Map<String, List<Document>> resultsByQuery = Map.of(
+                QUESTION, List.of(chunk("a", "restart via admin console", 0.9), chunk("b", "worker pool restart script", 0.8)),
+                english, List.of(chunk("b", "worker pool restart script", 0.9), chunk("c", "pool sizing guide", 0.7)),
+                russian, List.of(chunk("b", "worker pool restart script", 0.6))
+        );
+        CountDownLatch allSearchesStarted = new CountDownLatch(3);
+        when(vectorStore.similaritySearch(any(SearchRequest.class))).thenAnswer(invocation -> {
+            allSearchesStarted.countDown();
+            assertThat(allSearchesStarted.await(5, TimeUnit.SECONDS)).isTrue();
+            return resultsByQuery.get(invocation.<SearchRequest>getArgument(0).getQuery());
+        });
+        CachingEmbeddingModel embeddingModel = mock(CachingEmbeddingModel.class);
+        when(embeddingModel.embed(List.of(QUESTION, english, russian)))
+                .thenReturn(List.of(new float[]{1f}, new float[]{2f}, new float[]{3f}));
+        RagAdvisor fanOutAdvisor = RagAdvisor.build(vectorStore)
+                .rerankEnabled(false)
+                .embeddingModel(embeddingModel)
+                .meterRegistry(meterRegistry)
+                .build();
+        ChatClientRequest request = ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(QUESTION)))
+                .context(Map.of(ENRICHED_QUESTION, english + "\n" + russian))
+                .build();
+
+        String prompt = fanOutAdvisor.before(request, advisorChain).prompt().getUserMessage().getText();
+
+        assertThat(prompt.indexOf("worker pool restart script")).isLessThan(prompt.indexOf("restart via admin console"));
+        assertThat(prompt.indexOf("restart via admin console")).isLessThan(prompt.indexOf("pool sizing guide"));
+        verify(embeddingModel).embed(List.of(QUESTION, english, russian));
+        verify(embeddingModel, never()).embed(any(String.class));
+        assertThat(meterRegistry.summary("rag.retrieval.queries").totalAmount()).isEqualTo(3.0);
+    }
+
+    @Test
+    void streamStartsWithRetrievalDoneAfterSearchOffTheSubscribingThread() {
+        Thread subscriber = Thread.currentThread();
+        when(vectorStore.similaritySearch(any(SearchRequest.class))).thenAnswer(invocation -> {
+            assertThat(Thread.currentThread()).isNotSameAs(subscriber);
+            return List.of(chunk("a", "restart via admin console", 0.7), chunk("b", "worker pool restart script", 0.8));
+        });
+        StreamAdvisorChain streamChain = mock(StreamAdvisorChain.class);
+        when(streamChain.nextStream(any())).thenReturn(Flux.just(ChatClientResponse.builder()
+                .chatResponse(new ChatResponse(List.of(new Generation(new AssistantMessage("Restart it")))))
+                .build()));
+        RagAdvisor streamingAdvisor = RagAdvisor.build(vectorStore)
+                .rerankEnabled(false)
+                .retrievalScheduler(Schedulers.newSingle("retrieval"))
+                .build();
+        ChatClientRequest request = ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(QUESTION)))
+                .build();
+
+        List<ChatClientResponse> responses = streamingAdvisor.adviseStream(request, streamChain).collectList().block();
+
+        assertThat(responses).hasSize(2);
+        assertThat(responses.getFirst().chatResponse().getMetadata().<Integer>get(RagAdvisor.RETRIEVAL_DONE))
+                .isEqualTo(2);
+        assertThat(responses.getLast().chatResponse().getResult().getOutput().getText()).isEqualTo("Restart it");
+    }
+
+    private void givenSearchResults(Map<String, List<Document>> resultsByQuery) {
+        when(vectorStore.similaritySearch(any(SearchRequest.class))).thenAnswer(invocation ->
+                resultsByQuery.getOrDefault(invocation.<SearchRequest>getArgument(0).getQuery(), List.of()));
+    }
+
+    private static Document chunk(String id, String text, double score) {
+        return Document.builder().id(id).text(text).score(score).build();
+    }
+
+    private static ChatClientRequest request(PendingExpansion pending) {
+        return ChatClientRequest.builder()
+                .prompt(new Prompt(new UserMessage(QUESTION)))
+                .context(Map.of(PENDING_EXPANSION, pending))
+                .build();
+    }
+}
@@ -0,0 +1,189 @@
+package com.glvov.springairag.advisor.misc;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BM25RerankEngineTest {
+
+    private static final List<String> TEXTS = List.of(
+            "PlatformX is a component for processing payment events in real time.",
+            "To restart PlatformX, stop the worker pool and clear the event queue.",
+            "Error code PX-404 means that the payment event was not found in the queue.",
+            "Temperature controls randomness of the model, top-p limits the probability mass.",
+            "Nothing here yet.",
+            "PlatformX PlatformX PlatformX: the payment component, the payment queue, the payment worker.",
+            "PlatformX — это компонент для обработки платежных событий в реальном времени.",
+            "Код ошибки PX-404 означает, что платежное событие не найдено в очереди.",
+            "Температура управляет случайностью ответов модели.",
+            "PlatformX ist eine Komponente zur Verarbeitung von Zahlungsereignissen in Echtzeit.",
+            "Der Fehlercode PX-404 bedeutet, dass das Zahlungsereignis nicht gefunden wurde.",
+            "Contacts: write to the support team of PlatformX for any payment question."
+    );
+
+    private static final List<String> QUERIES = List.of(
+            "What does error code PX-404 mean?",
+            "how to restart platformx worker pool",
+            "payment queue",
+            "Что означает код ошибки PX-404?",
+            "Was bedeutet der Fehlercode PX-404?",
+            "temperature top-p",
+            "completely unrelated question about cooking pasta"
+    );
+
+    private final BM25RerankEngine engine = BM25RerankEngine.builder().build();
+
+
+    @Test
+    void rerankReturnsSameRankingAsComparatorBasedScoring() {
+        List<Document> corpus = documents(TEXTS);
+
+        for (String query : QUERIES) {
+            for (int limit : new int[]{1, 3, 5, corpus.size(), corpus.size() + 10}) {
+                assertThat(ids(engine.rerank(corpus, query, limit)))
+                        .as("query '%s', limit %d", query, limit)
+                        .containsExactlyElementsOf(ids(legacyRerank(corpus, query, limit)));
+            }
+        }
+    }
+
+    @Test
+    void rerankKeepsOriginalOrderForEqualScores() {
+        List<Document> corpus = documents(List.of("alpha beta", "gamma delta", "alpha beta", "epsilon"));
+
+        assertThat(ids(engine.rerank(corpus, "zeta", 4))).containsExactly("0", "1", "2", "3");
+        assertThat(ids(engine.rerank(corpus, "alpha", 2))).containsExactly("0", "2");
+    }
+
+    @Test
+    void rerankWithPrecomputedStatisticsMatchesTokenizingChunks() {
+        List<Document> corpus = documents(TEXTS);
+        List<Document> analyzedCorpus = corpus.stream()
+                .map(doc -> new Document(doc.getId(), doc.getText(), engine.analyze(doc.getText()).toMetadata()))
+                .toList();
+
+        for (String query : QUERIES) {
+            assertThat(ids(engine.rerank(analyzedCorpus, query, 5)))
+                    .as("query '%s'", query)
+                    .containsExactlyElementsOf(ids(engine.rerank(corpus, query, 5)));
+        }
+    }
+
+    @Test
+    void rerankUsesCorpusWideIdfWhenConfigured() {
+        List<Document> corpus = documents(List.of("payment", "worker"));
+        String paymentTerm = engine.tokenize("payment").get(0);
+        String workerTerm = engine.tokenize("worker").get(0);
+
+        BM25CorpusStatistics corpusStatistics = new BM25CorpusStatistics() {
+            @Override
+            public long documentCount() {
+                return 1000;
+            }
+
+            @Override
+            public double averageDocumentLength() {
+                return 1.0;
+            }
+
+            @Override
+            public int documentFrequency(String term) {
+                return Map.of(paymentTerm, 900, workerTerm, 1).getOrDefault(term, 0);
+            }
+        };
+
+        BM25RerankEngine corpusWideEngine = BM25RerankEngine.builder()
+                .corpusStatistics(corpusStatistics)
+                .build();
+
+        // equal within the candidates, but 'payment' is common in the whole corpus
+        assertThat(ids(engine.rerank(corpus, "payment worker", 2))).containsExactly("0", "1");
+        assertThat(ids(corpusWideEngine.rerank(corpus, "payment worker", 2))).containsExactly("1", "0");
+    }
+
+    @Test
+    void documentStatisticsSurviveMetadataRoundTrip() {
+        BM25DocumentStatistics statistics = engine.analyze(TEXTS.get(5));
+
+        Map<String, Object> jsonLikeMetadata = new HashMap<>(statistics.toMetadata());
+        Map<String, Object> frequencies = new HashMap<>();
+        statistics.termFrequencies().forEach((term, tf) -> frequencies.put(term, tf.longValue()));
+        jsonLikeMetadata.put(BM25DocumentStatistics.TERM_FREQUENCIES_KEY, frequencies);
+
+        assertThat(BM25DocumentStatistics.fromMetadata(jsonLikeMetadata)).contains(statistics);
+        assertThat(BM25DocumentStatistics.fromMetadata(Map.of("distance", 0.1))).isEmpty();
+    }
+
+    @Test
+    void rerankHandlesEmptyCorpusAndLimit() {
+        assertThat(engine.rerank(List.of(), "payment", 3)).isEmpty();
+        assertThat(engine.rerank(null, "payment", 3)).isEmpty();
+        assertThat(engine.rerank(documents(TEXTS), "payment", 0)).isEmpty();
+    }
+
+    private static List<Document> documents(List<String> texts) {
+        return IntStream.range(0, texts.size())
+                .mapToObj(i -> new Document(String.valueOf(i), texts.get(i), Map.of()))
+                .toList();
+    }
+
+    private static List<String> ids(List<Document> documents) {
+        return documents.stream().map(Document::getId).toList();
+    }
+
+    /**
+     * Reference implementation: the previous comparator-based scoring, kept to prove the ranking hasn't changed.
+     */
+    private List<Document> legacyRerank(List<Document> corpus, String query, int limit) {
+        Map<String, Integer> docFreq = new HashMap<>();
+        Map<Document, List<String>> tokenizedDocs = new HashMap<>();
+        int totalLength = 0;
+
+        for (Document doc : corpus) {
+            List<String> tokens = engine.tokenize(doc.getText());
+            tokenizedDocs.put(doc, tokens);
+            totalLength += tokens.size();
+            for (String term : new HashSet<>(tokens)) {
+                docFreq.put(term, docFreq.getOrDefault(term, 0) + 1);
+            }
+        }
+
+        double avgDocLength = (double) totalLength / corpus.size();
+        List<String> queryTerms = engine.tokenize(query);
+
+        return corpus.stream()
+                .sorted((d1, d2) -> Double.compare(
+                        legacyScore(queryTerms, tokenizedDocs.get(d2), docFreq, avgDocLength, corpus.size()),
+                        legacyScore(queryTerms, tokenizedDocs.get(d1), docFreq, avgDocLength, corpus.size())
+                ))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    private static double legacyScore(List<String> queryTerms, List<String> tokens, Map<String, Integer> docFreq,
+                                      double avgDocLength, int totalDocs) {
+        double k = 1.2;
+        double b = 0.75;
+
+        Map<String, Integer> tfMap = new HashMap<>();
+        for (String token : tokens) {
+            tfMap.put(token, tfMap.getOrDefault(token, 0) + 1);
+        }
+
+        double score = 0.0;
+        for (String term : queryTerms) {
+            int tf = tfMap.getOrDefault(term, 0);
+            int df = docFreq.getOrDefault(term, 1);
+            double idf = Math.log(1 + (totalDocs - df + 0.5) / (df + 0.5));
+            double numerator = tf * (k + 1);
+            double denominator = tf + k * (1 - b + b * tokens.size() / avgDocLength);
+            score += idf * (numerator / denominator);
+        }
+        return score;
+    }
+}
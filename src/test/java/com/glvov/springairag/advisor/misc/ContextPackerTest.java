@@ -0,0 +1,55 @@
+package com.glvov.springairag.advisor.misc;
+
+import com.glvov.springairag.advisor.misc.ContextPacker.PackedContext;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContextPackerTest {
+
+    private static final String RESTART = "To restart PlatformX, stop the worker pool, wait for the queue to drain "
+            + "and start the worker pool again from the admin console.";
+
+    private static final String SCALING = "PlatformX scales the worker pool by the payment queue length, "
+            + "up to sixteen workers per node.";
+
+
+    @Test
+    void nearDuplicatesAndContainedChunksAreSkipped() {
+        PackedContext packed = ContextPacker.builder().build().pack(List.of(
+                chunk("a", RESTART),
+                chunk("b", RESTART.toUpperCase().replace(",", ";")),
+                chunk("c", SCALING),
+                chunk("d", "stop the worker pool, wait for the queue to drain and start the worker pool again")
+        ));
+
+        assertThat(packed.documents()).extracting(Document::getId).containsExactly("a", "c");
+        assertThat(packed.duplicates()).isEqualTo(2);
+        assertThat(packed.text()).isEqualTo(RESTART + System.lineSeparator() + SCALING);
+    }
+
+    @Test
+    void chunksAreFilledInOrderUpToTokenBudget() {
+        JTokkitTokenCountEstimator estimator = new JTokkitTokenCountEstimator();
+        String logs = "Logs are in /var/log/platformx.";
+        int budget = estimator.estimate(RESTART) + estimator.estimate(System.lineSeparator()) + estimator.estimate(logs);
+
+        PackedContext packed = ContextPacker.builder().maxTokens(budget).build().pack(List.of(
+                chunk("a", RESTART),
+                chunk("b", SCALING),
+                chunk("c", logs)
+        ));
+
+        assertThat(packed.documents()).extracting(Document::getId).containsExactly("a", "c");
+        assertThat(packed.overBudget()).isEqualTo(1);
+        assertThat(packed.tokens()).isEqualTo(estimator.estimate(packed.text())).isLessThanOrEqualTo(budget);
+    }
+
+    private static Document chunk(String id, String text) {
+        return Document.builder().id(id).text(text).build();
+    }
+}
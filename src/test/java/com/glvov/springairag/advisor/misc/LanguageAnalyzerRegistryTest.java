@@ -0,0 +1,58 @@
+package com.glvov.springairag.advisor.misc;
+
+import com.github.pemistahl.lingua.api.Language;
+import com.glvov.springairag.advisor.misc.LanguageAnalyzerRegistry.DetectionMode;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LanguageAnalyzerRegistryTest {
+
+    private static final String ENGLISH = "To restart PlatformX, stop the worker pool and clear the event queue.";
+    private static final String GERMAN = "Der Fehlercode PX-404 bedeutet, dass das Zahlungsereignis nicht gefunden wurde.";
+    private static final String RUSSIAN = "PlatformX — это компонент для обработки платежных событий в реальном времени.";
+
+
+    @Test
+    void detectsLanguageInBothModes() {
+        for (DetectionMode mode : DetectionMode.values()) {
+            LanguageAnalyzerRegistry registry = new LanguageAnalyzerRegistry(mode);
+
+            assertThat(registry.detectLanguage(ENGLISH)).as(mode.name()).isEqualTo(Language.ENGLISH);
+            assertThat(registry.detectLanguage(GERMAN)).as(mode.name()).isEqualTo(Language.GERMAN);
+            assertThat(registry.detectLanguage(RUSSIAN)).as(mode.name()).isEqualTo(Language.RUSSIAN);
+        }
+    }
+
+    @Test
+    void returnsSharedAnalyzerPerLanguage() {
+        LanguageAnalyzerRegistry registry = new LanguageAnalyzerRegistry(DetectionMode.HIGH_ACCURACY);
+
+        assertThat(registry.analyzer(Language.RUSSIAN)).isSameAs(registry.analyzer(Language.RUSSIAN));
+        assertThat(registry.analyzer(Language.FRENCH)).isSameAs(registry.analyzer(Language.ENGLISH));
+    }
+
+    @Test
+    void sharedAnalyzersTokenizeConcurrently() throws Exception {
+        BM25RerankEngine engine = BM25RerankEngine.builder().build();
+        List<String> texts = List.of(ENGLISH, GERMAN, RUSSIAN);
+        List<List<String>> expected = texts.stream().map(engine::tokenize).toList();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = executor.invokeAll(IntStream.range(0, 300)
+                    .<Callable<Boolean>>mapToObj(i -> () -> engine.tokenize(texts.get(i % 3)).equals(expected.get(i % 3)))
+                    .toList());
+
+            for (Future<Boolean> result : results) {
+                assertThat(result.get()).isTrue();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.glvov.springairag.bulkhead;
+
+import com.glvov.springairag.bulkhead.Bulkhead.Permit;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BulkheadTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+
+    @Test
+    void callsBeyondTheLimitWaitForASlotAndAreRejectedAfterMaxWait() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("chat", 2, Duration.ofMillis(200), meterRegistry);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(2);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<String>> calls = List.of(
+                    CompletableFuture.supplyAsync(() -> bulkhead.call(() -> block(running, release)), executor),
+                    CompletableFuture.supplyAsync(() -> bulkhead.call(() -> block(running, release)), executor)
+            );
+            assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(meterRegistry.get("rag.bulkhead.active").gauge().value()).isEqualTo(2);
+
+            assertThatThrownBy(() -> bulkhead.call(() -> "rejected"))
+                    .isInstanceOf(BulkheadFullException.class)
+                    .extracting(e -> ((BulkheadFullException) e).getBulkheadName())
+                    .isEqualTo("chat");
+
+            CompletableFuture<String> queued = CompletableFuture.supplyAsync(
+                    () -> bulkhead.call(() -> "queued"), executor
+            );
+            await().untilAsserted(() ->
+                    assertThat(meterRegistry.get("rag.bulkhead.queue").gauge().value()).isEqualTo(1));
+            release.countDown();
+
+            assertThat(queued.get(5, TimeUnit.SECONDS)).isEqualTo("queued");
+            assertThat(calls).allSatisfy(call -> assertThat(call.get(5, TimeUnit.SECONDS)).isEqualTo("done"));
+        }
+
+        assertThat(meterRegistry.get("rag.bulkhead.active").gauge().value()).isZero();
+        assertThat(meterRegistry.get("rag.bulkhead.wait").tag("outcome", "rejected").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("rag.bulkhead.wait").tag("outcome", "acquired").timer().count()).isEqualTo(3);
+    }
+
+    @Test
+    void streamHoldsASlotUntilCancelled() {
+        Bulkhead bulkhead = new Bulkhead("chat", 1, Duration.ofMillis(100), meterRegistry);
+        Sinks.Many<ChatResponse> responses = Sinks.many().unicast().onBackpressureBuffer();
+        ChatModel delegate = mock(ChatModel.class);
+        when(delegate.stream(any(Prompt.class))).thenReturn(responses.asFlux());
+        ChatModel chatModel = new BulkheadChatModel(delegate, bulkhead);
+
+        Disposable subscription = chatModel.stream(new Prompt("question")).subscribe();
+        await().until(() -> bulkhead.activeCalls() == 1);
+        assertThatThrownBy(bulkhead::acquire).isInstanceOf(BulkheadFullException.class);
+
+        subscription.dispose();
+        await().until(() -> bulkhead.activeCalls() == 0);
+        Permit permit = bulkhead.acquire();
+        assertThat(bulkhead.activeCalls()).isEqualTo(1);
+        permit.release();
+        permit.release();
+        assertThat(bulkhead.activeCalls()).isZero();
+    }
+
+    @Test
+    void rejectedStreamFails() {
+        Bulkhead bulkhead = new Bulkhead("chat", 1, Duration.ofMillis(50), meterRegistry);
+        ChatModel delegate = mock(ChatModel.class);
+        when(delegate.stream(any(Prompt.class))).thenReturn(Flux.empty());
+        Permit permit = bulkhead.acquire();
+
+        Flux<ChatResponse> stream = new BulkheadChatModel(delegate, bulkhead).stream(new Prompt("question"));
+        assertThatThrownBy(stream::blockLast).isInstanceOf(BulkheadFullException.class);
+        permit.release();
+    }
+
+    private static String block(CountDownLatch running, CountDownLatch release) {
+        running.countDown();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "done";
+    }
+}
@@ -0,0 +1,97 @@
+package com.glvov.springairag.embedding;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CachingEmbeddingModelTest {
+
+    private final CountingEmbeddingModel delegate = new CountingEmbeddingModel();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final CachingEmbeddingModel cachingModel =
+            new CachingEmbeddingModel(delegate, "test-model", 1024 * 1024, Duration.ofMinutes(5), meterRegistry);
+
+
+    @Test
+    void repeatedQuestionSkipsEmbeddingCall() {
+        float[] first = cachingModel.embed("What does error code PX-404 mean?");
+        float[] second = cachingModel.embed("  what does   error code PX-404 MEAN? ");
+
+        assertThat(second).containsExactly(first);
+        assertThat(delegate.calls).hasValue(1);
+        assertThat(meterRegistry.get("cache.gets").tag("cache", CachingEmbeddingModel.CACHE_NAME)
+                .tag("result", "hit").functionCounter().count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void differentQuestionsAreEmbeddedSeparately() {
+        cachingModel.embed("payment queue");
+        cachingModel.embed("worker pool");
+
+        assertThat(delegate.calls).hasValue(2);
+    }
+
+    @Test
+    void cachedVectorCannotBeModifiedByCaller() {
+        cachingModel.embed("payment queue")[0] = 42f;
+
+        assertThat(cachingModel.embed("payment queue")[0]).isNotEqualTo(42f);
+    }
+
+    @Test
+    void queryBatchEmbedsOnlyMissingQueriesInOneCall() {
+        float[] cached = cachingModel.embed("payment queue");
+
+        List<float[]> embeddings = cachingModel.embed(List.of("worker pool", "Payment  queue", "очередь платежей"));
+
+        assertThat(embeddings).hasSize(3);
+        assertThat(embeddings.get(1)).containsExactly(cached);
+        assertThat(delegate.calls).hasValue(2);
+        assertThat(delegate.lastBatch).containsExactlyInAnyOrder("worker pool", "очередь платежей");
+        assertThat(cachingModel.embed("очередь платежей")).containsExactly(embeddings.get(2));
+        assertThat(delegate.calls).hasValue(2);
+    }
+
+    @Test
+    void documentEmbeddingsAreNotCached() {
+        Document chunk = new Document("PlatformX processes payment events");
+        cachingModel.embed(chunk);
+        cachingModel.embed(chunk);
+
+        assertThat(delegate.calls).hasValue(2);
+    }
+
+    private static class CountingEmbeddingModel implements EmbeddingModel {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private volatile List<String> lastBatch = List.of();
+
+        @Override
+        public EmbeddingResponse call(EmbeddingRequest request) {
+            calls.incrementAndGet();
+            lastBatch = request.getInstructions();
+            List<Embedding> embeddings = request.getInstructions().stream()
+                    .map(text -> new Embedding(new float[]{text.length(), text.hashCode()}, 0))
+                    .toList();
+            return new EmbeddingResponse(embeddings);
+        }
+
+        @Override
+        public float[] embed(Document document) {
+            return embed(document.getText());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.glvov.springairag.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.glvov.springairag.repository.HybridSearchRepository.Weights;
+import com.pgvector.PGvector;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class HybridSearchRepositoryTest {
+
+    private final AtomicReference<Object[]> searchArguments = new AtomicReference<>();
+
+    // records the search statement and its bind parameters
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class, invocation -> {
+        if (invocation.getMethod().getName().equals("query")) {
+            searchArguments.set(invocation.getArguments());
+            return List.of();
+        }
+        return null;
+    });
+
+    private final HybridSearchRepository repository = new HybridSearchRepository(jdbcTemplate, new ObjectMapper());
+
+
+    @Test
+    void searchBindsParametersInStatementOrder() {
+        float[] query = {0.1f, 0.2f};
+        SearchRequest request = SearchRequest.builder()
+                .query("What is the PX-4012 error?")
+                .topK(5)
+                .similarityThreshold(0.7)
+                .build();
+
+        repository.search(query, request, 20, new Weights(1.0, 0.5, 60));
+
+        Object[] arguments = searchArguments.get();
+        String sql = (String) arguments[0];
+        List<Object> parameters = Arrays.asList(arguments).subList(2, arguments.length);
+        PGvector vector = new PGvector(query);
+
+        assertThat(sql)
+                .contains("CAST(replace(plainto_tsquery('simple', ?)::text, '&', '|') AS tsquery) AS query")
+                .doesNotContain(")::tsquery");
+        assertThat(sql.chars().filter(c -> c == '?').count()).isEqualTo(parameters.size());
+        assertThat(parameters).containsExactly(
+                vector, vector, 1 - 0.7, vector, 20,
+                "px-4012 error", 20,
+                1.0, 60, 0.5, 60,
+                vector, 5
+        );
+    }
+
+    @Test
+    void lexicalQueryDropsStopwordsAndKeepsCodes() {
+        assertThat(HybridSearchRepository.lexicalQuery("What is the PX-4012 error? What error?"))
+                .isEqualTo("px-4012 error");
+        assertThat(HybridSearchRepository.lexicalQuery("Как перезапустить сервис platform_x?"))
+                .isEqualTo("перезапустить сервис platform_x");
+        assertThat(HybridSearchRepository.lexicalQuery("what is it")).isEmpty();
+    }
+}
@@ -0,0 +1,87 @@
+package com.glvov.springairag.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.glvov.springairag.advisor.RagAdvisor;
+import com.glvov.springairag.embedding.CachingEmbeddingModel;
+import com.glvov.springairag.model.BatchAnswer;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BatchQuestionServiceTest {
+
+    private final VectorStore vectorStore = mock(VectorStore.class);
+
+    private final ChatClient chatClient = mock(ChatClient.class, RETURNS_DEEP_STUBS);
+
+    private final CachingEmbeddingModel embeddingModel = mock(CachingEmbeddingModel.class);
+
+    private final BatchQuestionService service = new BatchQuestionService(
+            chatClient,
+            RagAdvisor.build(vectorStore).rerankEnabled(false).build(),
+            embeddingModel,
+            new ObjectMapper(),
+            Schedulers.boundedElastic(),
+            4,
+            2
+    );
+
+
+    @Test
+    void duplicateQuestionsAreAnsweredOnceAfterOneBatchEmbedding() {
+        when(vectorStore.similaritySearch(any(SearchRequest.class))).thenReturn(List.of(
+                Document.builder().id("a").text("restart via admin console").score(0.8).build()
+        ));
+        AtomicInteger generations = new AtomicInteger();
+        when(chatClient.prompt(any(Prompt.class)).call().content()).thenAnswer(invocation -> {
+            generations.incrementAndGet();
+            return "Use the admin console";
+        });
+
+        List<BatchAnswer> answers = service.answer(List.of(
+                "How to restart PlatformX?", "What is top-p?", "how to restart  platformx? "
+        )).collectList().block();
+
+        assertThat(answers).hasSize(3);
+        assertThat(answers).extracting(BatchAnswer::index).containsExactlyInAnyOrder(0, 1, 2);
+        assertThat(answers).allSatisfy(answer -> {
+            assertThat(answer.answer()).isEqualTo("Use the admin console");
+            assertThat(answer.chunkIds()).containsExactly("a");
+            assertThat(answer.error()).isNull();
+        });
+        assertThat(answers.stream().max(Comparator.comparingInt(BatchAnswer::index)).orElseThrow().question())
+                .isEqualTo("How to restart PlatformX?");
+        assertThat(generations).hasValue(2);
+        verify(embeddingModel).embed(List.of("How to restart PlatformX?", "What is top-p?"));
+    }
+
+    @Test
+    void failedGenerationIsReportedWithoutFailingTheBatch() {
+        when(vectorStore.similaritySearch(any(SearchRequest.class))).thenReturn(List.of());
+        when(chatClient.prompt(any(Prompt.class)).call().content()).thenThrow(new IllegalStateException("model down"));
+
+        List<BatchAnswer> answers = service.answer(List.of("How to restart PlatformX?", "What is top-p?"))
+                .collectList()
+                .block();
+
+        assertThat(answers).hasSize(2).allSatisfy(answer -> {
+            assertThat(answer.answer()).isNull();
+            assertThat(answer.error()).isEqualTo("model down");
+        });
+    }
+}
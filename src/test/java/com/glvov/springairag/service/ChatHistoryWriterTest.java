@@ -0,0 +1,108 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.model.ChatEntry;
+import com.glvov.springairag.model.Role;
+import com.glvov.springairag.repository.ChatHistoryRepository;
+import com.glvov.springairag.repository.ChatHistoryRepository.ChatEntryRow;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChatHistoryWriterTest {
+
+    private final RecordingRepository repository = new RecordingRepository();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ChatHistoryWriter writer = new ChatHistoryWriter(
+            repository, meterRegistry, 100, 50, Duration.ofMillis(50), Duration.ofSeconds(5)
+    );
+
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        repository.release.countDown();
+        writer.shutdown();
+    }
+
+    @Test
+    void pendingEntriesAreVisibleUntilWritten() {
+        writer.start();
+
+        writer.write(1L, List.of(entry(Role.USER, "How to restart PlatformX?"), entry(Role.ASSISTANT, "Use the console")));
+        writer.write(2L, List.of(entry(Role.USER, "Other chat")));
+
+        List<ChatEntry> history = writer.pendingEntries(1L).appendTo(List.of());
+        assertThat(history).extracting(ChatEntry::getContent).containsExactly("How to restart PlatformX?", "Use the console");
+    }
+
+    @Test
+    void shutdownFlushesQueuedEntriesInOrder() throws InterruptedException {
+        repository.release.countDown();
+        writer.start();
+
+        for (int i = 0; i < 10; i++) {
+            writer.write(1L, List.of(entry(Role.USER, "question " + i), entry(Role.ASSISTANT, "answer " + i)));
+        }
+        writer.shutdown();
+
+        assertThat(repository.rows).hasSize(20);
+        assertThat(repository.rows).extracting(ChatEntryRow::createdAt).isSorted();
+        assertThat(writer.pendingEntries(1L).rows()).isEmpty();
+        assertThat(meterRegistry.counter("chat.history.entries", "result", "written").count()).isEqualTo(20.0);
+    }
+
+    @Test
+    void failingRowDoesNotFailOtherRowsOfBatch() throws InterruptedException {
+        repository.failingChatId = 2L;
+        writer.write(1L, List.of(entry(Role.USER, "kept")));
+        writer.write(2L, List.of(entry(Role.USER, "chat deleted meanwhile")));
+        writer.write(3L, List.of(entry(Role.USER, "kept too")));
+
+        repository.release.countDown();
+        writer.start();
+        writer.shutdown();
+
+        assertThat(repository.rows).extracting(ChatEntryRow::content).containsExactly("kept", "kept too");
+        assertThat(meterRegistry.counter("chat.history.entries", "result", "failed").count()).isEqualTo(1.0);
+    }
+
+    private static ChatEntry entry(Role role, String content) {
+        return ChatEntry.builder().role(role).content(content).build();
+    }
+
+    private static class RecordingRepository extends ChatHistoryRepository {
+
+        private final List<ChatEntryRow> rows = new CopyOnWriteArrayList<>();
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private volatile long failingChatId = -1;
+
+        RecordingRepository() {
+            super(null);
+        }
+
+        @Override
+        public void insertAll(List<ChatEntryRow> batch) {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (batch.stream().anyMatch(row -> row.chatId() == failingChatId)) {
+                throw new DataIntegrityViolationException("chat_entry_chat_fk");
+            }
+            rows.addAll(batch);
+        }
+    }
+}
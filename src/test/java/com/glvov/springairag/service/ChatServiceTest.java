@@ -0,0 +1,121 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.model.ChatPage;
+import com.glvov.springairag.model.ChatSummary;
+import com.glvov.springairag.repository.ChatRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Limit;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ChatServiceTest {
+
+    private static final LocalDateTime CREATED_AT = LocalDateTime.of(2026, 1, 1, 12, 0);
+
+    private final ChatRepository chatRepo = mock(ChatRepository.class);
+
+    private final ChatService service = new ChatService();
+
+    // chats 1..7, all created at the same time
+    private final List<ChatSummary> chats = LongStream.rangeClosed(1, 7)
+            .mapToObj(id -> summary(id, CREATED_AT))
+            .toList();
+
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(service, "chatRepo", chatRepo);
+        ReflectionTestUtils.setField(service, "chatListPageSize", 3);
+        ReflectionTestUtils.setField(service, "chatListMaxPageSize", 5);
+
+        // same keyset query as ChatRepository#findSummariesBefore
+        when(chatRepo.findSummariesBefore(anyLong(), any(Limit.class))).thenAnswer(invocation -> {
+            long beforeId = invocation.getArgument(0);
+            Limit limit = invocation.getArgument(1);
+            return chats.stream()
+                    .filter(chat -> chat.getId() < beforeId)
+                    .sorted(Comparator.comparing(ChatSummary::getId).reversed())
+                    .limit(limit.max())
+                    .toList();
+        });
+    }
+
+    @Test
+    void pagesOfChatsCreatedAtTheSameTimeNeitherRepeatNorSkipChats() {
+        List<Long> ids = new ArrayList<>();
+        ChatPage page = service.getChats(null, null);
+        ids.addAll(ids(page));
+
+        while (page.nextCursor() != null) {
+            page = service.getChats(page.nextCursor(), null);
+            ids.addAll(ids(page));
+        }
+
+        assertThat(ids).containsExactly(7L, 6L, 5L, 4L, 3L, 2L, 1L);
+    }
+
+    @Test
+    void lastPageHasNoCursor() {
+        ChatPage fullLastPage = service.getChats(4L, null);
+        ChatPage shortLastPage = service.getChats(3L, null);
+
+        assertThat(ids(fullLastPage)).containsExactly(3L, 2L, 1L);
+        assertThat(fullLastPage.nextCursor()).isNull();
+        assertThat(ids(shortLastPage)).containsExactly(2L, 1L);
+        assertThat(shortLastPage.nextCursor()).isNull();
+    }
+
+    @Test
+    void pageSizeIsClampedToMaxPageSize() {
+        ChatPage tooLarge = service.getChats(null, 1000);
+        ChatPage tooSmall = service.getChats(null, 0);
+
+        assertThat(ids(tooLarge)).containsExactly(7L, 6L, 5L, 4L, 3L);
+        assertThat(tooLarge.nextCursor()).isEqualTo(3L);
+        assertThat(ids(tooSmall)).containsExactly(7L);
+        assertThat(tooSmall.nextCursor()).isEqualTo(7L);
+        // one extra chat tells whether there is a next page
+        verify(chatRepo).findSummariesBefore(Long.MAX_VALUE, Limit.of(6));
+    }
+
+    private static List<Long> ids(ChatPage page) {
+        return page.chats().stream().map(ChatSummary::getId).toList();
+    }
+
+    private static ChatSummary summary(long id, LocalDateTime createdAt) {
+        return new ChatSummary() {
+            @Override
+            public Long getId() {
+                return id;
+            }
+
+            @Override
+            public String getTitle() {
+                return "Chat " + id;
+            }
+
+            @Override
+            public LocalDateTime getCreatedAt() {
+                return createdAt;
+            }
+
+            @Override
+            public int getMessageCount() {
+                return 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,124 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import com.glvov.springairag.model.ChunkManifestEntry;
+import com.glvov.springairag.model.LoadedDocument;
+import com.glvov.springairag.repository.BM25StatisticsRepository;
+import com.glvov.springairag.repository.DocumentRepository;
+import com.glvov.springairag.repository.VectorStoreChunkRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class DocumentLoaderServiceTest {
+
+    private final DocumentRepository documentRepository = mock(DocumentRepository.class);
+
+    private final ResourcePatternResolver resolver = mock(ResourcePatternResolver.class);
+
+    private final VectorStoreChunkRepository vectorStoreChunkRepository = mock(VectorStoreChunkRepository.class);
+
+    private final VectorStore vectorStore = mock(VectorStore.class);
+
+    private final BM25StatisticsRepository statisticsRepository = mock(BM25StatisticsRepository.class);
+
+    private final VectorStoreService vectorStoreService = new VectorStoreService(
+            100, DataSize.ofMegabytes(16), vectorStore, BM25RerankEngine.builder().build(),
+            new BM25StatisticsService(statisticsRepository)
+    );
+
+    private final DocumentLoaderService service = new DocumentLoaderService(
+            documentRepository, resolver, vectorStoreService, vectorStoreChunkRepository,
+            new SimpleMeterRegistry(), mock(ApplicationEventPublisher.class), 2, 1, 7000, Duration.ofMinutes(1)
+    );
+
+
+    @Test
+    void emptyDocumentIsRecordedOnFirstLoad() throws IOException {
+        when(resolver.getResources(anyString())).thenReturn(new Resource[]{resource("empty.txt", "")});
+        when(documentRepository.findByFilenameOrderByLoadedAtDesc("empty.txt")).thenReturn(List.of());
+
+        service.loadDocuments();
+
+        ArgumentCaptor<LoadedDocument> saved = ArgumentCaptor.forClass(LoadedDocument.class);
+        verify(documentRepository).save(saved.capture());
+        assertThat(saved.getValue().getFilename()).isEqualTo("empty.txt");
+        assertThat(saved.getValue().getChunkCount()).isZero();
+        assertThat(saved.getValue().getContentHash()).isEqualTo(DigestUtils.md5DigestAsHex(new byte[0]));
+        assertThat(saved.getValue().getChunkManifest()).isEmpty();
+    }
+
+    @Test
+    void unchangedDocumentIsOnlyHashed() throws IOException {
+        // no manifest: splitting would look the stored chunks up
+        LoadedDocument previous = LoadedDocument.builder()
+                .filename("notes.txt")
+                .contentHash(DigestUtils.md5DigestAsHex("John Smith".getBytes()))
+                .build();
+        when(resolver.getResources(anyString())).thenReturn(new Resource[]{resource("notes.txt", "John Smith")});
+        when(documentRepository.findByFilenameOrderByLoadedAtDesc("notes.txt")).thenReturn(List.of(previous));
+
+        service.loadDocuments();
+
+        verifyNoInteractions(vectorStore, vectorStoreChunkRepository);
+        verify(documentRepository, never()).save(any());
+    }
+
+    @Test
+    void staleChunksAreDeletedFromThePreviousManifest() throws IOException {
+        LoadedDocument previous = LoadedDocument.builder()
+                .filename("notes.txt")
+                .contentHash("previous")
+                .chunkManifest(List.of(
+                        new ChunkManifestEntry("stale", 3, Set.of("sneez")),
+                        ChunkManifestEntry.uncounted("legacy")
+                ))
+                .build();
+        when(resolver.getResources(anyString())).thenReturn(new Resource[]{resource("notes.txt", "John Smith")});
+        when(documentRepository.findByFilenameOrderByLoadedAtDesc("notes.txt")).thenReturn(List.of(previous));
+
+        service.loadDocuments();
+
+        verify(vectorStore).delete(List.of("stale", "legacy"));
+        // the legacy chunk was never counted in the corpus-wide statistics, so it isn't subtracted either
+        verify(statisticsRepository).increment(Map.of("sneez", -1), -1, -3);
+        verifyNoInteractions(vectorStoreChunkRepository);
+
+        ArgumentCaptor<LoadedDocument> saved = ArgumentCaptor.forClass(LoadedDocument.class);
+        verify(documentRepository).save(saved.capture());
+        assertThat(saved.getValue().getChunkManifest())
+                .singleElement()
+                .satisfies(chunk -> assertThat(chunk.terms()).containsExactlyInAnyOrder("john", "smith"));
+    }
+
+    private static Resource resource(String filename, String content) {
+        return new ByteArrayResource(content.getBytes()) {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+package com.glvov.springairag.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EmbeddingBatcherTest {
+
+    // one token per character keeps batch boundaries easy to follow
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator() {
+        @Override
+        public int estimate(String text) {
+            return text.length();
+        }
+    };
+
+    private final List<List<Document>> storedBatches = new CopyOnWriteArrayList<>();
+
+
+    @Test
+    void chunksOfSeveralDocumentsShareTokenSizedBatches() throws Exception {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            EmbeddingBatcher batcher = new EmbeddingBatcher(storedBatches::add, executor, tokenCountEstimator, 10, 2);
+
+            CompletableFuture<Void> first = submit(batcher, chunks("a", 3));   // 6 tokens
+            CompletableFuture<Void> second = submit(batcher, chunks("b", 4));  // 8 tokens
+            batcher.flush();
+
+            CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(storedBatches).allSatisfy(batch ->
+                assertThat(batch.stream().mapToInt(chunk -> chunk.getText().length()).sum()).isLessThanOrEqualTo(10));
+        assertThat(storedBatches).flatMap(batch -> batch).hasSize(7);
+        assertThat(storedBatches).hasSize(2);
+    }
+
+    @Test
+    void documentFailsWhenAnyOfItsBatchesFails() {
+        AtomicInteger calls = new AtomicInteger();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            EmbeddingBatcher batcher = new EmbeddingBatcher(batch -> {
+                if (calls.incrementAndGet() == 2) {
+                    throw new IllegalStateException("embedding backend unavailable");
+                }
+            }, executor, tokenCountEstimator, 4, 1);
+
+            CompletableFuture<Void> document = submit(batcher, chunks("a", 4));
+            batcher.flush();
+
+            assertThat(document).failsWithin(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static CompletableFuture<Void> submit(EmbeddingBatcher batcher, List<Document> chunks) {
+        return CompletableFuture.allOf(chunks.stream().map(batcher::add).toArray(CompletableFuture[]::new));
+    }
+
+    private static List<Document> chunks(String prefix, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new Document(prefix + i))
+                .toList();
+    }
+}
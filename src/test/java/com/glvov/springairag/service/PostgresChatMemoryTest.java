@@ -0,0 +1,192 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.mapper.ChatEntryMapper;
+import com.glvov.springairag.model.ChatEntry;
+import com.glvov.springairag.model.Role;
+import com.glvov.springairag.repository.ChatHistoryRepository;
+import com.glvov.springairag.repository.ChatHistoryRepository.ChatEntryRow;
+import com.glvov.springairag.repository.ChatHistoryRepository.StoredWindow;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.*;
+
+class PostgresChatMemoryTest {
+
+    private static final int MAX_MESSAGES = 4;
+
+    private final ChatHistoryRepository repository = mock(ChatHistoryRepository.class);
+
+    private final ConversationSummarizer summarizer = mock(ConversationSummarizer.class);
+
+    // not started, so that written entries stay pending
+    private final ChatHistoryWriter writer = new ChatHistoryWriter(
+            repository, new SimpleMeterRegistry(), 100, 50, Duration.ofMillis(50), Duration.ofSeconds(1)
+    );
+
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        writer.shutdown();
+    }
+
+    @Test
+    void windowIsReadOnceAndKeptInMemory() {
+        when(repository.findWindow(1L, MAX_MESSAGES)).thenReturn(storedWindow(null, storedEntries(MAX_MESSAGES)));
+        PostgresChatMemory chatMemory = chatMemory(true);
+
+        List<Message> first = chatMemory.get("1");
+        List<Message> second = chatMemory.get("1");
+
+        assertThat(first).hasSize(MAX_MESSAGES).isEqualTo(second);
+        verify(repository, times(1)).findWindow(1L, MAX_MESSAGES);
+    }
+
+    @Test
+    void writtenEntriesAreAppendedToCachedWindow() {
+        when(repository.findWindow(1L, MAX_MESSAGES)).thenReturn(storedWindow(null, storedEntries(MAX_MESSAGES)));
+        PostgresChatMemory chatMemory = chatMemory(true);
+        chatMemory.get("1");
+
+        chatMemory.add("1", List.of(new UserMessage("new question"), new AssistantMessage("new answer")));
+
+        assertThat(chatMemory.get("1"))
+                .extracting(Message::getText)
+                .containsExactly("stored 2", "stored 3", "new question", "new answer");
+        verify(repository, times(1)).findWindow(1L, MAX_MESSAGES);
+    }
+
+    @Test
+    void entriesNotWrittenYetAreReadWithoutWindowCache() {
+        when(repository.findWindow(1L, MAX_MESSAGES)).thenReturn(storedWindow(null, storedEntries(1)));
+        PostgresChatMemory chatMemory = chatMemory(false);
+
+        chatMemory.add("1", List.of(new UserMessage("new question")));
+
+        assertThat(chatMemory.get("1"))
+                .extracting(Message::getText)
+                .containsExactly("stored 0", "new question");
+    }
+
+    @Test
+    void memoryIsTheSummaryAndTheLastEntriesWithinTokenBudget() {
+        List<ChatEntry> entries = new ArrayList<>(storedEntries(MAX_MESSAGES));
+        entries.getFirst().setContent("long answer ".repeat(200));
+        when(repository.findWindow(1L, MAX_MESSAGES)).thenReturn(storedWindow("earlier turns", entries));
+        PostgresChatMemory chatMemory = chatMemory(true, null, 100);
+
+        List<Message> messages = chatMemory.get("1");
+
+        assertThat(messages.getFirst()).isInstanceOf(SystemMessage.class);
+        assertThat(messages)
+                .extracting(Message::getText)
+                .containsExactly(PostgresChatMemory.SUMMARY_PREFIX + "earlier turns",
+                        "stored 1", "stored 2", "stored 3");
+    }
+
+    @Test
+    void olderEntriesAreFoldedIntoSummaryAfterTurn() {
+        List<ChatEntry> entries = storedEntries(MAX_MESSAGES);
+        when(repository.findWindow(1L, MAX_MESSAGES)).thenReturn(storedWindow(null, entries));
+        when(repository.findUnsummarized(1L)).thenReturn(storedWindow(null, entries));
+        when(repository.updateSummary(eq(1L), any(), any(), isNull())).thenReturn(true);
+        when(summarizer.summarize(isNull(), anyList())).thenReturn("summary of stored turns");
+        PostgresChatMemory chatMemory = chatMemory(true, summarizer, 10_000);
+        chatMemory.get("1");
+
+        chatMemory.add("1", List.of(new UserMessage("new question"), new AssistantMessage("new answer")));
+
+        await().atMost(Duration.ofSeconds(5)).untilAsserted(() -> assertThat(chatMemory.get("1"))
+                .extracting(Message::getText)
+                .containsExactly(PostgresChatMemory.SUMMARY_PREFIX + "summary of stored turns",
+                        "new question", "new answer"));
+        // entries which left the window when the turn was appended are summarized as well
+        verify(summarizer).summarize(null, entries);
+        verify(repository).updateSummary(1L, "summary of stored turns", entries.getLast().getCreatedAt(), null);
+        chatMemory.shutdown();
+    }
+
+    @Test
+    void summaryCoversSeveralTurnsAtOnce() {
+        List<ChatEntry> stored = new CopyOnWriteArrayList<>();
+        AtomicReference<StoredWindow> summary = new AtomicReference<>(new StoredWindow(null, null, List.of()));
+        doAnswer(invocation -> {
+            List<ChatEntryRow> rows = invocation.getArgument(0);
+            rows.forEach(row -> stored.add(ChatEntry.builder()
+                    .role(row.role())
+                    .content(row.content())
+                    .createdAt(row.createdAt())
+                    .build()));
+            return null;
+        }).when(repository).insertAll(anyList());
+        when(repository.findUnsummarized(1L)).thenAnswer(invocation -> new StoredWindow(
+                summary.get().summary(), summary.get().summarizedUntil(), List.copyOf(stored)
+        ));
+        when(repository.updateSummary(eq(1L), any(), any(), any())).thenAnswer(invocation -> {
+            summary.set(new StoredWindow(invocation.getArgument(1), invocation.getArgument(2), List.of()));
+            return true;
+        });
+        when(summarizer.summarize(any(), anyList())).thenReturn("summary");
+        PostgresChatMemory chatMemory = chatMemory(false, summarizer, 8, 10_000);
+
+        int turns = 12;
+        for (int i = 0; i < turns; i++) {
+            writer.write(1L, List.of(
+                    ChatEntry.builder().role(Role.USER).content("question " + i).build(),
+                    ChatEntry.builder().role(Role.ASSISTANT).content("answer " + i).build()
+            ));
+            chatMemory.compact(1L);
+        }
+
+        // the 5th turn overflows the window of 8 entries, then every 3rd one: 4 entries are kept each time
+        verify(summarizer, times(3)).summarize(any(), anyList());
+        chatMemory.shutdown();
+    }
+
+    private PostgresChatMemory chatMemory(boolean windowCacheEnabled) {
+        return chatMemory(windowCacheEnabled, null, 10_000);
+    }
+
+    private PostgresChatMemory chatMemory(boolean windowCacheEnabled, ConversationSummarizer summarizer,
+                                          int maxTokens) {
+        return chatMemory(windowCacheEnabled, summarizer, MAX_MESSAGES, maxTokens);
+    }
+
+    private PostgresChatMemory chatMemory(boolean windowCacheEnabled, ConversationSummarizer summarizer,
+                                          int maxMessages, int maxTokens) {
+        return new PostgresChatMemory(new ChatEntryMapper(), repository, writer, new SimpleMeterRegistry(),
+                summarizer, maxMessages, maxTokens, 400, windowCacheEnabled, 100, Duration.ofMinutes(5));
+    }
+
+    private static StoredWindow storedWindow(String summary, List<ChatEntry> entries) {
+        return new StoredWindow(summary, summary != null ? entries.getFirst().getCreatedAt().minusSeconds(1) : null,
+                entries);
+    }
+
+    private static List<ChatEntry> storedEntries(int count) {
+        Instant start = Instant.now().minusSeconds(3600);
+        return IntStream.range(0, count)
+                .mapToObj(i -> ChatEntry.builder()
+                        .id((long) i)
+                        .role(i % 2 == 0 ? Role.USER : Role.ASSISTANT)
+                        .content("stored " + i)
+                        .createdAt(start.plusSeconds(i))
+                        .build())
+                .toList();
+    }
+}
@@ -0,0 +1,139 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.service.SseTokenDelivery.Event;
+import com.glvov.springairag.service.SseTokenDelivery.Piece;
+import com.glvov.springairag.service.SseTokenDelivery.SlowConsumerPolicy;
+import com.glvov.springairag.service.SseTokenDelivery.Token;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class SseTokenDeliveryTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+
+    @Test
+    void tokensAreCoalescedUpToFrameSizeAndEventsKeepTheirPlace() throws InterruptedException {
+        SseTokenDelivery delivery = delivery(Duration.ofSeconds(10), 10, SlowConsumerPolicy.DROP);
+        RecordingEmitter emitter = new RecordingEmitter(Duration.ZERO, false);
+
+        delivery.deliver(Flux.just(
+                new Token("ab"), new Event("retrieval", Map.of("chunks", 2)),
+                new Token("abc"), new Token("def"), new Token("ghij"), new Token("kl")
+        ), emitter);
+
+        assertThat(emitter.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(emitter.frames).containsExactly("ab", "event:retrieval\ndata:{chunks=2}", "abcdefghij", "kl");
+        assertThat(meterRegistry.get("rag.sse.request.bytes").summary().totalAmount()).isEqualTo(14);
+        assertThat(meterRegistry.counter("rag.sse.streams", "outcome", "completed").count()).isEqualTo(1);
+    }
+
+    @Test
+    void framesAreFlushedAfterMaxDelay() throws InterruptedException {
+        SseTokenDelivery delivery = delivery(Duration.ofMillis(50), 1024, SlowConsumerPolicy.DROP);
+        RecordingEmitter emitter = new RecordingEmitter(Duration.ZERO, false);
+
+        delivery.deliver(Flux.concat(
+                Flux.just(new Token("Restart "), new Token("the ")),
+                Flux.<Piece>just(new Token("pool")).delaySubscription(Duration.ofMillis(300))
+        ), emitter);
+
+        assertThat(emitter.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(emitter.frames).containsExactly("Restart the ", "pool");
+    }
+
+    @Test
+    void modelStreamIsCancelledWhenClientGoesAway() {
+        SseTokenDelivery delivery = delivery(Duration.ofMillis(10), 1024, SlowConsumerPolicy.DROP);
+        RecordingEmitter emitter = new RecordingEmitter(Duration.ZERO, true);
+        AtomicBoolean cancelled = new AtomicBoolean();
+
+        delivery.deliver(Flux.interval(Duration.ofMillis(5))
+                .<Piece>map(i -> new Token("token "))
+                .doOnCancel(() -> cancelled.set(true)), emitter);
+
+        await().atMost(Duration.ofSeconds(5)).untilTrue(cancelled);
+        assertThat(meterRegistry.counter("rag.sse.streams", "outcome", "client_gone").count()).isEqualTo(1);
+    }
+
+    @Test
+    void slowClientIsDroppedWhileModelStreamCompletes() throws InterruptedException {
+        SseTokenDelivery delivery = delivery(Duration.ofMillis(10), 8, SlowConsumerPolicy.DROP);
+        RecordingEmitter emitter = new RecordingEmitter(Duration.ofMillis(100), false);
+        AtomicBoolean modelCompleted = new AtomicBoolean();
+
+        delivery.deliver(Flux.range(0, 5000)
+                .<Piece>map(i -> new Token("token "))
+                .doOnComplete(() -> modelCompleted.set(true)), emitter);
+
+        assertThat(emitter.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        await().atMost(Duration.ofSeconds(5)).untilTrue(modelCompleted);
+        assertThat(meterRegistry.counter("rag.sse.streams", "outcome", "dropped_slow_consumer").count())
+                .isEqualTo(1);
+    }
+
+    private SseTokenDelivery delivery(Duration frameMaxDelay, int frameMaxBytes, SlowConsumerPolicy policy) {
+        return new SseTokenDelivery(meterRegistry, frameMaxDelay, frameMaxBytes, 4, policy);
+    }
+
+    /**
+     * Records the data of sent events, optionally writing slowly or failing like a disconnected client.
+     */
+    private static class RecordingEmitter extends SseEmitter {
+
+        private final List<String> frames = new CopyOnWriteArrayList<>();
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private final Duration writeDelay;
+
+        private final boolean disconnected;
+
+
+        RecordingEmitter(Duration writeDelay, boolean disconnected) {
+            super(0L);
+            this.writeDelay = writeDelay;
+            this.disconnected = disconnected;
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            if (disconnected) {
+                throw new IOException("Broken pipe");
+            }
+            try {
+                Thread.sleep(writeDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            frames.add(builder.build().stream()
+                    .map(DataWithMediaType::getData)
+                    .filter(data -> !(data instanceof String text) || !text.equals("data:") && !text.isBlank())
+                    .map(data -> data instanceof Map<?, ?> map && map.containsKey("text")
+                            ? String.valueOf(map.get("text"))
+                            : String.valueOf(data))
+                    .collect(Collectors.joining()));
+        }
+
+        @Override
+        public void complete() {
+            completed.countDown();
+            super.complete();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.glvov.springairag.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.util.DigestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingTokenTextSplitterTest {
+
+    private static final List<String> SENTENCES = List.of(
+            "PlatformX is a component for processing payment events in real time.",
+            "To restart PlatformX, stop the worker pool and clear the event queue!",
+            "Error code PX-404 means that the payment event was not found in the queue.",
+            "PlatformX — это компонент для обработки платежных событий в реальном времени.",
+            "Код ошибки PX-404 означает, что платежное событие не найдено в очереди?",
+            "Der Fehlercode PX-404 bedeutet, dass das Zahlungsereignis nicht gefunden wurde.",
+            "支付事件未在队列中找到时返回错误代码 PX-404。",
+            "Contacts: write to the support team of PlatformX for any payment question"
+    );
+
+    private static final String TEXT = IntStream.range(0, 400)
+            .mapToObj(i -> SENTENCES.get(i % SENTENCES.size()) + (i % 7 == 6 ? "\n" : " "))
+            .collect(Collectors.joining());
+
+    private static final byte[] BYTES = TEXT.getBytes(StandardCharsets.UTF_8);
+
+
+    @Test
+    void chunksMatchTokenTextSplitter() throws IOException {
+        List<String> expected = TokenTextSplitter.builder().withChunkSize(100).build()
+                .apply(List.of(new Document(TEXT))).stream()
+                .map(Document::getText)
+                .toList();
+
+        List<String> chunks = new ArrayList<>();
+        String contentHash = new StreamingTokenTextSplitter(100, Long.MAX_VALUE).split(new ByteArrayResource(BYTES), chunks::add);
+
+        assertThat(chunks).hasSizeGreaterThan(10).containsExactlyElementsOf(expected);
+        assertThat(contentHash).isEqualTo(DigestUtils.md5DigestAsHex(BYTES));
+    }
+
+    @Test
+    void mappedRegionsSplittingCharactersGiveTheSameChunks(@TempDir Path directory) throws IOException {
+        Path file = Files.write(directory.resolve("platformx.txt"), BYTES);
+
+        List<String> streamed = new ArrayList<>();
+        String streamedHash = new StreamingTokenTextSplitter(100, Long.MAX_VALUE)
+                .split(new FileSystemResource(file), streamed::add);
+
+        // odd-sized regions end within multibyte characters
+        List<String> mapped = new ArrayList<>();
+        String mappedHash = new StreamingTokenTextSplitter(100, 0, 1001)
+                .split(new FileSystemResource(file), mapped::add);
+
+        assertThat(mapped).containsExactlyElementsOf(streamed);
+        assertThat(mappedHash).isEqualTo(streamedHash).isEqualTo(DigestUtils.md5DigestAsHex(BYTES));
+    }
+
+    @Test
+    void emptyResourceHasNoChunks() throws IOException {
+        List<String> chunks = new ArrayList<>();
+        String contentHash = new StreamingTokenTextSplitter(100, 0).split(new ByteArrayResource(new byte[0]), chunks::add);
+
+        assertThat(chunks).isEmpty();
+        assertThat(contentHash).isEqualTo(DigestUtils.md5DigestAsHex(new byte[0]));
+    }
+}
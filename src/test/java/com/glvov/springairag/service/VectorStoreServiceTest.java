@@ -0,0 +1,85 @@
+package com.glvov.springairag.service;
+
+import com.glvov.springairag.advisor.misc.BM25RerankEngine;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VectorStoreServiceTest {
+
+    private final VectorStoreService service = new VectorStoreService(
+            100, DataSize.ofMegabytes(16), null, BM25RerankEngine.builder().build(), null
+    );
+
+
+    @Test
+    void unchangedChunksKeepTheirIdsWhenDocumentChanges() {
+        String original = paragraphs(0, 6);
+        String appended = original + paragraphs(6, 8);
+
+        List<String> originalIds = ids(service.split(resource("platformx.txt", original)));
+        List<String> reloadedIds = ids(service.split(resource("platformx.txt", original)));
+        List<String> appendedIds = ids(service.split(resource("platformx.txt", appended)));
+
+        assertThat(originalIds).hasSizeGreaterThan(1).containsExactlyElementsOf(reloadedIds);
+        // the last chunk of the original may absorb the appended text, all the preceding ones are kept
+        assertThat(appendedIds).containsAll(originalIds.subList(0, originalIds.size() - 1));
+        assertThat(ids(service.split(resource("other.txt", original)))).doesNotContainAnyElementsOf(originalIds);
+    }
+
+    @Test
+    void repeatedChunksGetDistinctIds() {
+        String paragraph = paragraphs(0, 1);
+        List<Document> chunks = service.split(resource("repeated.txt", paragraph.repeat(6)));
+
+        assertThat(ids(chunks)).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void splitHashesContentInTheSamePass() {
+        String content = paragraphs(0, 3);
+
+        VectorStoreService.SplitResult split = service.split(resource("platformx.txt", content), chunk -> {
+            assertThat(chunk.getMetadata())
+                    .containsEntry(VectorStoreService.SOURCE_FILENAME_KEY, "platformx.txt")
+                    .containsEntry(VectorStoreService.CHUNK_HASH_KEY,
+                            DigestUtils.md5DigestAsHex(chunk.getText().getBytes(StandardCharsets.UTF_8)));
+        });
+
+        assertThat(split.contentHash()).isEqualTo(DigestUtils.md5DigestAsHex(content.getBytes(StandardCharsets.UTF_8)));
+        assertThat(split.chunkIds()).containsExactlyElementsOf(ids(service.split(resource("platformx.txt", content))));
+    }
+
+    private static String paragraphs(int from, int to) {
+        return IntStream.range(from, to)
+                .mapToObj(i -> "Section " + i + ". PlatformX processes payment events of region " + i
+                        + " in real time. To restart the worker pool of region " + i
+                        + ", stop the consumers, clear the event queue and start them again. "
+                        + "Error code PX-" + (400 + i) + " means that the payment event was not found in the queue. "
+                        + "Contact the support team of region " + i + " for any other payment question.\n\n")
+                .collect(Collectors.joining());
+    }
+
+    private static Resource resource(String filename, String content) {
+        return new ByteArrayResource(content.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+        };
+    }
+
+    private static List<String> ids(List<Document> chunks) {
+        return chunks.stream().map(Document::getId).toList();
+    }
+}
@@ -0,0 +1,193 @@
+package com.glvov.springairag.vectorstore;
+
+import com.glvov.springairag.vectorstore.HnswIndex.Match;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentMetadata;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.vectorstore.SearchRequest;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+class HnswVectorStoreTest {
+
+    @TempDir
+    private Path directory;
+
+    private final VectorEmbeddingModel embeddingModel = new VectorEmbeddingModel();
+
+
+    @Test
+    void approximateSearchFindsMostOfExactNeighbours() throws Exception {
+        Random random = new Random(42);
+        List<float[]> vectors = IntStream.range(0, 2000).mapToObj(i -> randomVector(random, 32)).toList();
+
+        try (HnswIndex index = new HnswIndex(directory, 32, 16, 200)) {
+            vectors.forEach(vector -> addUnchecked(index, vector));
+
+            int found = 0;
+            for (int q = 0; q < 50; q++) {
+                float[] query = randomVector(random, 32);
+                List<Integer> exact = IntStream.range(0, vectors.size()).boxed()
+                        .sorted(Comparator.comparingDouble(node -> -cosine(query, vectors.get(node))))
+                        .limit(10)
+                        .toList();
+                List<Integer> approximate = index.search(query, 10, 64, node -> true).stream()
+                        .map(Match::node)
+                        .toList();
+
+                found += (int) approximate.stream().filter(exact::contains).count();
+            }
+
+            assertThat(found / 500.0).isGreaterThanOrEqualTo(0.9);
+        }
+    }
+
+    @Test
+    void searchReturnsTopKAboveThresholdWithDistance() throws Exception {
+        try (HnswVectorStore store = HnswVectorStore.builder(embeddingModel, directory).build()) {
+            store.add(List.of(
+                    document("north", 1, 0),
+                    document("north-east", 1, 1),
+                    document("east", 0, 1),
+                    document("south", -1, 0)
+            ));
+            embeddingModel.vectors.put("query", new float[]{1, 0.1f});
+
+            List<Document> results = store.similaritySearch(SearchRequest.builder()
+                    .query("query")
+                    .topK(2)
+                    .similarityThresholdAll()
+                    .build());
+
+            assertThat(results).extracting(Document::getId).containsExactly("north", "north-east");
+            assertThat(results.getFirst().getScore()).isGreaterThan(0.99);
+            assertThat((double) (float) results.getFirst().getMetadata().get(DocumentMetadata.DISTANCE.value()))
+                    .isCloseTo(1 - results.getFirst().getScore(), offset(1e-6));
+
+            List<Document> similar = store.similaritySearch(SearchRequest.builder()
+                    .query("query")
+                    .topK(4)
+                    .similarityThreshold(0.5)
+                    .build());
+            assertThat(similar).extracting(Document::getId).containsExactly("north", "north-east");
+        }
+    }
+
+    @Test
+    void filterExpressionIsAppliedToMetadata() throws Exception {
+        try (HnswVectorStore store = HnswVectorStore.builder(embeddingModel, directory).build()) {
+            store.add(List.of(
+                    document("north", 1, 0),
+                    document("north-east", 1, 1)
+            ));
+            embeddingModel.vectors.put("query", new float[]{1, 0});
+
+            List<Document> results = store.similaritySearch(SearchRequest.builder()
+                    .query("query")
+                    .topK(2)
+                    .filterExpression("name == 'north-east'")
+                    .build());
+
+            assertThat(results).extracting(Document::getId).containsExactly("north-east");
+        }
+    }
+
+    @Test
+    void documentsSurviveReopeningWithoutDeletedOnes() throws Exception {
+        try (HnswVectorStore store = HnswVectorStore.builder(embeddingModel, directory).build()) {
+            store.add(List.of(
+                    document("north", 1, 0),
+                    document("east", 0, 1),
+                    document("south", -1, 0)
+            ));
+            store.delete(List.of("east"));
+            // replaces the stored document
+            store.add(List.of(document("south", -1, -0.1f)));
+        }
+
+        // not similar to the deleted one only
+        embeddingModel.vectors.put("query", new float[]{0, -1});
+        try (HnswVectorStore reopened = HnswVectorStore.builder(embeddingModel, directory).build()) {
+            List<Document> results = reopened.similaritySearch(SearchRequest.builder()
+                    .query("query")
+                    .topK(10)
+                    .build());
+
+            assertThat(results).extracting(Document::getId).containsExactlyInAnyOrder("north", "south");
+            assertThat(reopened.findIds(metadata -> true)).containsExactlyInAnyOrder("north", "south");
+            assertThat(reopened.findByIds(List.of("east", "south")))
+                    .singleElement()
+                    .extracting(Document::getText)
+                    .isEqualTo("south text");
+        }
+    }
+
+    private Document document(String name, float x, float y) {
+        embeddingModel.vectors.put(name + " text", new float[]{x, y});
+        return Document.builder()
+                .id(name)
+                .text(name + " text")
+                .metadata(Map.of("name", name))
+                .build();
+    }
+
+    private static void addUnchecked(HnswIndex index, float[] vector) {
+        try {
+            index.add(vector);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static float[] randomVector(Random random, int dimensions) {
+        float[] vector = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return dot / Math.sqrt(normA * normB);
+    }
+
+    private static class VectorEmbeddingModel implements EmbeddingModel {
+
+        private final Map<String, float[]> vectors = new HashMap<>();
+
+        @Override
+        public EmbeddingResponse call(EmbeddingRequest request) {
+            List<Embedding> embeddings = IntStream.range(0, request.getInstructions().size())
+                    .mapToObj(i -> new Embedding(vectors.get(request.getInstructions().get(i)), i))
+                    .toList();
+            return new EmbeddingResponse(embeddings);
+        }
+
+        @Override
+        public float[] embed(Document document) {
+            return embed(document.getText());
+        }
+    }
+}